@@ -22,13 +22,43 @@ import java.util.Map;
 public class CacheHolder {
 
     private Map<String, Object> o;
+    private long expires;
 
     public CacheHolder(Map<String, Object> o) {
         this.o = o;
     }
 
+    /**
+     * @param o
+     *            the cached object.
+     * @param expires
+     *            the time in ms after which the holder is no longer valid, 0
+     *            for never.
+     */
+    public CacheHolder(Map<String, Object> o, long expires) {
+        this.o = o;
+        this.expires = expires;
+    }
+
     public Map<String, Object> get() {
         return o;
     }
 
+    /**
+     * @return true if this holder records that the object does not exist in
+     *         storage.
+     */
+    public boolean isNegative() {
+        return o == null || o.isEmpty();
+    }
+
+    /**
+     * @param now
+     *            the current time in ms.
+     * @return true if the holder has expired and should not be used.
+     */
+    public boolean isExpired(long now) {
+        return expires > 0 && now >= expires;
+    }
+
 }
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.lite;
+
+/**
+ * Carries cache invalidations between the nodes of a cluster that share the
+ * same storage, so that a write on one node removes the stale entries held in
+ * the {@link StorageCacheManager} caches of every other node. Implementations
+ * are expected to batch invalidations and deliver them asynchronously.
+ */
+public interface CacheInvalidationBus {
+
+    /**
+     * Queue an invalidation of a cache key for delivery to the other nodes.
+     * The local caches are not affected.
+     *
+     * @param cacheKey
+     *            the key of the cache entry that is no longer valid.
+     */
+    void invalidate(String cacheKey);
+
+    /**
+     * @param listener
+     *            a listener to be told about invalidations received from
+     *            other nodes.
+     */
+    void addListener(CacheInvalidationListener listener);
+
+    /**
+     * @param listener
+     *            the listener to remove.
+     */
+    void removeListener(CacheInvalidationListener listener);
+
+}
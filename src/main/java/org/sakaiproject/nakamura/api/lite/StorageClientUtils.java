@@ -21,7 +21,6 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.Maps;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.FastDateFormat;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -77,6 +76,8 @@ public class StorageClientUtils {
             ISO8601_JCR_PATTERN, TimeZone.getTimeZone("UTC"), Locale.ENGLISH);
 
     private static final Logger LOGGER = LoggerFactory.getLogger(StorageClientUtils.class);
+    private static final char[] BASE64_URL_SAFE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+            .toCharArray();
 
     /**
      * Concert a storage object to string. In the sparse store everything is
@@ -302,8 +303,38 @@ public class StorageClientUtils {
         return encode(hash);
     }
     
+    /**
+     * Encode bytes as URL safe base64 without padding. The result is the same
+     * as Base64.encodeBase64URLSafeString, which allocates large working
+     * buffers on every call and is used for every row id.
+     *
+     * @param hash
+     *            the bytes to encode.
+     * @return the encoded bytes.
+     */
     public static String encode(byte[] hash) {
-        return Base64.encodeBase64URLSafeString(hash);
+        char[] out = new char[(hash.length * 4 + 2) / 3];
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < hash.length; i += 3) {
+            int v = ((hash[i] & 0xff) << 16) | ((hash[i + 1] & 0xff) << 8) | (hash[i + 2] & 0xff);
+            out[o++] = BASE64_URL_SAFE[(v >>> 18) & 0x3f];
+            out[o++] = BASE64_URL_SAFE[(v >>> 12) & 0x3f];
+            out[o++] = BASE64_URL_SAFE[(v >>> 6) & 0x3f];
+            out[o++] = BASE64_URL_SAFE[v & 0x3f];
+        }
+        if (i < hash.length) {
+            int v = (hash[i] & 0xff) << 16;
+            if (i + 1 < hash.length) {
+                v |= (hash[i + 1] & 0xff) << 8;
+            }
+            out[o++] = BASE64_URL_SAFE[(v >>> 18) & 0x3f];
+            out[o++] = BASE64_URL_SAFE[(v >>> 12) & 0x3f];
+            if (i + 1 < hash.length) {
+                out[o++] = BASE64_URL_SAFE[(v >>> 6) & 0x3f];
+            }
+        }
+        return new String(out);
     }
 
     /**
@@ -21,6 +21,8 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -91,6 +93,25 @@ public interface AccessControlManager {
     void check(String objectType, String objectPath, Permission permission)
             throws AccessDeniedException, StorageClientException;
 
+    /**
+     * Check the current user has the permission on a number of objects, as
+     * when filtering a listing or search results. The ACLs of the objects and
+     * of their parent objects that are needed are loaded together, and each
+     * parent is only evaluated once however many of the objects are below it.
+     * 
+     * @param objectType
+     *            the object type @see {@link Security}
+     * @param objectPaths
+     *            the paths to the objects
+     * @param permission
+     *            the permission (may be aggregated) to check.
+     * @return the paths the user has the permission on, in the order of
+     *         objectPaths.
+     * @throws StorageClientException
+     */
+    List<String> filter(String objectType, Collection<String> objectPaths, Permission permission)
+            throws StorageClientException;
+
     /**
      * @return the current user ID associated with this AccessControlManager
      */
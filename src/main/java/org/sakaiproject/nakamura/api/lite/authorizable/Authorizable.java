@@ -51,6 +51,13 @@ public class Authorizable {
      */
     public static final String PRINCIPALS_FIELD = "principals";
 
+    /**
+     * List of principals that this Authorizable has directly or through the
+     * groups it is a member of, maintained by the AuthorizableManager when
+     * membership changes.
+     */
+    public static final String PRINCIPAL_CLOSURE_FIELD = "principalClosure";
+
     /**
      * List of members that are members of this authorizable.
      */
@@ -203,6 +210,19 @@ public class Authorizable {
         return principals.toArray(new String[principals.size()]);
     }
 
+    /**
+     * @return the principals that the authorizable has directly or through the
+     *         groups it is a member of, as recorded when its membership last
+     *         changed, or null if they have not been recorded.
+     */
+    public String[] getPrincipalClosure() {
+        Object principalClosure = authorizableMap.get(PRINCIPAL_CLOSURE_FIELD);
+        if (principalClosure == null) {
+            return null;
+        }
+        return StringUtils.split((String) principalClosure, ';');
+    }
+
     /**
      * @return the ID of this authorizable (immutable)
      */
@@ -321,6 +341,14 @@ public class Authorizable {
                 FILTER_PROPERTIES, true);
     }
 
+    /**
+     * @return true if principals have been added or removed since the
+     *         authorizable was loaded or last saved.
+     */
+    public boolean isPrincipalsModified() {
+        return !readOnly && principalsModified;
+    }
+
     /**
      * @return true if the authorizable is modified.
      */
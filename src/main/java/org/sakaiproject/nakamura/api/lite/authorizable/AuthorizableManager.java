@@ -94,6 +94,16 @@ public interface AuthorizableManager {
     void changePassword(Authorizable authorizable, String password, String oldPassword)
             throws StorageClientException, AccessDeniedException;
 
+    /**
+     * Rebuild the principal closures of groups from their principals, and of
+     * the groups that are members of them, directly or indirectly.
+     * @param groupIds the groups to rebuild.
+     * @throws AccessDeniedException
+     * @throws StorageClientException
+     */
+    void rebuildPrincipalClosures(String... groupIds) throws AccessDeniedException,
+            StorageClientException;
+
     /**
      * Find authorizables by exact property matches
      * @param propertyName the name of the property
@@ -108,6 +108,22 @@ public interface ContentManager {
      */
     void delete(String path) throws AccessDeniedException, StorageClientException;
 
+    /**
+     * Rewrite the index of the content object at a path, and of the content
+     * below it, from the stored properties. This is needed for content
+     * written before a property was configured to be indexed, which is
+     * otherwise only found by searches on that property once the property
+     * changes.
+     *
+     * @param path
+     *            the path of the content object to reindex.
+     * @throws StorageClientException
+     *             if there was a problem with the operation.
+     * @throws AccessDeniedException
+     *             if the user is unable to write the object at the path.
+     */
+    void reindex(String path) throws AccessDeniedException, StorageClientException;
+
     /**
      * Write a body stream associated with the content item at the specified
      * path
@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics for a cache, shared by every manager that uses the cache so that
+ * the numbers are aggregated over all sessions. Statistics belong to a cache
+ * instance, so caches of the same name in different repositories or pools
+ * are counted apart. Each is registered with the platform MBean server on
+ * first use, under the name of the cache and a sequence number, and
+ * unregistered once its cache has been garbage collected.
+ */
+public class CacheStatistics implements CacheStatisticsMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheStatistics.class);
+
+    private static final String JMX_DOMAIN = "org.sakaiproject.nakamura.lite";
+
+    private static final long[] LOAD_LATENCY_BUCKETS = new long[] { 1, 2, 5, 10, 20, 50, 100,
+            200, 500, 1000 };
+
+    /**
+     * The statistics of caches that are in use, guarded by itself. There are
+     * a few caches per pool, so they are searched in turn.
+     */
+    private static final List<CacheStatistics> statistics = new ArrayList<CacheStatistics>();
+
+    private static final AtomicInteger sequence = new AtomicInteger();
+
+    private final String name;
+    private final int id;
+    private ObjectName objectName;
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter negativeHits = new StripedCounter();
+    private final StripedCounter invalidations = new StripedCounter();
+    private final StripedCounter coalescedLoads = new StripedCounter();
+    /**
+     * Total load time in microseconds.
+     */
+    private final StripedCounter loadTime = new StripedCounter();
+    private final AtomicLongArray loadLatency = new AtomicLongArray(
+            LOAD_LATENCY_BUCKETS.length + 1);
+    private final WeakReference<Map<String, CacheHolder>> cache;
+    private volatile long evictionBase;
+
+    CacheStatistics(String name, Map<String, CacheHolder> cache) {
+        this.name = name;
+        this.id = sequence.incrementAndGet();
+        this.cache = new WeakReference<Map<String, CacheHolder>>(cache);
+    }
+
+    /**
+     * @param cache
+     *            the cache, compared by identity.
+     * @param name
+     *            the name of the cache
+     * @return the statistics for the cache, created and registered with JMX if
+     *         they don't already exist. If the cache is null, there is nothing
+     *         to share, and new statistics that are not registered are
+     *         returned.
+     */
+    public static CacheStatistics getStatistics(Map<String, CacheHolder> cache, String name) {
+        if (cache == null) {
+            return new CacheStatistics(name, null);
+        }
+        synchronized (statistics) {
+            for (Iterator<CacheStatistics> i = statistics.iterator(); i.hasNext();) {
+                CacheStatistics s = i.next();
+                Map<String, CacheHolder> c = s.getCache();
+                if (c == cache) {
+                    return s;
+                } else if (c == null) {
+                    i.remove();
+                    s.unregister();
+                }
+            }
+            CacheStatistics s = new CacheStatistics(name, cache);
+            statistics.add(s);
+            s.register();
+            return s;
+        }
+    }
+
+    /**
+     * @return the statistics of all the caches in use.
+     */
+    public static List<CacheStatistics> getAllStatistics() {
+        synchronized (statistics) {
+            List<CacheStatistics> inUse = new ArrayList<CacheStatistics>();
+            for (CacheStatistics s : statistics) {
+                if (s.getCache() != null) {
+                    inUse.add(s);
+                }
+            }
+            return inUse;
+        }
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(JMX_DOMAIN + ":type=CacheStatistics,name="
+                    + ObjectName.quote(name) + ",id=" + id);
+            server.registerMBean(this, on);
+            objectName = on;
+        } catch (Exception e) {
+            LOGGER.warn("Unable to register cache statistics {} with JMX {} ", name,
+                    e.getMessage());
+        }
+    }
+
+    private void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOGGER.debug("Unable to unregister cache statistics {} {} ", name,
+                        e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * @return the name the statistics are registered under with JMX, null if
+     *         they are not registered.
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void negativeHit() {
+        negativeHits.increment();
+    }
+
+    void invalidate() {
+        invalidations.increment();
+    }
+
+    void coalescedLoad() {
+        coalescedLoads.increment();
+    }
+
+    /**
+     * Record a miss that was loaded from storage.
+     *
+     * @param loadTimeNanos
+     *            time taken to load the row.
+     */
+    void miss(long loadTimeNanos) {
+        misses.increment();
+        // bucket on microseconds, truncating to ms would put 1.9ms in the 1ms bucket.
+        long us = loadTimeNanos / 1000L;
+        loadTime.add(us);
+        int bucket = 0;
+        while (bucket < LOAD_LATENCY_BUCKETS.length
+                && us > LOAD_LATENCY_BUCKETS[bucket] * 1000L) {
+            bucket++;
+        }
+        loadLatency.incrementAndGet(bucket);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getHitPercent() {
+        long h = getHits() + getNegativeHits();
+        long total = h + getMisses();
+        if (total == 0) {
+            return 0;
+        }
+        return (100 * h) / total;
+    }
+
+    private Map<String, CacheHolder> getCache() {
+        return cache.get();
+    }
+
+    public long getEvictions() {
+        Map<String, CacheHolder> c = getCache();
+        if (c instanceof ConcurrentLRUMap<?, ?>) {
+            return ((ConcurrentLRUMap<?, ?>) c).getEvictionCount() - evictionBase;
+        }
+        return -1;
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public long getSize() {
+        Map<String, CacheHolder> c = getCache();
+        if (c == null) {
+            return -1;
+        }
+        return c.size();
+    }
+
+    public long getCoalescedLoads() {
+        return coalescedLoads.get();
+    }
+
+    public long getLoads() {
+        long loads = 0;
+        for (int i = 0; i < loadLatency.length(); i++) {
+            loads += loadLatency.get(i);
+        }
+        return loads;
+    }
+
+    public long getTotalLoadTime() {
+        return loadTime.get() / 1000L;
+    }
+
+    public long[] getLoadLatencyBuckets() {
+        long[] buckets = new long[LOAD_LATENCY_BUCKETS.length];
+        System.arraycopy(LOAD_LATENCY_BUCKETS, 0, buckets, 0, buckets.length);
+        return buckets;
+    }
+
+    public long[] getLoadLatencyHistogram() {
+        long[] histogram = new long[loadLatency.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = loadLatency.get(i);
+        }
+        return histogram;
+    }
+
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        negativeHits.reset();
+        invalidations.reset();
+        coalescedLoads.reset();
+        loadTime.reset();
+        for (int i = 0; i < loadLatency.length(); i++) {
+            loadLatency.set(i, 0);
+        }
+        Map<String, CacheHolder> c = getCache();
+        if (c instanceof ConcurrentLRUMap<?, ?>) {
+            evictionBase = ((ConcurrentLRUMap<?, ?>) c).getEvictionCount();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Cache Stats " + name + " Hits " + getHits() + " Negative Hits "
+                + getNegativeHits() + " Misses " + getMisses() + " hit% " + getHitPercent()
+                + " Evictions " + getEvictions() + " Invalidations " + getInvalidations();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+/**
+ * JMX view of the statistics for one of the caches used by the managers.
+ */
+public interface CacheStatisticsMBean {
+
+    /**
+     * @return the name of the cache.
+     */
+    String getName();
+
+    /**
+     * @return the number of lookups satisfied from the cache.
+     */
+    long getHits();
+
+    /**
+     * @return the number of lookups that had to go to storage.
+     */
+    long getMisses();
+
+    /**
+     * @return the number of lookups satisfied from the cache where the cache
+     *         recorded that the row does not exist.
+     */
+    long getNegativeHits();
+
+    /**
+     * @return percentage of lookups satisfied from the cache, including
+     *         negative hits.
+     */
+    long getHitPercent();
+
+    /**
+     * @return the number of entries evicted by the underlying cache, -1 if the
+     *         cache does not report evictions.
+     */
+    long getEvictions();
+
+    /**
+     * @return the number of entries removed from the cache because the row was
+     *         written or removed.
+     */
+    long getInvalidations();
+
+    /**
+     * @return the number of entries in the underlying cache, -1 if there is no
+     *         cache.
+     */
+    long getSize();
+
+    /**
+     * @return the number of misses that waited for a load of the same key
+     *         already in progress rather than going to storage themselves.
+     */
+    long getCoalescedLoads();
+
+    /**
+     * @return the number of loads from storage.
+     */
+    long getLoads();
+
+    /**
+     * @return the total time spent loading from storage in ms.
+     */
+    long getTotalLoadTime();
+
+    /**
+     * @return the upper bounds in ms of each bucket in the load latency
+     *         histogram, the last bucket holds everything above the last
+     *         bound.
+     */
+    long[] getLoadLatencyBuckets();
+
+    /**
+     * @return the number of loads in each latency bucket.
+     */
+    long[] getLoadLatencyHistogram();
+
+    /**
+     * Reset all the counters to 0.
+     */
+    void reset();
+}
@@ -18,12 +18,24 @@
 package org.sakaiproject.nakamura.lite;
 
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationBus;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Extend this class to add caching to a Manager class.
@@ -31,11 +43,96 @@ import java.util.Map;
 public abstract class CachingManager {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CachingManager.class);
+
+    public static final long DEFAULT_NEGATIVE_CACHE_TTL = 30000L;
+
+    /**
+     * Loads from storage that are in progress, shared by all managers so that
+     * concurrent misses on the same key in the same cache cause one read.
+     */
+    private static final ConcurrentMap<LoadKey, Load> inflightLoads = new ConcurrentHashMap<LoadKey, Load>();
+
+    /**
+     * Identifies a load by the cache it is for and the key within the cache,
+     * caches are compared by identity.
+     */
+    private static final class LoadKey {
+        private final Map<String, CacheHolder> cache;
+        private final String cacheKey;
+
+        private LoadKey(Map<String, CacheHolder> cache, String cacheKey) {
+            this.cache = cache;
+            this.cacheKey = cacheKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(cache) * 31 + cacheKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof LoadKey)) {
+                return false;
+            }
+            LoadKey other = (LoadKey) obj;
+            return cache == other.cache && cacheKey.equals(other.cacheKey);
+        }
+    }
+
+    /**
+     * A load in progress, waiters block on done and then share the result.
+     */
+    private static final class Load {
+        private static final Map<String, Object> INTERRUPTED = new HashMap<String, Object>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        /**
+         * Set, and checked before the result is cached, holding the lock of
+         * the load.
+         */
+        private boolean invalidated;
+        private volatile Map<String, Object> result;
+        private volatile Exception failure;
+
+        /**
+         * @return the loaded value or INTERRUPTED if the thread was
+         *         interrupted while waiting.
+         * @throws StorageClientException
+         *             if the load failed.
+         */
+        private Map<String, Object> await() throws StorageClientException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return INTERRUPTED;
+            }
+            if (failure != null) {
+                throw new StorageClientException(failure.getMessage(), failure);
+            }
+            if (result == null || result.isEmpty()) {
+                // missing rows are not shared, callers may modify them.
+                return new HashMap<String, Object>();
+            }
+            return result;
+        }
+    }
     private Map<String, CacheHolder> sharedCache;
     private StorageClient client;
-    private int hit;
-    private int miss;
-    private long calls;
+    private CacheStatistics statistics;
+    private CacheInvalidationBus cacheInvalidationBus;
+    private int batchDepth;
+    /**
+     * How long in ms the cache remembers that a row does not exist, 0 to not
+     * remember.
+     */
+    private long negativeCacheTTL = DEFAULT_NEGATIVE_CACHE_TTL;
+    /**
+     * Cache keys written in the current batch. Until the batch is committed
+     * these are read from storage and not cached, so that other sessions
+     * never see uncommitted rows.
+     */
+    private final Set<String> batchKeys = new HashSet<String>();
 
     /**
      * Create a new {@link CachingManager}
@@ -43,8 +140,20 @@ public abstract class CachingManager {
      * @param sharedCache the cache where the objects will be stored
      */
     public CachingManager(StorageClient client, Map<String, CacheHolder> sharedCache) {
+        this(client, sharedCache, null);
+    }
+
+    /**
+     * Create a new {@link CachingManager}
+     * @param client a client to the underlying storage engine
+     * @param sharedCache the cache where the objects will be stored
+     * @param cacheName the name the cache statistics are recorded under, if null the class name is used.
+     */
+    public CachingManager(StorageClient client, Map<String, CacheHolder> sharedCache, String cacheName) {
         this.client = client;
         this.sharedCache = sharedCache;
+        this.statistics = CacheStatistics.getStatistics(sharedCache,
+                cacheName == null ? getClass().getName() : cacheName);
     }
 
     /**
@@ -58,38 +167,251 @@ public abstract class CachingManager {
      */
     protected Map<String, Object> getCached(String keySpace, String columnFamily, String key)
             throws StorageClientException {
-        Map<String, Object> m = null;
         String cacheKey = getCacheKey(keySpace, columnFamily, key);
+        // objects written in an open batch are not cached.
+        Map<String, Object> m = batchKeys.contains(cacheKey) ? null : getFromCache(cacheKey);
+        if (m == null) {
+            if (sharedCache == null || batchKeys.contains(cacheKey)) {
+                long start = System.nanoTime();
+                m = client.get(keySpace, columnFamily, key);
+                statistics.miss(System.nanoTime() - start);
+            } else {
+                m = load(keySpace, columnFamily, key, cacheKey);
+            }
+        }
+        return m;
+    }
 
+    /**
+     * Retrieve a number of objects, reading only those that are not in the
+     * cache from storage, in a single batch. Has the side-effect of loading
+     * uncached objects into cache.
+     * @param keySpace the key space we're operating in.
+     * @param columnFamily the column family for the objects
+     * @param keys the object keys
+     * @return the objects keyed by object key in the order of keys, objects
+     *         that don't exist are present as empty maps.
+     * @throws StorageClientException
+     */
+    protected Map<String, Map<String, Object>> getCachedAll(String keySpace,
+            String columnFamily, Collection<String> keys) throws StorageClientException {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<String, Map<String, Object>>();
+        List<String> misses = new ArrayList<String>();
+        List<String> uncached = new ArrayList<String>();
+        for (String key : keys) {
+            if (!result.containsKey(key)) {
+                String cacheKey = getCacheKey(keySpace, columnFamily, key);
+                if (batchKeys.contains(cacheKey)) {
+                    result.put(key, null);
+                    uncached.add(key);
+                } else {
+                    Map<String, Object> m = getFromCache(cacheKey);
+                    result.put(key, m);
+                    if (m == null) {
+                        misses.add(key);
+                    }
+                }
+            }
+        }
+        if (!uncached.isEmpty()) {
+            result.putAll(read(keySpace, columnFamily, uncached));
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        if (sharedCache == null) {
+            result.putAll(read(keySpace, columnFamily, misses));
+            return result;
+        }
+        // claim the loads that are not already in progress and read them in
+        // one batch, then wait for the rest.
+        Map<String, Load> loads = new LinkedHashMap<String, Load>();
+        Map<String, Load> waits = new LinkedHashMap<String, Load>();
+        for (String key : misses) {
+            String cacheKey = getCacheKey(keySpace, columnFamily, key);
+            Load load = new Load();
+            Load inProgress = inflightLoads.putIfAbsent(new LoadKey(sharedCache, cacheKey), load);
+            if (inProgress == null) {
+                loads.put(key, load);
+            } else {
+                waits.put(key, inProgress);
+            }
+        }
+        if (!loads.isEmpty()) {
+            Map<String, Map<String, Object>> loaded = null;
+            Exception failure = null;
+            try {
+                loaded = read(keySpace, columnFamily, loads.keySet());
+            } catch (StorageClientException e) {
+                failure = e;
+                throw e;
+            } catch (RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                for (Entry<String, Load> e : loads.entrySet()) {
+                    String cacheKey = getCacheKey(keySpace, columnFamily, e.getKey());
+                    Load load = e.getValue();
+                    if (loaded != null) {
+                        Map<String, Object> m = loaded.get(e.getKey());
+                        if (m == null) {
+                            m = new HashMap<String, Object>();
+                        }
+                        complete(cacheKey, load, m);
+                        result.put(e.getKey(), m);
+                    } else {
+                        load.failure = failure;
+                    }
+                    inflightLoads.remove(new LoadKey(sharedCache, cacheKey), load);
+                    load.done.countDown();
+                }
+            }
+        }
+        for (Entry<String, Load> e : waits.entrySet()) {
+            Map<String, Object> m = e.getValue().await();
+            if (m == Load.INTERRUPTED) {
+                // interrupted while waiting, load without the cache.
+                long start = System.nanoTime();
+                m = client.get(keySpace, columnFamily, e.getKey());
+                statistics.miss(System.nanoTime() - start);
+            } else {
+                statistics.coalescedLoad();
+            }
+            result.put(e.getKey(), m);
+        }
+        return result;
+    }
 
-        if (sharedCache != null && sharedCache.containsKey(cacheKey)) {
-            CacheHolder cacheHolder = sharedCache.get(cacheKey);
-            if (cacheHolder != null) {
-                m = cacheHolder.get();
+    /**
+     * Read a number of objects from storage, bypassing the cache.
+     */
+    private Map<String, Map<String, Object>> read(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        long start = System.nanoTime();
+        Map<String, Map<String, Object>> loaded = client.getAll(keySpace, columnFamily, keys);
+        // the batch cost is shared by each of the objects in it.
+        long each = (System.nanoTime() - start) / keys.size();
+        for (int i = 0; i < keys.size(); i++) {
+            statistics.miss(each);
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the cached object, a new empty map if the cache knows the object
+     *         does not exist, or null if the object must be read from storage.
+     */
+    private Map<String, Object> getFromCache(String cacheKey) {
+        if (sharedCache == null) {
+            return null;
+        }
+        CacheHolder cacheHolder = sharedCache.get(cacheKey);
+        if (cacheHolder != null) {
+            if (!cacheHolder.isNegative()) {
+                Map<String, Object> m = cacheHolder.get();
                 LOGGER.debug("Cache Hit {} {} {} ",new Object[]{cacheKey, cacheHolder, m});
-                hit++;
+                statistics.hit();
+                return m;
+            } else if (!cacheHolder.isExpired(System.currentTimeMillis())) {
+                LOGGER.debug("Cache Hit, Not Found {} ", cacheKey);
+                statistics.negativeHit();
+                // storage returns a new empty map for missing rows, so do
+                // the same, callers may modify it.
+                return new HashMap<String, Object>();
             }
         }
-        if (m == null) {
+        return null;
+    }
+
+    /**
+     * Load an object into the cache from storage. If another thread is already
+     * loading the same key into the same cache, wait for it and share its
+     * result rather than issuing another read.
+     */
+    private Map<String, Object> load(String keySpace, String columnFamily, String key,
+            String cacheKey) throws StorageClientException {
+        LoadKey loadKey = new LoadKey(sharedCache, cacheKey);
+        Load load = new Load();
+        Load inProgress = inflightLoads.putIfAbsent(loadKey, load);
+        if (inProgress != null) {
+            Map<String, Object> m = inProgress.await();
+            if (m != Load.INTERRUPTED) {
+                statistics.coalescedLoad();
+                return m;
+            }
+            // interrupted while waiting, load without the cache.
+            long start = System.nanoTime();
             m = client.get(keySpace, columnFamily, key);
-            miss++;
-            if (sharedCache != null) {
-                if (m != null) {
-                    LOGGER.debug("Cache Miss, Found Map {} {}", cacheKey, m);
+            statistics.miss(System.nanoTime() - start);
+            return m;
+        }
+        try {
+            long start = System.nanoTime();
+            Map<String, Object> m = client.get(keySpace, columnFamily, key);
+            statistics.miss(System.nanoTime() - start);
+            complete(cacheKey, load, m);
+            return m;
+        } catch (StorageClientException e) {
+            load.failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            load.failure = e;
+            throw e;
+        } finally {
+            // the load must leave the registry before waiters are released so
+            // that later invalidations can't be missed.
+            inflightLoads.remove(loadKey, load);
+            load.done.countDown();
+        }
+    }
+
+    /**
+     * Record the result of a load in the cache, unless the entry was
+     * invalidated while the load was in progress, and make it available to
+     * waiters. The check and the put hold the lock of the load, and an
+     * invalidation removes the entry after marking the load, so a stale
+     * value is either never put or removed again.
+     */
+    private void complete(String cacheKey, Load load, Map<String, Object> m) {
+        if (m != null) {
+            LOGGER.debug("Cache Miss, Found Map {} {}", cacheKey, m);
+        }
+        synchronized (load) {
+            if (!load.invalidated) {
+                if (m != null && !m.isEmpty()) {
+                    sharedCache.put(cacheKey, new CacheHolder(m));
+                } else if (negativeCacheTTL > 0) {
+                    sharedCache.put(cacheKey, new CacheHolder(null, System.currentTimeMillis()
+                            + negativeCacheTTL));
+                } else {
+                    sharedCache.remove(cacheKey);
                 }
-                sharedCache.put(cacheKey, new CacheHolder(m));
             }
         }
-        calls++;
-        if ((calls % 1000) == 0) {
-            getLogger().info("Cache Stats Hits {} Misses {}  hit% {}", new Object[] { hit, miss,
-                    ((100 * hit) / (hit + miss)) });
-        }
-        return m;
+        load.result = m;
     }
 
     protected abstract Logger getLogger();
 
+    /**
+     * @param negativeCacheTTL
+     *            how long in ms the cache of this manager remembers that a row
+     *            does not exist. The entry is removed early if the row is
+     *            written through a manager on this node. 0 disables caching of
+     *            missing rows.
+     */
+    public void setNegativeCacheTTL(long negativeCacheTTL) {
+        this.negativeCacheTTL = negativeCacheTTL;
+    }
+
+    /**
+     * @return the statistics for the cache used by this manager, shared with
+     *         all other managers using the same cache.
+     */
+    public CacheStatistics getCacheStatistics() {
+        return statistics;
+    }
+
     /**
      * Combine the parameters into a key suitable for storage and lookup in the cache.
      * @param keySpace
@@ -109,8 +431,103 @@ public abstract class CachingManager {
      */
     protected void removeFromCache(String keySpace, String columnFamily, String key) {
         if (sharedCache != null) {
-            sharedCache.remove(getCacheKey(keySpace, columnFamily, key));
+            String cacheKey = getCacheKey(keySpace, columnFamily, key);
+            if (batchDepth > 0) {
+                batchKeys.add(cacheKey);
+            }
+            invalidate(cacheKey);
+        }
+    }
+
+    private void invalidate(String cacheKey) {
+        if (invalidate(sharedCache, cacheKey)) {
+            statistics.invalidate();
         }
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidate(cacheKey);
+        }
+    }
+
+    /**
+     * Start a batch of changes in the storage client, see
+     * {@link StorageClient#startBatch()}. Every call must be matched by a call
+     * to {@link #commitBatch()}, or to {@link #abortBatch()} if the changes
+     * fail, usually in a finally block.
+     *
+     * @throws StorageClientException
+     */
+    protected void startBatch() throws StorageClientException {
+        client.startBatch();
+        batchDepth++;
+    }
+
+    /**
+     * Commit the current batch. When the outermost batch is committed the
+     * objects written in the batch are removed from the cache again, as
+     * another session may have cached the previous version while the batch
+     * was open.
+     *
+     * @throws StorageClientException
+     */
+    protected void commitBatch() throws StorageClientException {
+        client.commitBatch();
+        batchDepth--;
+        if (batchDepth == 0) {
+            endBatch();
+        }
+    }
+
+    /**
+     * Abort the current batch and all enclosing batches.
+     */
+    protected void abortBatch() {
+        batchDepth = 0;
+        try {
+            client.abortBatch();
+        } finally {
+            endBatch();
+        }
+    }
+
+    private void endBatch() {
+        for (String cacheKey : batchKeys) {
+            invalidate(cacheKey);
+        }
+        batchKeys.clear();
+    }
+
+    /**
+     * Remove an entry from a cache, making certain that any load of the entry
+     * in progress does not put a stale value back into the cache.
+     *
+     * @param cache
+     *            the cache.
+     * @param cacheKey
+     *            the key of the entry.
+     * @return true if an entry was removed.
+     */
+    public static boolean invalidate(Map<String, CacheHolder> cache, String cacheKey) {
+        // a load that started before this point may have read the old
+        // value, so it must not populate the cache, and reads from now on,
+        // including the read back of a write, must not share its result.
+        LoadKey loadKey = new LoadKey(cache, cacheKey);
+        Load load = inflightLoads.get(loadKey);
+        if (load != null) {
+            synchronized (load) {
+                load.invalidated = true;
+            }
+            inflightLoads.remove(loadKey, load);
+        }
+        return cache.remove(cacheKey) != null;
+    }
+
+    /**
+     * @param cacheInvalidationBus
+     *            the bus used to tell other nodes about entries removed from
+     *            the cache by this manager, may be null.
+     */
+    public void setCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
     }
     
 
@@ -21,24 +21,35 @@ import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationBus;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationListener;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolver;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.CompiledPermissionCache;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
 
 @Component(immediate = true, metatype = true)
 @Service(value = Repository.class)
@@ -58,6 +69,38 @@ public class RepositoryImpl implements Repository {
     @Reference
     protected PrincipalValidatorResolver principalValidatorResolver;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindCacheInvalidationBus", unbind = "unbindCacheInvalidationBus")
+    protected CacheInvalidationBus cacheInvalidationBus;
+
+    /**
+     * Permissions compiled by any session of this repository.
+     */
+    private CompiledPermissionCache compiledPermissionCache = new CompiledPermissionCache();
+
+    /**
+     * Applies invalidations from other nodes to the caches of this node.
+     */
+    private CacheInvalidationListener cacheInvalidationListener = new CacheInvalidationListener() {
+
+        public void invalidate(Collection<String> cacheKeys) {
+            for (Map<String, CacheHolder> cache : getCaches()) {
+                for (String cacheKey : cacheKeys) {
+                    CachingManager.invalidate(cache, cacheKey);
+                }
+            }
+            for (String cacheKey : cacheKeys) {
+                invalidateCompiledPermissions(cacheKey);
+            }
+        }
+
+        public void invalidateAll() {
+            for (Map<String, CacheHolder> cache : getCaches()) {
+                cache.clear();
+            }
+            compiledPermissionCache.clear();
+        }
+    };
+
 
     public RepositoryImpl() {
     }
@@ -114,7 +157,7 @@ public class RepositoryImpl implements Repository {
             if (currentUser == null) {
                 throw new StorageClientException("User " + username + " cant login with password");
             }
-            return new SessionImpl(this, currentUser, client, configuration, clientPool.getStorageCacheManager(), storeListener, principalValidatorResolver);
+            return new SessionImpl(this, currentUser, client, configuration, clientPool.getStorageCacheManager(), storeListener, principalValidatorResolver, cacheInvalidationBus, compiledPermissionCache, clientPool.getNegativeCacheTTL());
         } catch (ClientPoolException e) {
             clientPool.getClient();
             throw e;
@@ -141,7 +184,7 @@ public class RepositoryImpl implements Repository {
                 throw new StorageClientException("User " + username
                         + " does not exist, cant login administratively as this user");
             }
-            return new SessionImpl(this, currentUser, client, configuration,  clientPool.getStorageCacheManager(), storeListener, principalValidatorResolver);
+            return new SessionImpl(this, currentUser, client, configuration, clientPool.getStorageCacheManager(), storeListener, principalValidatorResolver, cacheInvalidationBus, compiledPermissionCache, clientPool.getNegativeCacheTTL());
         } catch (ClientPoolException e) {
             clientPool.getClient();
             throw e;
@@ -157,6 +200,57 @@ public class RepositoryImpl implements Repository {
         }
     }
 
+    /**
+     * Remove the compiled permissions that depend on a row changed on another
+     * node, an ACL or the membership of an authorizable. Cache keys are
+     * keyspace:columnfamily:key, and ACL keys are objecttype;path.
+     */
+    private void invalidateCompiledPermissions(String cacheKey) {
+        String aclPrefix = configuration.getKeySpace() + ":" + configuration.getAclColumnFamily()
+                + ":";
+        String authorizablePrefix = configuration.getKeySpace() + ":"
+                + configuration.getAuthorizableColumnFamily() + ":";
+        if (cacheKey.startsWith(aclPrefix)) {
+            String aclKey = cacheKey.substring(aclPrefix.length());
+            int i = aclKey.indexOf(';');
+            if (i > 0) {
+                compiledPermissionCache.invalidate(aclKey.substring(0, i), aclKey.substring(i + 1));
+            }
+        } else if (cacheKey.startsWith(authorizablePrefix)) {
+            compiledPermissionCache.invalidateAuthorizable(cacheKey.substring(authorizablePrefix
+                    .length()));
+        }
+    }
+
+    /**
+     * @return the distinct caches of the cache manager in use, the default
+     *         cache manager uses one cache for everything.
+     */
+    private Set<Map<String, CacheHolder>> getCaches() {
+        Set<Map<String, CacheHolder>> caches = Collections
+                .newSetFromMap(new IdentityHashMap<Map<String, CacheHolder>, Boolean>());
+        StorageCacheManager storageCacheManager = clientPool.getStorageCacheManager();
+        if (storageCacheManager != null) {
+            caches.add(storageCacheManager.getAccessControlCache());
+            caches.add(storageCacheManager.getAuthorizableCache());
+            caches.add(storageCacheManager.getContentCache());
+            caches.remove(null);
+        }
+        return caches;
+    }
+
+    protected void bindCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+        cacheInvalidationBus.addListener(cacheInvalidationListener);
+    }
+
+    protected void unbindCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        cacheInvalidationBus.removeListener(cacheInvalidationListener);
+        if (this.cacheInvalidationBus == cacheInvalidationBus) {
+            this.cacheInvalidationBus = null;
+        }
+    }
+
     public void setConfiguration(Configuration configuration) {
         this.configuration = configuration;
     }
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.lite;
 
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationBus;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -30,6 +31,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolv
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.CompiledPermissionCache;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
 import org.sakaiproject.nakamura.lite.content.ContentManagerImpl;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
@@ -49,16 +51,45 @@ public class SessionImpl implements Session {
     public SessionImpl(Repository repository, User currentUser, StorageClient client,
             Configuration configuration, StorageCacheManager storageCacheManager, StoreListener storeListener, PrincipalValidatorResolver principalValidatorResolver)
             throws ClientPoolException, StorageClientException, AccessDeniedException {
+        this(repository, currentUser, client, configuration, storageCacheManager, storeListener, principalValidatorResolver, null);
+    }
+
+    public SessionImpl(Repository repository, User currentUser, StorageClient client,
+            Configuration configuration, StorageCacheManager storageCacheManager, StoreListener storeListener, PrincipalValidatorResolver principalValidatorResolver,
+            CacheInvalidationBus cacheInvalidationBus)
+            throws ClientPoolException, StorageClientException, AccessDeniedException {
+        this(repository, currentUser, client, configuration, storageCacheManager, storeListener, principalValidatorResolver, cacheInvalidationBus, null);
+    }
+
+    public SessionImpl(Repository repository, User currentUser, StorageClient client,
+            Configuration configuration, StorageCacheManager storageCacheManager, StoreListener storeListener, PrincipalValidatorResolver principalValidatorResolver,
+            CacheInvalidationBus cacheInvalidationBus, CompiledPermissionCache compiledPermissionCache)
+            throws ClientPoolException, StorageClientException, AccessDeniedException {
+        this(repository, currentUser, client, configuration, storageCacheManager, storeListener, principalValidatorResolver, cacheInvalidationBus, compiledPermissionCache, CachingManager.DEFAULT_NEGATIVE_CACHE_TTL);
+    }
+
+    public SessionImpl(Repository repository, User currentUser, StorageClient client,
+            Configuration configuration, StorageCacheManager storageCacheManager, StoreListener storeListener, PrincipalValidatorResolver principalValidatorResolver,
+            CacheInvalidationBus cacheInvalidationBus, CompiledPermissionCache compiledPermissionCache, long negativeCacheTTL)
+            throws ClientPoolException, StorageClientException, AccessDeniedException {
         this.currentUser = currentUser;
         this.repository = repository;
         this.client = client;
         accessControlManager = new AccessControlManagerImpl(client, currentUser, configuration,
                 storageCacheManager.getAccessControlCache(), storeListener, principalValidatorResolver);
+        accessControlManager.setCompiledPermissionCache(compiledPermissionCache);
         authorizableManager = new AuthorizableManagerImpl(currentUser, client, configuration,
                 accessControlManager, storageCacheManager.getAuthorizableCache(), storeListener);
 
         contentManager = new ContentManagerImpl(client, accessControlManager, configuration, storageCacheManager.getContentCache(), storeListener);
 
+        accessControlManager.setCacheInvalidationBus(cacheInvalidationBus);
+        authorizableManager.setCacheInvalidationBus(cacheInvalidationBus);
+        contentManager.setCacheInvalidationBus(cacheInvalidationBus);
+        accessControlManager.setNegativeCacheTTL(negativeCacheTTL);
+        authorizableManager.setNegativeCacheTTL(negativeCacheTTL);
+        contentManager.setNegativeCacheTTL(negativeCacheTTL);
+
         authenticator = new AuthenticatorImpl(client, configuration);
         this.storeListener = storeListener;
         storeListener.onLogin(currentUser.getId(), this.toString());
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that is safe to update from many threads with little contention.
+ * Updates are spread over a number of cells selected by the updating thread,
+ * each cell padded onto its own cache line, and reads sum the cells. Reads are
+ * not a point in time snapshot while updates are in progress.
+ */
+public class StripedCounter {
+
+    /**
+     * Number of longs between used cells, so that each cell sits on its own
+     * 64 byte cache line.
+     */
+    private static final int PAD = 8;
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    private static int stripes() {
+        int ncpu = Runtime.getRuntime().availableProcessors();
+        int n = 1;
+        while (n < ncpu * 2 && n < 64) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    private static int index() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & (STRIPES - 1)) * PAD;
+    }
+
+    public void increment() {
+        cells.incrementAndGet(index());
+    }
+
+    public void add(long x) {
+        cells.addAndGet(index(), x);
+    }
+
+    /**
+     * @return the sum of all the cells.
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PAD, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+}
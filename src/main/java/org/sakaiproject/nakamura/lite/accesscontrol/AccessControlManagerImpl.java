@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.lite.accesscontrol;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -49,6 +50,9 @@ import org.slf4j.LoggerFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -65,10 +69,19 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
     private static final Logger LOGGER = LoggerFactory.getLogger(AccessControlManagerImpl.class);
     private static final Set<String> PROTECTED_PROPERTIES = ImmutableSet.of(_SECRET_KEY);
     private static final Set<String> READ_ONLY_PROPERTIES = ImmutableSet.of(_SECRET_KEY, _PATH, _OBJECT_TYPE, _KEY);
+    /**
+     * The number of parent objects whose ACLs are applied to an object.
+     */
+    private static final int MAX_DEPTH = 20;
     private User user;
     private String keySpace;
     private String aclColumnFamily;
-    private Map<String, int[]> cache = new ConcurrentHashMap<String, int[]>();
+    /**
+     * Permissions compiled by this session, by authorizable id and ACL key.
+     * Ancestors are compiled on the way to an object, so a check on a sibling
+     * only has to compile its own ACL and merge the result of its parent.
+     */
+    private Map<String, Map<String, int[]>> cache = new ConcurrentHashMap<String, Map<String, int[]>>();
     private boolean closed;
     private StoreListener storeListener;
     private PrincipalTokenValidator principalTokenValidator;
@@ -76,11 +89,18 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
     private SecureRandom secureRandom;
     private AuthorizableManager authorizableManager;
     private Map<String, String[]> principalCache = new ConcurrentHashMap<String, String[]>();
+    private Map<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+    private Map<String, int[]> principalIdCache = new ConcurrentHashMap<String, int[]>();
+    /**
+     * Compiled ACLs, when they are not shared with other sessions.
+     */
+    private Map<String, CompiledAcl> compiledAcls = new ConcurrentHashMap<String, CompiledAcl>();
+    private CompiledPermissionCache compiledPermissions;
     private ThreadLocal<String> principalRecursionLock = new ThreadLocal<String>();
 
     public AccessControlManagerImpl(StorageClient client, User currentUser, Configuration config,
             Map<String, CacheHolder> sharedCache, StoreListener storeListener, PrincipalValidatorResolver principalValidatorResolver) throws StorageClientException {
-        super(client, sharedCache);
+        super(client, sharedCache, "accesscontrol");
         this.user = currentUser;
         this.aclColumnFamily = config.getAclColumnFamily();
         this.keySpace = config.getKeySpace();
@@ -187,6 +207,13 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
         }
         LOGGER.debug("Updating ACL {} {} ", key, modifications);
         putCached(keySpace, aclColumnFamily, key, modifications, (currentAcl == null || currentAcl.size() == 0));
+        // permissions compiled from the old ACL, here or below, are no longer valid.
+        cache.clear();
+        // the row may have been changed in place.
+        getCompiledAcls().remove(key);
+        if (compiledPermissions != null) {
+            compiledPermissions.invalidate(objectType, objectPath);
+        }
         storeListener.onUpdate(objectType, objectPath,  getCurrentUserId(), false, null, "op:acl");
     }
     
@@ -235,6 +262,67 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
         }
     }
 
+    public List<String> filter(String objectType, Collection<String> objectPaths,
+            Permission permission) throws StorageClientException {
+        if (user.isAdmin()) {
+            return Lists.newArrayList(objectPaths);
+        }
+        Map<String, Map<String, Object>> acls = getAcls(user, objectType, objectPaths);
+        List<String> permitted = Lists.newArrayList();
+        for (String objectPath : objectPaths) {
+            // users can always operate on their own user object.
+            if (Security.ZONE_AUTHORIZABLES.equals(objectType) && user.getId().equals(objectPath)) {
+                permitted.add(objectPath);
+            } else {
+                int[] privileges = compilePermission(user, objectType, objectPath, 0, acls);
+                if ((permission.getPermission() & privileges[0]) == permission.getPermission()) {
+                    permitted.add(objectPath);
+                }
+            }
+        }
+        return permitted;
+    }
+
+    /**
+     * Load the ACLs needed to compile the permissions of an authorizable on a
+     * number of objects in one operation. The walk up from each object stops
+     * at the first parent that has already been compiled or has already been
+     * seen, so parents shared by the objects are only loaded once.
+     *
+     * @return the ACLs keyed by ACL key.
+     */
+    private Map<String, Map<String, Object>> getAcls(Authorizable authorizable,
+            String objectType, Collection<String> objectPaths) throws StorageClientException {
+        Map<String, int[]> compiledForAuthorizable = cache.get(authorizable.getId());
+        String fingerprint = null;
+        if (compiledPermissions != null && principalTokenResolver == null) {
+            fingerprint = getFingerprint(authorizable);
+        }
+        Set<String> keys = Sets.newLinkedHashSet();
+        for (String objectPath : objectPaths) {
+            String path = objectPath;
+            for (int recursion = 0; recursion <= MAX_DEPTH; recursion++) {
+                String key = getAclKey(objectType, path);
+                if (keys.contains(key)
+                        || (compiledForAuthorizable != null && compiledForAuthorizable
+                                .containsKey(key))
+                        || (fingerprint != null && compiledPermissions.get(fingerprint,
+                                objectType, path) != null)) {
+                    break;
+                }
+                keys.add(key);
+                if (StorageClientUtils.isRoot(path)) {
+                    break;
+                }
+                path = StorageClientUtils.getParentObjectPath(path);
+            }
+        }
+        if (keys.isEmpty()) {
+            return ImmutableMap.of();
+        }
+        return getCachedAll(keySpace, aclColumnFamily, keys);
+    }
+
     private String getAclKey(String objectType, String objectPath) {
         return objectType + ";" + objectPath;
     }
@@ -248,32 +336,58 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
 
     private int[] compilePermission(Authorizable authorizable, String objectType,
             String objectPath, int recursion) throws StorageClientException {
+        return compilePermission(authorizable, objectType, objectPath, recursion, null);
+    }
+
+    /**
+     * @param acls
+     *            ACLs already loaded by {@link #getAcls}, or null.
+     */
+    private int[] compilePermission(Authorizable authorizable, String objectType,
+            String objectPath, int recursion, Map<String, Map<String, Object>> acls)
+            throws StorageClientException {
         String key = getAclKey(objectType, objectPath);
-        if (user.getId().equals(authorizable.getId()) && cache.containsKey(key)) {
-            return cache.get(key);
-        } else {
-            LOGGER.debug("Cache Miss {} [{}] ", cache, key);
+        Map<String, int[]> compiledForAuthorizable = cache.get(authorizable.getId());
+        if (compiledForAuthorizable == null) {
+            compiledForAuthorizable = new ConcurrentHashMap<String, int[]>();
+            cache.put(authorizable.getId(), compiledForAuthorizable);
+        } else if (compiledForAuthorizable.containsKey(key)) {
+            return compiledForAuthorizable.get(key);
+        }
+        LOGGER.debug("Cache Miss {} [{}] ", authorizable.getId(), key);
+        // permissions that depend on the tokens of this request can't be
+        // shared with other sessions.
+        boolean shared = compiledPermissions != null && principalTokenResolver == null;
+        String fingerprint = null;
+        long modificationCount = 0;
+        if (shared) {
+            fingerprint = getFingerprint(authorizable);
+            int[] compiled = compiledPermissions.get(fingerprint, objectType, objectPath);
+            if (compiled != null) {
+                compiledForAuthorizable.put(key, compiled);
+                return compiled;
+            }
+            modificationCount = compiledPermissions.getModificationCount();
         }
 
-        Map<String, Object> acl = getCached(keySpace, aclColumnFamily, key);
+        Map<String, Object> acl = (acls != null && acls.containsKey(key)) ? acls.get(key)
+                : getCached(keySpace, aclColumnFamily, key);
         LOGGER.debug("ACL on {} is {} ", key, acl);
 
         int grants = 0;
         int denies = 0;
         if (acl != null) {
 
-            {
-                String principal = authorizable.getId();
-                int tg = toInt(acl.get(principal
-                        + AclModification.GRANTED_MARKER));
-                int td = toInt(acl
-                        .get(principal + AclModification.DENIED_MARKER));
-                grants = grants | tg;
-                denies = denies | td;
-                LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}",new
-                Object[]{principal,tg,td,grants,denies});
-
-            }
+            /*
+             * The authorizable and its static principals, found by principal
+             * id in the compiled form of the ACL.
+             */
+            CompiledAcl compiledAcl = CompiledAcl.get(getCompiledAcls(), key, acl);
+            int[] principalIds = getPrincipalIds(authorizable);
+            grants = compiledAcl.getGranted(principalIds);
+            denies = compiledAcl.getDenied(principalIds);
+            LOGGER.debug("Added Permissions for {} and its principals => g{} d{}", new Object[] {
+                    authorizable.getId(), grants, denies });
             /*
              * Deal with any proxy principals, these override groups 
              */
@@ -319,27 +433,14 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
             } else {
                 LOGGER.debug("No principalToken Resolver");
             }
-            // then deal with static principals
-            for (String principal : getPrincipals(authorizable) ) {
-                int tg = toInt(acl.get(principal
-                        + AclModification.GRANTED_MARKER));
-                int td = toInt(acl
-                        .get(principal + AclModification.DENIED_MARKER));
-                grants = grants | tg;
-                denies = denies | td;
-                LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}",new
-                  Object[]{principal,tg,td,grants,denies});
-            }
 
             // Everyone must be the last principal to be applied
             if (!User.ANON_USER.equals(authorizable.getId())) {
                 // all users except anon are in the group everyone, by default
                 // but only if not already denied or granted by a more specific
                 // permission.
-                int tg = (toInt(acl.get(Group.EVERYONE
-                        + AclModification.GRANTED_MARKER)) & ~denies);
-                int td = (toInt(acl.get(Group.EVERYONE
-                        + AclModification.DENIED_MARKER)) & ~grants);
+                int tg = (compiledAcl.getEveryoneGranted() & ~denies);
+                int td = (compiledAcl.getEveryoneDenied() & ~grants);
                 grants = grants | tg;
                 denies = denies | td;
                 LOGGER.debug("Added Permissions for {} g{} d{} => g{} d{}",new
@@ -357,11 +458,11 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
              * Only look to parent objects if this is not the root object and
              * everything is not granted and denied
              */
-            if (recursion < 20 && !StorageClientUtils.isRoot(objectPath)
+            if (recursion < MAX_DEPTH && !StorageClientUtils.isRoot(objectPath)
                     && (granted != 0xffff || denied != 0xffff)) {
                 recursion++;
                 int[] parentPriv = compilePermission(authorizable, objectType,
-                        StorageClientUtils.getParentObjectPath(objectPath), recursion);
+                        StorageClientUtils.getParentObjectPath(objectPath), recursion, acls);
                 if (parentPriv != null) {
                     /*
                      * Grant permission not denied at this level parentPriv[0]
@@ -394,10 +495,13 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
             /*
              * Keep a cached copy
              */
-            if (user.getId().equals(authorizable.getId())) {
-                cache.put(key, new int[] { granted, denied });
+            int[] compiled = new int[] { granted, denied };
+            compiledForAuthorizable.put(key, compiled);
+            if (shared) {
+                compiledPermissions.put(fingerprint, objectType, objectPath, compiled,
+                        modificationCount);
             }
-            return new int[] { granted, denied };
+            return compiled;
 
         }
         if (Security.ZONE_AUTHORIZABLES.equals(objectType)
@@ -420,13 +524,16 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
             if ( principalRecursionLock.get() == null ) {
                 principalRecursionLock.set("l");
                 try {
-                    for ( Iterator<Group> gi = authorizable.memberOf(authorizableManager); gi.hasNext(); ) {
-                        memberOfSet.add(gi.next().getId());
-                    }
+                    addTransitivePrincipals(authorizable, memberOfSet);
                 } finally {
                     principalRecursionLock.set(null);
                 }
             }
+        } else {
+            String[] principalClosure = authorizable.getPrincipalClosure();
+            if ( principalClosure != null ) {
+                Collections.addAll(memberOfSet, principalClosure);
+            }
         }
         memberOfSet.remove(Group.EVERYONE);
         String[] m = memberOfSet.toArray(new String[memberOfSet.size()]);
@@ -434,6 +541,106 @@ public class AccessControlManagerImpl extends CachingManager implements AccessCo
         return m;
     }
 
+    /**
+     * Add the principals the authorizable has through the groups it is
+     * directly a member of. The closures maintained by the authorizable manager
+     * are only taken from those groups and never from the authorizable itself,
+     * so a principal added to or removed from the authorizable is always
+     * reflected, whatever the state of its own closure.
+     */
+    private void addTransitivePrincipals(Authorizable authorizable, Set<String> memberOfSet) {
+        for (String principal : authorizable.getPrincipals()) {
+            if (Group.EVERYONE.equals(principal)) {
+                continue;
+            }
+            try {
+                Authorizable group = authorizableManager.findAuthorizable(principal);
+                if (group instanceof Group) {
+                    String[] principalClosure = group.getPrincipalClosure();
+                    if (principalClosure != null) {
+                        Collections.addAll(memberOfSet, principalClosure);
+                    } else {
+                        memberOfSet.addAll(Arrays.asList(group.getPrincipals()));
+                        for (Iterator<Group> gi = group.memberOf(authorizableManager); gi
+                                .hasNext();) {
+                            memberOfSet.add(gi.next().getId());
+                        }
+                    }
+                }
+            } catch (AccessDeniedException e) {
+                LOGGER.debug(e.getMessage(), e);
+            } catch (StorageClientException e) {
+                LOGGER.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+
+    /**
+     * @return the ids of the authorizable and of its principals, for
+     *         evaluating compiled ACLs.
+     */
+    private int[] getPrincipalIds(Authorizable authorizable) {
+        String k = authorizable.getId();
+        int[] principalIds = principalIdCache.get(k);
+        if (principalIds == null) {
+            String[] principals = getPrincipals(authorizable);
+            String[] withId = new String[principals.length + 1];
+            withId[0] = k;
+            System.arraycopy(principals, 0, withId, 1, principals.length);
+            principalIds = CompiledAcl.getPrincipalIds(withId);
+            principalIdCache.put(k, principalIds);
+        }
+        return principalIds;
+    }
+
+    private Map<String, CompiledAcl> getCompiledAcls() {
+        if (compiledPermissions != null) {
+            return compiledPermissions.getCompiledAcls();
+        }
+        return compiledAcls;
+    }
+
+    private String getFingerprint(Authorizable authorizable) {
+        String k = authorizable.getId();
+        String fingerprint = fingerprints.get(k);
+        if (fingerprint == null) {
+            fingerprint = CompiledPermissionCache.getFingerprint(k, getPrincipals(authorizable));
+            fingerprints.put(k, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Forget the principals and permissions of authorizables whose group
+     * membership has changed.
+     *
+     * @param authorizableIds
+     *            the authorizables that have been added to or removed from a
+     *            group.
+     */
+    public void invalidateMembership(String... authorizableIds) {
+        // membership is transitive, so anything this session knows may have
+        // changed.
+        cache.clear();
+        principalCache.clear();
+        principalIdCache.clear();
+        fingerprints.clear();
+        if (compiledPermissions != null) {
+            for (String authorizableId : authorizableIds) {
+                compiledPermissions.invalidateAuthorizable(authorizableId);
+            }
+        }
+    }
+
+    /**
+     * @param compiledPermissions
+     *            the cache of compiled permissions shared with other sessions,
+     *            if null permissions are only cached by this session.
+     */
+    public void setCompiledPermissionCache(CompiledPermissionCache compiledPermissions) {
+        this.compiledPermissions = compiledPermissions;
+    }
 
     private int toInt(Object object) {
         if ( object instanceof Integer ) {
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An ACL in a form that is quick to evaluate. Principals are interned to int
+ * ids and the ACEs are held in arrays ordered by principal id, so the ACEs
+ * that apply to a set of principals are found by searching ints rather than
+ * by building and looking up a key for every principal of the user.
+ *
+ * A compiled ACL remembers the row it was compiled from. While the shared ACL
+ * cache returns the same row the compiled form is reused; a new row, after a
+ * change or an eviction, is compiled again.
+ */
+final class CompiledAcl {
+
+    private static final ConcurrentHashMap<String, Integer> PRINCIPAL_IDS = new ConcurrentHashMap<String, Integer>();
+    private static final AtomicInteger NEXT_PRINCIPAL_ID = new AtomicInteger();
+
+    private final Map<String, Object> source;
+    /**
+     * principal ids in ascending order.
+     */
+    private final int[] principals;
+    private final int[] granted;
+    private final int[] denied;
+    private final int everyoneGranted;
+    private final int everyoneDenied;
+
+    private CompiledAcl(Map<String, Object> source) {
+        this.source = source;
+        TreeMap<Integer, int[]> aces = new TreeMap<Integer, int[]>();
+        for (Entry<String, Object> e : source.entrySet()) {
+            String key = e.getKey();
+            boolean grant = AclModification.isGrant(key);
+            if ((grant || AclModification.isDeny(key)) && e.getValue() instanceof Integer) {
+                String principal = AclModification.getPrincipal(key);
+                if (principal != null) {
+                    int id = getPrincipalId(principal);
+                    int[] ace = aces.get(id);
+                    if (ace == null) {
+                        ace = new int[2];
+                        aces.put(id, ace);
+                    }
+                    ace[grant ? 0 : 1] = (Integer) e.getValue();
+                }
+            }
+        }
+        principals = new int[aces.size()];
+        granted = new int[aces.size()];
+        denied = new int[aces.size()];
+        int i = 0;
+        for (Entry<Integer, int[]> ace : aces.entrySet()) {
+            principals[i] = ace.getKey();
+            granted[i] = ace.getValue()[0];
+            denied[i] = ace.getValue()[1];
+            i++;
+        }
+        int[] everyone = aces.get(getPrincipalId(Group.EVERYONE));
+        everyoneGranted = (everyone == null) ? 0 : everyone[0];
+        everyoneDenied = (everyone == null) ? 0 : everyone[1];
+    }
+
+    /**
+     * @param compiledAcls
+     *            compiled ACLs keyed by ACL key.
+     * @param aclKey
+     *            the key of the ACL.
+     * @param acl
+     *            the ACL row.
+     * @return the compiled form of the row, compiled and added to compiledAcls
+     *         if not already there.
+     */
+    static CompiledAcl get(Map<String, CompiledAcl> compiledAcls, String aclKey,
+            Map<String, Object> acl) {
+        CompiledAcl compiledAcl = compiledAcls.get(aclKey);
+        if (compiledAcl == null || compiledAcl.source != acl) {
+            compiledAcl = new CompiledAcl(acl);
+            compiledAcls.put(aclKey, compiledAcl);
+        }
+        return compiledAcl;
+    }
+
+    /**
+     * @return the id a principal is known by in compiled ACLs. Ids are never
+     *         reused.
+     */
+    static int getPrincipalId(String principal) {
+        Integer id = PRINCIPAL_IDS.get(principal);
+        if (id == null) {
+            Integer newId = NEXT_PRINCIPAL_ID.getAndIncrement();
+            id = PRINCIPAL_IDS.putIfAbsent(principal, newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return the ids of the principals in ascending order, without
+     *         duplicates, for use with {@link #getGranted(int[])} and
+     *         {@link #getDenied(int[])}.
+     */
+    static int[] getPrincipalIds(String[] principals) {
+        int[] ids = new int[principals.length];
+        for (int i = 0; i < principals.length; i++) {
+            ids[i] = getPrincipalId(principals[i]);
+        }
+        Arrays.sort(ids);
+        int n = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (n == 0 || ids[n - 1] != ids[i]) {
+                ids[n++] = ids[i];
+            }
+        }
+        if (n == ids.length) {
+            return ids;
+        }
+        int[] unique = new int[n];
+        System.arraycopy(ids, 0, unique, 0, n);
+        return unique;
+    }
+
+    /**
+     * @param principalIds
+     *            principal ids from {@link #getPrincipalIds(String[])}.
+     * @return the permissions granted to any of the principals.
+     */
+    int getGranted(int[] principalIds) {
+        int bits = 0;
+        for (int i = 0; i < principals.length; i++) {
+            if (Arrays.binarySearch(principalIds, principals[i]) >= 0) {
+                bits |= granted[i];
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * @param principalIds
+     *            principal ids from {@link #getPrincipalIds(String[])}.
+     * @return the permissions denied to any of the principals.
+     */
+    int getDenied(int[] principalIds) {
+        int bits = 0;
+        for (int i = 0; i < principals.length; i++) {
+            if (Arrays.binarySearch(principalIds, principals[i]) >= 0) {
+                bits |= denied[i];
+            }
+        }
+        return bits;
+    }
+
+    int getEveryoneGranted() {
+        return everyoneGranted;
+    }
+
+    int getEveryoneDenied() {
+        return everyoneDenied;
+    }
+}
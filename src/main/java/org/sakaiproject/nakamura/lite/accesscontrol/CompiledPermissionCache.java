@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiled permissions, the granted and denied bitmaps for a set of
+ * principals on an object, shared by all the sessions of a repository so that
+ * a new session does not have to compile the ACLs from the object up to the
+ * root again.
+ *
+ * Entries are keyed by a fingerprint of the principal set, the object type
+ * and the path. An entry is removed when the ACL of its path or of any
+ * ancestor of its path changes, and when the membership of the authorizable
+ * it was compiled for changes. Because the principal set is part of the key,
+ * a session that sees a different set of principals never uses an entry
+ * compiled for an old set. The cache is bounded and evicts the least recently
+ * used entries.
+ */
+public class CompiledPermissionCache {
+
+    public static final int DEFAULT_SIZE = 10000;
+
+    /**
+     * Separates the authorizable id from the hash of its principals in a
+     * fingerprint.
+     */
+    private static final char FINGERPRINT_SEPARATOR = ':';
+
+    private static final class Key {
+        private final String fingerprint;
+        private final String objectType;
+        private final String path;
+        private final int hash;
+
+        private Key(String fingerprint, String objectType, String path) {
+            this.fingerprint = fingerprint;
+            this.objectType = objectType;
+            this.path = path;
+            this.hash = (fingerprint.hashCode() * 31 + objectType.hashCode()) * 31
+                    + path.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && path.equals(other.path)
+                    && fingerprint.equals(other.fingerprint)
+                    && objectType.equals(other.objectType);
+        }
+    }
+
+    private final ConcurrentLRUMap<Key, int[]> permissions;
+    /**
+     * ACLs in compiled form, keyed by ACL key.
+     */
+    private final ConcurrentLRUMap<String, CompiledAcl> acls;
+    /**
+     * Counts invalidations, so that a permission compiled from ACLs that
+     * changed while it was being compiled is not cached.
+     */
+    private final AtomicLong modifications = new AtomicLong();
+
+    public CompiledPermissionCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size
+     *            the maximum number of compiled permissions kept.
+     */
+    public CompiledPermissionCache(int size) {
+        permissions = new ConcurrentLRUMap<Key, int[]>(size);
+        acls = new ConcurrentLRUMap<String, CompiledAcl>(size);
+    }
+
+    /**
+     * @param authorizableId
+     *            the id of the authorizable the permissions are compiled for.
+     * @param principals
+     *            the principals of the authorizable, in any order.
+     * @return a fingerprint identifying the authorizable and its principal
+     *         set.
+     */
+    public static String getFingerprint(String authorizableId, String[] principals) {
+        String[] sorted = principals.clone();
+        Arrays.sort(sorted);
+        StringBuilder sb = new StringBuilder();
+        for (String principal : sorted) {
+            sb.append(principal).append('\n');
+        }
+        return authorizableId + FINGERPRINT_SEPARATOR + StorageClientUtils.insecureHash(sb.toString());
+    }
+
+    /**
+     * @return a value to pass to
+     *         {@link #put(String, String, String, int[], long)}, read before
+     *         any of the ACLs used to compile the permission are read.
+     */
+    public long getModificationCount() {
+        return modifications.get();
+    }
+
+    /**
+     * @return the compiled granted and denied bitmaps, or null if not cached.
+     *         The array is shared and must not be modified.
+     */
+    public int[] get(String fingerprint, String objectType, String path) {
+        return permissions.get(new Key(fingerprint, objectType, path));
+    }
+
+    /**
+     * Cache a compiled permission, unless an ACL or membership has been
+     * invalidated since modificationCount was read.
+     *
+     * @param permission
+     *            the granted and denied bitmaps, which must not be modified
+     *            afterwards.
+     * @param modificationCount
+     *            the value of {@link #getModificationCount()} before the ACLs
+     *            were read.
+     */
+    public void put(String fingerprint, String objectType, String path, int[] permission,
+            long modificationCount) {
+        if (modifications.get() != modificationCount) {
+            return;
+        }
+        Key key = new Key(fingerprint, objectType, path);
+        permissions.put(key, permission);
+        // an invalidation that scanned the cache before the put would not
+        // have seen the entry.
+        if (modifications.get() != modificationCount) {
+            permissions.remove(key);
+        }
+    }
+
+    /**
+     * Remove the permissions on a path and on every object below it, called
+     * when the ACL of the path changes.
+     */
+    public void invalidate(String objectType, String path) {
+        modifications.incrementAndGet();
+        boolean root = StorageClientUtils.isRoot(path);
+        String prefix = path.endsWith("/") ? path : path + "/";
+        for (Key key : permissions.keySet()) {
+            if (key.objectType.equals(objectType)
+                    && (root || key.path.equals(path) || key.path.startsWith(prefix))) {
+                permissions.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Remove the permissions compiled for an authorizable, called when its
+     * membership changes.
+     */
+    public void invalidateAuthorizable(String authorizableId) {
+        modifications.incrementAndGet();
+        String prefix = authorizableId + FINGERPRINT_SEPARATOR;
+        for (Key key : permissions.keySet()) {
+            // ids may contain the separator, the hash never does.
+            if (key.fingerprint.startsWith(prefix)
+                    && key.fingerprint.indexOf(FINGERPRINT_SEPARATOR, prefix.length()) < 0) {
+                permissions.remove(key);
+            }
+        }
+    }
+
+    public void clear() {
+        modifications.incrementAndGet();
+        permissions.clear();
+        acls.clear();
+    }
+
+    /**
+     * @return the compiled ACLs shared by the sessions, see
+     *         {@link CompiledAcl#get(Map, String, Map)}.
+     */
+    Map<String, CompiledAcl> getCompiledAcls() {
+        return acls;
+    }
+
+    public int size() {
+        return permissions.size();
+    }
+
+    public long getEvictionCount() {
+        return permissions.getEvictionCount();
+    }
+}
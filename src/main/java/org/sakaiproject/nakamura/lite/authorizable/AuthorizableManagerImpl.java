@@ -22,14 +22,15 @@ import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.StoreListener;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Authenticator;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
@@ -46,9 +47,12 @@ import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 /**
@@ -61,13 +65,19 @@ import java.util.Set;
 public class AuthorizableManagerImpl extends CachingManager implements AuthorizableManager {
 
     private static final Set<String> FILTER_ON_UPDATE = ImmutableSet.of(Authorizable.ID_FIELD,
-            Authorizable.PASSWORD_FIELD);
+            Authorizable.PASSWORD_FIELD, Authorizable.PRINCIPAL_CLOSURE_FIELD);
     private static final Set<String> FILTER_ON_CREATE = ImmutableSet.of(Authorizable.ID_FIELD,
-            Authorizable.PASSWORD_FIELD);
+            Authorizable.PASSWORD_FIELD, Authorizable.PRINCIPAL_CLOSURE_FIELD);
     private static final Logger LOGGER = LoggerFactory.getLogger(AuthorizableManagerImpl.class);
+    /**
+     * The number of times principal closures are computed while the
+     * membership they were computed from keeps changing, before they are
+     * removed.
+     */
+    private static final int MAX_PRINCIPAL_CLOSURE_ATTEMPTS = 3;
     private String currentUserId;
     private StorageClient client;
-    private AccessControlManager accessControlManager;
+    private AccessControlManagerImpl accessControlManager;
     private String keySpace;
     private String authorizableColumnFamily;
     private User thisUser;
@@ -79,7 +89,7 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
             Configuration configuration, AccessControlManagerImpl accessControlManager,
             Map<String, CacheHolder> sharedCache, StoreListener storeListener) throws StorageClientException,
             AccessDeniedException {
-        super(client, sharedCache);
+        super(client, sharedCache, "authorizable");
         this.currentUserId = currentUser.getId();
         if (currentUserId == null) {
             throw new RuntimeException("Current User ID shoud not be null");
@@ -110,8 +120,45 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                     Permissions.CAN_READ);
         }
 
-        Map<String, Object> authorizableMap = getCached(keySpace, authorizableColumnFamily,
-                authorizableId);
+        return toAuthorizable(getCached(keySpace, authorizableColumnFamily, authorizableId));
+    }
+
+    /**
+     * Find a number of authorizables, loading those that are not cached in one
+     * operation.
+     *
+     * @param authorizableIds
+     * @return the authorizables keyed by id, ids that don't exist map to null.
+     *         Ids that can't be read are absent.
+     * @throws StorageClientException
+     */
+    private Map<String, Authorizable> findAuthorizables(String[] authorizableIds)
+            throws StorageClientException {
+        Map<String, Authorizable> authorizables = Maps.newHashMap();
+        List<String> toLoad = Lists.newArrayList();
+        for (String authorizableId : authorizableIds) {
+            if (Group.EVERYONE.equals(authorizableId)) {
+                authorizables.put(authorizableId, Group.EVERYONE_GROUP);
+            } else if (this.currentUserId.equals(authorizableId)) {
+                toLoad.add(authorizableId);
+            } else {
+                try {
+                    accessControlManager.check(Security.ZONE_AUTHORIZABLES, authorizableId,
+                            Permissions.CAN_READ);
+                    toLoad.add(authorizableId);
+                } catch (AccessDeniedException e) {
+                    LOGGER.debug("Cant read {} ", authorizableId);
+                }
+            }
+        }
+        for (Entry<String, Map<String, Object>> e : getCachedAll(keySpace,
+                authorizableColumnFamily, toLoad).entrySet()) {
+            authorizables.put(e.getKey(), toAuthorizable(e.getValue()));
+        }
+        return authorizables;
+    }
+
+    private Authorizable toAuthorizable(Map<String, Object> authorizableMap) {
         if (authorizableMap == null || authorizableMap.isEmpty()) {
             return null;
         }
@@ -156,110 +203,155 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
         List<String> attributes = Lists.newArrayList();
         String[] membersAdded = null;
         String[] membersRemoved = null;
+        List<String> principalClosureIds = Lists.newArrayList();
+        PrincipalClosureUpdate closureUpdate = null;
+
+        boolean wasNew = authorizable.isNew();
+        Map<String, Object> beforeUpdateProperties = authorizable.getOriginalProperties();
 
-        if (authorizable instanceof Group) {
-            type = "type:group";
-            Group group = (Group) authorizable;
-            membersAdded = group.getMembersAdded();
-            Authorizable[] newMembers = new Authorizable[membersAdded.length];
-            int i = 0;
-            for (String newMember : membersAdded) {
+        // the members and the group are written together.
+        startBatch();
+        boolean committed = false;
+        try {
+            if (authorizable instanceof Group) {
+                type = "type:group";
+                Group group = (Group) authorizable;
+                membersAdded = group.getMembersAdded();
+                membersRemoved = group.getMembersRemoved();
+                // load all the members being changed in one operation.
+                Map<String, Authorizable> members = Maps.newHashMap();
+                String[] changedMembers = new String[membersAdded.length + membersRemoved.length];
+                System.arraycopy(membersAdded, 0, changedMembers, 0, membersAdded.length);
+                System.arraycopy(membersRemoved, 0, changedMembers, membersAdded.length,
+                        membersRemoved.length);
                 try {
-                    newMembers[i] = findAuthorizable(newMember);
-                    // members that dont exist or cant be read must be removed.
-                    if (newMembers[i] == null) {
-                        LOGGER.warn("===================== Added member {} does not exist, and had been removed from the list to be added",newMember );
-                        group.removeMember(newMember);
-                    } else if (isCyclicMembership(id, newMembers[i])) {
-                        LOGGER.warn("Member {} would create circular group membership and has been removed from the list to be added", newMember);
-                        newMembers[i] = null;
+                    members = findAuthorizables(changedMembers);
+                } catch (StorageClientException e) {
+                    LOGGER.warn("Cant read members {} ", e.getMessage());
+                }
+                Authorizable[] newMembers = new Authorizable[membersAdded.length];
+                int i = 0;
+                for (String newMember : membersAdded) {
+                    if (!members.containsKey(newMember)) {
                         group.removeMember(newMember);
+                        LOGGER.warn("Cant read member {} ", newMember);
+                    } else {
+                        newMembers[i] = members.get(newMember);
+                        // members that dont exist or cant be read must be removed.
+                        if (newMembers[i] == null) {
+                            LOGGER.warn("===================== Added member {} does not exist, and had been removed from the list to be added",newMember );
+                            group.removeMember(newMember);
+                        } else if (isCyclicMembership(id, newMembers[i])) {
+                            LOGGER.warn("Member {} would create circular group membership and has been removed from the list to be added", newMember);
+                            newMembers[i] = null;
+                            group.removeMember(newMember);
+                        }
                     }
-                } catch (AccessDeniedException e) {
-                    group.removeMember(newMember);
-                    LOGGER.warn("Cant read member {} ", newMember);
-                } catch (StorageClientException e) {
-                    group.removeMember(newMember);
-                    LOGGER.warn("Cant read member {} ", newMember);
+                    i++;
                 }
-                i++;
-            }
-            i = 0;
-            membersRemoved = group.getMembersRemoved();
-            Authorizable[] retiredMembers = new Authorizable[membersRemoved.length];
-            for (String retiredMember : membersRemoved) {
-                try {
+                i = 0;
+                Authorizable[] retiredMembers = new Authorizable[membersRemoved.length];
+                for (String retiredMember : membersRemoved) {
                     // members that dont exist require no action
-                    retiredMembers[i] = findAuthorizable(retiredMember);
-                } catch (AccessDeniedException e) {
-                    LOGGER.warn("Cant read member {} wont be retrired ", retiredMember);
-                } catch (StorageClientException e) {
-                    LOGGER.warn("Cant read member {} wont be retired", retiredMember);
-                }
-                i++;
+                    retiredMembers[i] = members.get(retiredMember);
+                    if (!members.containsKey(retiredMember)) {
+                        LOGGER.warn("Cant read member {} wont be retired", retiredMember);
+                    }
+                    i++;
 
-            }
+                }
 
-            String membersAddedCsv = StringUtils.join(membersAdded, ',');
-            String membersRemovedCsv = StringUtils.join(membersRemoved, ',');
-            LOGGER.debug("Membership Change added [{}] removed [{}] ", membersAddedCsv, membersRemovedCsv);
-            int changes = 0;
-            // there is now a sparse list of authorizables, that need changing
-            for (Authorizable newMember : newMembers) {
-                if (newMember != null) {
-                    newMember.addPrincipal(group.getId());
-                    if (newMember.isModified()) {
-                        Map<String, Object> encodedProperties = StorageClientUtils
-                                .getFilteredAndEcodedMap(newMember.getPropertiesForUpdate(),
-                                        FILTER_ON_UPDATE);
-                        putCached(keySpace, authorizableColumnFamily, newMember.getId(),
-                                encodedProperties, newMember.isNew());
-                        LOGGER.debug("Updated {} with principal {} {} ",new Object[]{newMember.getId(), group.getId(), encodedProperties});
-                        findAuthorizable(newMember.getId());
-                        changes++;
-                    } else {
-                        LOGGER.debug("New Member {} already had group principal {} ",
-                                newMember.getId(), authorizable.getId());
+                String membersAddedCsv = StringUtils.join(membersAdded, ',');
+                String membersRemovedCsv = StringUtils.join(membersRemoved, ',');
+                LOGGER.debug("Membership Change added [{}] removed [{}] ", membersAddedCsv, membersRemovedCsv);
+                int changes = 0;
+                // there is now a sparse list of authorizables, that need changing
+                for (Authorizable newMember : newMembers) {
+                    if (newMember != null) {
+                        newMember.addPrincipal(group.getId());
+                        if (newMember.isModified()) {
+                            Map<String, Object> encodedProperties = StorageClientUtils
+                                    .getFilteredAndEcodedMap(newMember.getPropertiesForUpdate(),
+                                            FILTER_ON_UPDATE);
+                            putCached(keySpace, authorizableColumnFamily, newMember.getId(),
+                                    encodedProperties, newMember.isNew());
+                            LOGGER.debug("Updated {} with principal {} {} ",new Object[]{newMember.getId(), group.getId(), encodedProperties});
+                            findAuthorizable(newMember.getId());
+                            changes++;
+                        } else {
+                            LOGGER.debug("New Member {} already had group principal {} ",
+                                    newMember.getId(), authorizable.getId());
+                        }
                     }
                 }
-            }
-            for (Authorizable retiredMember : retiredMembers) {
-                if (retiredMember != null) {
-                    retiredMember.removePrincipal(group.getId());
-                    if (retiredMember.isModified()) {
-                        Map<String, Object> encodedProperties = StorageClientUtils
-                                .getFilteredAndEcodedMap(retiredMember.getPropertiesForUpdate(),
-                                        FILTER_ON_UPDATE);
-                        putCached(keySpace, authorizableColumnFamily, retiredMember.getId(),
-                                encodedProperties, retiredMember.isNew());
-                        changes++;
-                        LOGGER.debug("Update {} and removed principal {} ",retiredMember.getId(), group.getId());
-                    } else {
-                        LOGGER.debug("Retired Member {} didnt have group principal {} ",
-                                retiredMember.getId(), authorizable.getId());
+                for (Authorizable retiredMember : retiredMembers) {
+                    if (retiredMember != null) {
+                        retiredMember.removePrincipal(group.getId());
+                        if (retiredMember.isModified()) {
+                            Map<String, Object> encodedProperties = StorageClientUtils
+                                    .getFilteredAndEcodedMap(retiredMember.getPropertiesForUpdate(),
+                                            FILTER_ON_UPDATE);
+                            putCached(keySpace, authorizableColumnFamily, retiredMember.getId(),
+                                    encodedProperties, retiredMember.isNew());
+                            changes++;
+                            LOGGER.debug("Update {} and removed principal {} ",retiredMember.getId(), group.getId());
+                        } else {
+                            LOGGER.debug("Retired Member {} didnt have group principal {} ",
+                                    retiredMember.getId(), authorizable.getId());
+                        }
                     }
                 }
+                LOGGER.debug(" Finished Updating other principals, made {} changes, Saving Changes to {} ", changes, id);
+                if (changes > 0) {
+                    Collections.addAll(principalClosureIds, changedMembers);
+                }
+
+                // if there were added or removed members, send them out as event properties for
+                // external integration
+                if (membersAdded.length > 0) {
+                  attributes.add("added:" +  membersAddedCsv);
+                }
+                if (membersRemoved.length > 0) {
+                  attributes.add("removed:" +  membersRemovedCsv);
+                }
+            }
+            attributes.add(type);
+            // a group without a closure, new or with its closure removed,
+            // gets one when it is next updated.
+            if (authorizable.isPrincipalsModified()
+                    || (authorizable instanceof Group && authorizable.getPrincipalClosure() == null)) {
+                principalClosureIds.add(id);
             }
-            LOGGER.debug(" Finished Updating other principals, made {} changes, Saving Changes to {} ", changes, id);
 
-            // if there were added or removed members, send them out as event properties for
-            // external integration
-            if (membersAdded.length > 0) {
-              attributes.add("added:" +  membersAddedCsv);
+            Map<String, Object> encodedProperties = StorageClientUtils.getFilteredAndEcodedMap(
+                    authorizable.getPropertiesForUpdate(), FILTER_ON_UPDATE);
+            encodedProperties.put(Authorizable.LASTMODIFIED_FIELD,System.currentTimeMillis());
+            encodedProperties.put(Authorizable.LASTMODIFIED_BY_FIELD,accessControlManager.getCurrentUserId());
+            putCached(keySpace, authorizableColumnFamily, id, encodedProperties, authorizable.isNew());
+            if (!principalClosureIds.isEmpty()) {
+                closureUpdate = new PrincipalClosureUpdate(
+                        principalClosureIds.toArray(new String[principalClosureIds.size()]), false);
+                writePrincipalClosures(closureUpdate);
             }
-            if (membersRemoved.length > 0) {
-              attributes.add("removed:" +  membersRemovedCsv);
+            commitBatch();
+            committed = true;
+        } finally {
+            if (!committed) {
+                abortBatch();
             }
         }
-        attributes.add(type);
-        boolean wasNew = authorizable.isNew();
-        Map<String, Object> beforeUpdateProperties = authorizable.getOriginalProperties();
-
-        Map<String, Object> encodedProperties = StorageClientUtils.getFilteredAndEcodedMap(
-                authorizable.getPropertiesForUpdate(), FILTER_ON_UPDATE);
-        encodedProperties.put(Authorizable.LASTMODIFIED_FIELD,System.currentTimeMillis());
-        encodedProperties.put(Authorizable.LASTMODIFIED_BY_FIELD,accessControlManager.getCurrentUserId());
-        putCached(keySpace, authorizableColumnFamily, id, encodedProperties, authorizable.isNew());
+        Set<String> changedMembers = Sets.newHashSet(principalClosureIds);
+        if (membersAdded != null) {
+            Collections.addAll(changedMembers, membersAdded);
+            Collections.addAll(changedMembers, membersRemoved);
+        }
+        if (closureUpdate != null) {
+            changedMembers.addAll(checkPrincipalClosures(closureUpdate));
+        }
+        if (!changedMembers.isEmpty()) {
+            accessControlManager.invalidateMembership(changedMembers
+                    .toArray(new String[changedMembers.size()]));
+        }
 
         authorizable.reset(getCached(keySpace, authorizableColumnFamily, id));
 
@@ -355,8 +447,33 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
         accessControlManager.check(Security.ZONE_ADMIN, authorizableId, Permissions.CAN_DELETE);
         Authorizable authorizable = findAuthorizable(authorizableId);
         if (authorizable != null){
-            removeFromCache(keySpace, authorizableColumnFamily, authorizableId);
-            client.remove(keySpace, authorizableColumnFamily, authorizableId);
+            PrincipalClosureUpdate closureUpdate = null;
+            // the row and the closures of its members are written together.
+            startBatch();
+            boolean committed = false;
+            try {
+                removeFromCache(keySpace, authorizableColumnFamily, authorizableId);
+                client.remove(keySpace, authorizableColumnFamily, authorizableId);
+                if (authorizable instanceof Group) {
+                    // the members keep the id as a principal, but no longer
+                    // have the groups of the deleted group.
+                    closureUpdate = new PrincipalClosureUpdate(
+                            ((Group) authorizable).getMembers(), false);
+                    writePrincipalClosures(closureUpdate);
+                }
+                commitBatch();
+                committed = true;
+            } finally {
+                if (!committed) {
+                    abortBatch();
+                }
+            }
+            if (closureUpdate != null) {
+                Set<String> changedMembers = Sets.newHashSet(closureUpdate.changedIds);
+                changedMembers.addAll(checkPrincipalClosures(closureUpdate));
+                accessControlManager.invalidateMembership(changedMembers
+                        .toArray(new String[changedMembers.size()]));
+            }
             storeListener.onDelete(Security.ZONE_AUTHORIZABLES, authorizableId, accessControlManager.getCurrentUserId(), authorizable.getOriginalProperties());
         }
     }
@@ -476,6 +593,218 @@ public class AuthorizableManagerImpl extends CachingManager implements Authoriza
                         .get(Authorizable.AUTHORIZABLE_TYPE_FIELD));
     }
 
+    /**
+     * Recompute the principal closures of groups. Only groups hold a closure,
+     * the principals of a user are its own plus the closures of the groups it
+     * is directly a member of, so a membership change never rewrites the rows
+     * of users.
+     *
+     * @param groupIds
+     *            the groups to rebuild the closures of, the closures of groups
+     *            that are members of them, directly or indirectly, are rebuilt
+     *            too.
+     * @throws AccessDeniedException
+     * @throws StorageClientException
+     */
+    public void rebuildPrincipalClosures(String... groupIds) throws AccessDeniedException,
+            StorageClientException {
+        checkOpen();
+        for (String groupId : groupIds) {
+            accessControlManager.check(Security.ZONE_AUTHORIZABLES, groupId,
+                    Permissions.CAN_WRITE);
+        }
+        PrincipalClosureUpdate update = new PrincipalClosureUpdate(groupIds, true);
+        startBatch();
+        boolean committed = false;
+        try {
+            writePrincipalClosures(update);
+            commitBatch();
+            committed = true;
+        } finally {
+            if (!committed) {
+                abortBatch();
+            }
+        }
+        List<String> changed = checkPrincipalClosures(update);
+        if (!changed.isEmpty()) {
+            accessControlManager.invalidateMembership(changed.toArray(new String[changed
+                    .size()]));
+        }
+    }
+
+    /**
+     * The state of one computation of principal closures: the groups whose
+     * closures are recomputed, and the principals and stored closures they were
+     * computed from, so that a concurrent membership change can be detected
+     * once the closures have been committed.
+     */
+    private static final class PrincipalClosureUpdate {
+        private final String[] changedIds;
+        /**
+         * if true rows are read from the store and the stored closures of
+         * groups above the change are not trusted.
+         */
+        private final boolean rebuild;
+        private final Map<String, Authorizable> affected = Maps.newLinkedHashMap();
+        private final Map<String, Set<String>> principalClosures = Maps.newHashMap();
+        private final Map<String, String> principalsRead = Maps.newHashMap();
+        private final Map<String, String> closuresRead = Maps.newHashMap();
+        private final List<String> changed = Lists.newArrayList();
+
+        private PrincipalClosureUpdate(String[] changedIds, boolean rebuild) {
+            this.changedIds = changedIds;
+            this.rebuild = rebuild;
+        }
+    }
+
+    /**
+     * Write the closures of the groups whose principals have changed or that
+     * have been added to or removed from a group, and of the groups that are
+     * members of them, directly or indirectly. Closures of other groups are
+     * taken from their rows, so only the part of the membership graph below the
+     * change is visited. Closures that differ from the stored ones are written.
+     * This is called inside the batch that changes the membership, so the
+     * closures are committed with it.
+     */
+    private void writePrincipalClosures(PrincipalClosureUpdate update)
+            throws StorageClientException {
+        List<String> toLoad = Lists.newArrayList(update.changedIds);
+        while (!toLoad.isEmpty()) {
+            List<String> members = Lists.newArrayList();
+            for (Map<String, Object> authorizableMap : loadAuthorizables(toLoad, update.rebuild)
+                    .values()) {
+                Authorizable authorizable = toAuthorizable(authorizableMap);
+                if (authorizable instanceof Group
+                        && !update.affected.containsKey(authorizable.getId())) {
+                    update.affected.put(authorizable.getId(), authorizable);
+                    for (String member : ((Group) authorizable).getMembers()) {
+                        if (!update.affected.containsKey(member)) {
+                            members.add(member);
+                        }
+                    }
+                }
+            }
+            toLoad = members;
+        }
+        for (Authorizable group : update.affected.values()) {
+            String principalClosure = StringUtils.join(getPrincipalClosure(group, update), ';');
+            if (!principalClosure.equals(group.getProperty(Authorizable.PRINCIPAL_CLOSURE_FIELD))) {
+                putCached(keySpace, authorizableColumnFamily, group.getId(),
+                        ImmutableMap.of(Authorizable.PRINCIPAL_CLOSURE_FIELD,
+                                (Object) principalClosure), false);
+                update.changed.add(group.getId());
+            }
+        }
+    }
+
+    private Set<String> getPrincipalClosure(Authorizable authorizable,
+            PrincipalClosureUpdate update) throws StorageClientException {
+        String id = authorizable.getId();
+        Set<String> principalClosure = update.principalClosures.get(id);
+        if (principalClosure != null) {
+            return principalClosure;
+        }
+        String[] stored = authorizable.getPrincipalClosure();
+        if (stored != null && !update.rebuild && !update.affected.containsKey(id)) {
+            update.closuresRead.put(id, StringUtils.join(stored, ';'));
+            principalClosure = Sets.newLinkedHashSet(Arrays.asList(stored));
+            update.principalClosures.put(id, principalClosure);
+            return principalClosure;
+        }
+        update.principalsRead.put(id, StringUtils.join(authorizable.getPrincipals(), ';'));
+        principalClosure = Sets.newLinkedHashSet();
+        // recorded before the principals are visited, so a cycle ends here.
+        update.principalClosures.put(id, principalClosure);
+        for (String principal : authorizable.getPrincipals()) {
+            if (!Group.EVERYONE.equals(principal)) {
+                principalClosure.add(principal);
+                Authorizable group = update.affected.get(principal);
+                if (group == null) {
+                    group = toAuthorizable(loadAuthorizables(
+                            Collections.singletonList(principal), update.rebuild).get(principal));
+                }
+                if (group instanceof Group) {
+                    principalClosure.addAll(getPrincipalClosure(group, update));
+                }
+            }
+        }
+        return principalClosure;
+    }
+
+    private Map<String, Map<String, Object>> loadAuthorizables(List<String> authorizableIds,
+            boolean fromStore) throws StorageClientException {
+        if (fromStore) {
+            return client.getAll(keySpace, authorizableColumnFamily, authorizableIds);
+        }
+        return getCachedAll(keySpace, authorizableColumnFamily, authorizableIds);
+    }
+
+    /**
+     * Check, once the batch that wrote them has been committed, that the
+     * principals and closures the closures were computed from are still those
+     * in the store. If a concurrent membership change was missed, the closures
+     * are rebuilt from the store, and if the membership is still changing
+     * after a number of attempts, the closures are removed, so that the
+     * principals of the members are resolved by following their membership
+     * until the closures are rebuilt by the next update of the group or by
+     * {@link #rebuildPrincipalClosures(String...)}.
+     *
+     * @return the ids of the groups whose closures were written or removed.
+     */
+    private List<String> checkPrincipalClosures(PrincipalClosureUpdate update)
+            throws StorageClientException {
+        Set<String> changed = Sets.newLinkedHashSet(update.changed);
+        for (int attempt = 1; isMembershipChanged(update); attempt++) {
+            if (attempt == MAX_PRINCIPAL_CLOSURE_ATTEMPTS) {
+                LOGGER.warn("Membership of {} is still changing after {} attempts to update principal closures, removing the closures of {} ",
+                        new Object[] { Arrays.toString(update.changedIds), attempt,
+                                update.affected.keySet() });
+                for (String groupId : update.affected.keySet()) {
+                    putCached(keySpace, authorizableColumnFamily, groupId, ImmutableMap.of(
+                            Authorizable.PRINCIPAL_CLOSURE_FIELD, (Object) new RemoveProperty()),
+                            false);
+                    changed.add(groupId);
+                }
+                break;
+            }
+            LOGGER.debug("Membership changed while updating principal closures of {}, recomputing ",
+                    Arrays.toString(update.changedIds));
+            update = new PrincipalClosureUpdate(update.changedIds, true);
+            writePrincipalClosures(update);
+            changed.addAll(update.changed);
+        }
+        LOGGER.debug("Updated principal closures of {} ", changed);
+        return Lists.newArrayList(changed);
+    }
+
+    /**
+     * @return true if any of the principals or stored closures that closures
+     *         were computed from are no longer those in the store.
+     */
+    private boolean isMembershipChanged(PrincipalClosureUpdate update)
+            throws StorageClientException {
+        Set<String> ids = Sets.newHashSet(update.principalsRead.keySet());
+        ids.addAll(update.closuresRead.keySet());
+        Map<String, Map<String, Object>> rows = client.getAll(keySpace,
+                authorizableColumnFamily, ids);
+        for (Entry<String, String> e : update.principalsRead.entrySet()) {
+            Authorizable authorizable = toAuthorizable(rows.get(e.getKey()));
+            if (authorizable == null
+                    || !e.getValue().equals(StringUtils.join(authorizable.getPrincipals(), ';'))) {
+                return true;
+            }
+        }
+        for (Entry<String, String> e : update.closuresRead.entrySet()) {
+            Authorizable authorizable = toAuthorizable(rows.get(e.getKey()));
+            String[] stored = authorizable == null ? null : authorizable.getPrincipalClosure();
+            if (stored == null || !e.getValue().equals(StringUtils.join(stored, ';'))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
     private boolean isCyclicMembership(String groupId, Authorizable newMember) {
         if (newMember.isGroup()) {
             Group newGroupMember = (Group) newMember;
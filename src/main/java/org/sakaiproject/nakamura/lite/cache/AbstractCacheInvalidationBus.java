@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.cache;
+
+import com.google.common.collect.Lists;
+
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationBus;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class for invalidation buses. Invalidations are queued and a sender
+ * thread ships them to the other nodes in batches, waiting at most the batch
+ * delay after the first invalidation of a batch. If the queue overflows the
+ * individual keys are dropped and the other nodes are told to invalidate
+ * everything.
+ *
+ * Each message carries a sequence number per sending node, and a node sends
+ * an empty message when it has been idle for a second. A receiver that sees a
+ * gap in a node's sequence has missed invalidations and invalidates
+ * everything, so a dropped message leaves stale entries for at most a second
+ * or so after the sender's next message.
+ */
+public abstract class AbstractCacheInvalidationBus implements CacheInvalidationBus {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(AbstractCacheInvalidationBus.class);
+
+    private static final int MESSAGE_MAGIC = 0x53434932; // SCI2
+
+    public static final long DEFAULT_BATCH_DELAY = 50L;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+    public static final int DEFAULT_MAX_PENDING = 10000;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Set<CacheInvalidationListener> listeners = new CopyOnWriteArraySet<CacheInvalidationListener>();
+    private final AtomicBoolean overflow = new AtomicBoolean();
+    private final AtomicLong sequence = new AtomicLong();
+    /**
+     * The last sequence number received from each node.
+     */
+    private final ConcurrentMap<String, Long> received = new ConcurrentHashMap<String, Long>();
+    private BlockingQueue<String> pending;
+    private long batchDelay = DEFAULT_BATCH_DELAY;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private Thread sender;
+    private volatile boolean running;
+
+    /**
+     * Send a batch of invalidations to the other nodes.
+     *
+     * @param cacheKeys
+     *            the keys to invalidate, empty if all is true.
+     * @param all
+     *            true if the other nodes should invalidate everything.
+     * @throws IOException
+     */
+    protected abstract void send(List<String> cacheKeys, boolean all) throws IOException;
+
+    /**
+     * Start the sender thread.
+     *
+     * @param batchDelay
+     *            maximum time in ms an invalidation waits to be batched.
+     * @param maxBatchSize
+     *            maximum number of keys in a batch.
+     * @param maxPending
+     *            maximum number of keys waiting to be sent before the bus
+     *            falls back to invalidating everything.
+     */
+    protected synchronized void start(long batchDelay, int maxBatchSize, int maxPending) {
+        if (running) {
+            return;
+        }
+        this.batchDelay = batchDelay;
+        this.maxBatchSize = maxBatchSize;
+        this.pending = new LinkedBlockingQueue<String>(maxPending);
+        running = true;
+        sender = new Thread(new Runnable() {
+            public void run() {
+                sendLoop();
+            }
+        }, "Sparse Cache Invalidation Sender " + nodeId);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    protected synchronized void stop() {
+        running = false;
+        if (sender != null) {
+            sender.interrupt();
+            sender = null;
+        }
+    }
+
+    public void invalidate(String cacheKey) {
+        if (!running) {
+            return;
+        }
+        if (!pending.offer(cacheKey)) {
+            overflow.set(true);
+        }
+    }
+
+    public void addListener(CacheInvalidationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CacheInvalidationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the id of this node, messages from this node are ignored on
+     *         receipt.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    private void sendLoop() {
+        BlockingQueue<String> queue = pending;
+        while (running) {
+            try {
+                String first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null && !overflow.get()) {
+                    // a heartbeat, so that receivers notice a lost last message.
+                    send(Lists.<String> newArrayList(), false);
+                    continue;
+                }
+                // let the batch fill, bounding the latency of the first key.
+                Thread.sleep(batchDelay);
+                if (overflow.getAndSet(false)) {
+                    queue.clear();
+                    send(Lists.<String> newArrayList(), true);
+                    continue;
+                }
+                List<String> batch = Lists.newArrayList();
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - 1);
+                send(batch, false);
+                while (queue.size() >= maxBatchSize) {
+                    batch.clear();
+                    queue.drainTo(batch, maxBatchSize);
+                    send(batch, false);
+                }
+            } catch (InterruptedException e) {
+                LOGGER.debug("Cache invalidation sender interrupted ");
+            } catch (IOException e) {
+                // the other nodes have missed some invalidations.
+                LOGGER.warn("Failed to send cache invalidations {} ", e.getMessage());
+                overflow.set(true);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to send cache invalidations {} ", e.getMessage(), e);
+                overflow.set(true);
+            }
+        }
+    }
+
+    /**
+     * Deliver invalidations received from another node to the listeners.
+     *
+     * @param fromNodeId
+     *            the node that sent the invalidations.
+     * @param cacheKeys
+     *            the keys invalidated.
+     * @param all
+     *            true if everything should be invalidated.
+     */
+    protected void receive(String fromNodeId, List<String> cacheKeys, boolean all) {
+        if (nodeId.equals(fromNodeId) || (!all && cacheKeys.isEmpty())) {
+            return;
+        }
+        LOGGER.debug("Received {} invalidations from {} ", cacheKeys.size(), fromNodeId);
+        for (CacheInvalidationListener listener : listeners) {
+            try {
+                if (all) {
+                    listener.invalidateAll();
+                } else {
+                    listener.invalidate(cacheKeys);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Cache invalidation listener failed {} ", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Check a message's sequence number against the last one received from the
+     * node. The first message from a node must be its first message, or
+     * messages were sent before this node was listening.
+     *
+     * @param fromNodeId
+     * @param seq
+     * @return true if messages from the node have been missed.
+     */
+    private boolean isGap(String fromNodeId, long seq) {
+        Long last = received.get(fromNodeId);
+        while (true) {
+            if (last == null) {
+                last = received.putIfAbsent(fromNodeId, seq);
+                if (last == null) {
+                    return seq != 1;
+                }
+            } else if (seq <= last) {
+                // late or duplicate, its keys are still delivered.
+                return false;
+            } else if (received.replace(fromNodeId, last, seq)) {
+                return seq != last + 1;
+            } else {
+                last = received.get(fromNodeId);
+            }
+        }
+    }
+
+    /**
+     * Encode a batch of invalidations as a message with the next sequence
+     * number, each message must be sent once.
+     *
+     * @param cacheKeys
+     * @param all
+     * @return the message bytes.
+     * @throws IOException
+     */
+    protected byte[] encode(List<String> cacheKeys, boolean all) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(MESSAGE_MAGIC);
+        dos.writeUTF(nodeId);
+        dos.writeLong(sequence.incrementAndGet());
+        dos.writeBoolean(all);
+        dos.writeInt(cacheKeys.size());
+        for (String k : cacheKeys) {
+            dos.writeUTF(k);
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Decode a message and deliver it to the listeners.
+     *
+     * @param message
+     * @param offset
+     * @param length
+     * @throws IOException
+     *             if the message is not an invalidation message.
+     */
+    protected void decodeAndReceive(byte[] message, int offset, int length) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(message, offset,
+                length));
+        if (dis.readInt() != MESSAGE_MAGIC) {
+            throw new IOException("Not a cache invalidation message");
+        }
+        String fromNodeId = dis.readUTF();
+        long seq = dis.readLong();
+        boolean all = dis.readBoolean();
+        int n = dis.readInt();
+        List<String> cacheKeys = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+            cacheKeys.add(dis.readUTF());
+        }
+        if (!nodeId.equals(fromNodeId) && isGap(fromNodeId, seq)) {
+            LOGGER.info("Missed cache invalidations from {}, invalidating everything ",
+                    fromNodeId);
+            all = true;
+        }
+        receive(fromNodeId, cacheKeys, all);
+    }
+}
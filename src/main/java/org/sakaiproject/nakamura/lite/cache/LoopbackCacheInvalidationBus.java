@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.cache;
+
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationBus;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * A {@link CacheInvalidationBus} that delivers invalidations to the other buses
+ * in the same group within this JVM. Each bus stands in for a node, which
+ * makes it possible to test several nodes sharing storage in one JVM.
+ */
+public class LoopbackCacheInvalidationBus extends AbstractCacheInvalidationBus {
+
+    private static final ConcurrentMap<String, Set<LoopbackCacheInvalidationBus>> groups = new ConcurrentHashMap<String, Set<LoopbackCacheInvalidationBus>>();
+
+    private final Set<LoopbackCacheInvalidationBus> group;
+
+    public LoopbackCacheInvalidationBus(String groupName) {
+        this(groupName, DEFAULT_BATCH_DELAY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_PENDING);
+    }
+
+    public LoopbackCacheInvalidationBus(String groupName, long batchDelay, int maxBatchSize,
+            int maxPending) {
+        Set<LoopbackCacheInvalidationBus> g = groups.get(groupName);
+        if (g == null) {
+            Set<LoopbackCacheInvalidationBus> ng = new CopyOnWriteArraySet<LoopbackCacheInvalidationBus>();
+            g = groups.putIfAbsent(groupName, ng);
+            if (g == null) {
+                g = ng;
+            }
+        }
+        group = g;
+        group.add(this);
+        start(batchDelay, maxBatchSize, maxPending);
+    }
+
+    /**
+     * Leave the group and stop sending.
+     */
+    public void close() {
+        group.remove(this);
+        stop();
+    }
+
+    @Override
+    protected void send(List<String> cacheKeys, boolean all) throws IOException {
+        // encoded as a node would, so that sequence numbers are checked.
+        byte[] message = encode(cacheKeys, all);
+        for (LoopbackCacheInvalidationBus bus : group) {
+            bus.decodeAndReceive(message, 0, message.length);
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.cache;
+
+import com.google.common.collect.Lists;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationBus;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link CacheInvalidationBus} that sends invalidations to the other nodes
+ * of a cluster using UDP multicast. Delivery is best effort, a receiver that
+ * detects a lost datagram from the sequence numbers invalidates everything.
+ * Disabled unless configured, every node in a cluster must use the same
+ * address and port.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = CacheInvalidationBus.class)
+public class MulticastCacheInvalidationBus extends AbstractCacheInvalidationBus {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(MulticastCacheInvalidationBus.class);
+
+    /**
+     * Keep datagrams well inside the typical MTU limits once fragmented.
+     */
+    private static final int MAX_PAYLOAD = 8192;
+
+    @Property(boolValue = false)
+    private static final String ENABLED = "cache-invalidation-enabled";
+    @Property(value = "239.255.27.1")
+    private static final String MULTICAST_ADDRESS = "multicast-address";
+    @Property(intValue = 45588)
+    private static final String MULTICAST_PORT = "multicast-port";
+    @Property(intValue = 1)
+    private static final String MULTICAST_TTL = "multicast-ttl";
+    @Property(longValue = DEFAULT_BATCH_DELAY)
+    private static final String BATCH_DELAY = "batch-delay";
+    @Property(intValue = DEFAULT_MAX_BATCH_SIZE)
+    private static final String MAX_BATCH_SIZE = "max-batch-size";
+    @Property(intValue = DEFAULT_MAX_PENDING)
+    private static final String MAX_PENDING = "max-pending";
+
+    private MulticastSocket socket;
+    private InetAddress group;
+    private int port;
+    private Thread receiver;
+    private volatile boolean receiving;
+
+    @Activate
+    public void activate(Map<String, Object> properties) throws IOException {
+        if (!StorageClientUtils.getSetting(properties.get(ENABLED), false)) {
+            LOGGER.info("Cache invalidation between nodes is disabled ");
+            return;
+        }
+        group = InetAddress.getByName(StorageClientUtils.getSetting(
+                properties.get(MULTICAST_ADDRESS), "239.255.27.1"));
+        port = StorageClientUtils.getSetting(properties.get(MULTICAST_PORT), 45588);
+        socket = new MulticastSocket(port);
+        socket.setTimeToLive(StorageClientUtils.getSetting(properties.get(MULTICAST_TTL), 1));
+        socket.joinGroup(group);
+        receiving = true;
+        receiver = new Thread(new Runnable() {
+            public void run() {
+                receiveLoop();
+            }
+        }, "Sparse Cache Invalidation Receiver " + getNodeId());
+        receiver.setDaemon(true);
+        receiver.start();
+        start(StorageClientUtils.getSetting(properties.get(BATCH_DELAY), DEFAULT_BATCH_DELAY),
+                StorageClientUtils.getSetting(properties.get(MAX_BATCH_SIZE),
+                        DEFAULT_MAX_BATCH_SIZE), StorageClientUtils.getSetting(
+                        properties.get(MAX_PENDING), DEFAULT_MAX_PENDING));
+        LOGGER.info("Cache invalidation using multicast {}:{} as node {} ", new Object[] { group,
+                port, getNodeId() });
+    }
+
+    @Deactivate
+    public void deactivate(Map<String, Object> properties) {
+        stop();
+        receiving = false;
+        if (socket != null) {
+            try {
+                socket.leaveGroup(group);
+            } catch (IOException e) {
+                LOGGER.debug("Failed to leave multicast group {} ", e.getMessage());
+            }
+            socket.close();
+            socket = null;
+        }
+    }
+
+    @Override
+    protected void send(List<String> cacheKeys, boolean all) throws IOException {
+        if (all || cacheKeys.isEmpty()) {
+            sendPacket(encode(cacheKeys, all));
+            return;
+        }
+        // split the batch so each datagram stays under the payload limit.
+        List<String> chunk = Lists.newArrayList();
+        int size = 0;
+        for (String k : cacheKeys) {
+            int keySize = utfLength(k);
+            if (!chunk.isEmpty() && size + keySize > MAX_PAYLOAD) {
+                sendPacket(encode(chunk, false));
+                chunk.clear();
+                size = 0;
+            }
+            chunk.add(k);
+            size += keySize;
+        }
+        if (!chunk.isEmpty()) {
+            sendPacket(encode(chunk, false));
+        }
+    }
+
+    private int utfLength(String k) throws UnsupportedEncodingException {
+        return k.getBytes("UTF-8").length + 2;
+    }
+
+    private void sendPacket(byte[] message) throws IOException {
+        MulticastSocket s = socket;
+        if (s != null) {
+            s.send(new DatagramPacket(message, message.length, group, port));
+        }
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[65536];
+        while (receiving) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                decodeAndReceive(packet.getData(), packet.getOffset(), packet.getLength());
+            } catch (SocketException e) {
+                if (receiving) {
+                    LOGGER.warn("Cache invalidation receiver failed {} ", e.getMessage());
+                }
+                return;
+            } catch (IOException e) {
+                LOGGER.debug("Ignoring invalid cache invalidation packet {} ", e.getMessage());
+            }
+        }
+    }
+
+}
@@ -10,6 +10,8 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalTokenResolver;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 public class AccessControlManagerTokenWrapper implements AccessControlManager {
@@ -63,6 +65,16 @@ public class AccessControlManagerTokenWrapper implements AccessControlManager {
         }
     }
 
+    public List<String> filter(String objectType, Collection<String> objectPaths,
+            Permission permission) throws StorageClientException {
+        try {
+            delegate.setRequestPrincipalResolver(principalTokenResovler);
+            return delegate.filter(objectType, objectPaths, permission);
+        } finally {
+            delegate.clearRequestPrincipalResolver();
+        }
+    }
+
     public String getCurrentUserId() {
         return delegate.getCurrentUserId();
     }
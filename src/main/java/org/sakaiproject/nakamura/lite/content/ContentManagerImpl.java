@@ -149,6 +149,11 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
                                                                         UUID_FIELD,
                                                                         PATH_FIELD);
 
+    /**
+     * The number of listed or found objects checked for read access together.
+     */
+    private static final int FILTER_BATCH_SIZE = 100;
+
 
     /**
      * Storage Client
@@ -181,7 +186,7 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
 
     public ContentManagerImpl(StorageClient client, AccessControlManager accessControlManager,
             Configuration config,  Map<String, CacheHolder> sharedCache, StoreListener eventListener) {
-        super(client, sharedCache);
+        super(client, sharedCache, "content");
         this.client = client;
         keySpace = config.getKeySpace();
         contentColumnFamily = config.getContentColumnFamily();
@@ -239,8 +244,7 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
 
 
     public Iterator<Content> listChildren(String path) throws StorageClientException {
-        final Iterator<Map<String, Object>> childContent = client.listChildren(keySpace,
-                contentColumnFamily, path);
+        final Iterator<String> childPaths = listChildPaths(path);
         return new PreemptiveIterator<Content>() {
 
             private Content content;
@@ -248,14 +252,9 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
             @Override
             protected boolean internalHasNext() {
                 content = null;
-                while(content == null && childContent.hasNext()) {
+                while(content == null && childPaths.hasNext()) {
                     try {
-                        Map<String, Object> structureMap = childContent.next();
-                        LOGGER.debug("Loaded Next as {} ", structureMap);
-                        if ( structureMap != null && structureMap.size() > 0 ) {
-                            String path = (String) structureMap.get(PATH_FIELD);
-                            content = get(path);
-                        }
+                        content = get(childPaths.next());
                     } catch (AccessDeniedException e) {
                         LOGGER.debug(e.getMessage(),e);
                     } catch (StorageClientException e) {
@@ -275,44 +274,77 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
     public Iterator<String> listChildPaths(final String path) throws StorageClientException {
         final Iterator<Map<String, Object>> childContent = client.listChildren(keySpace,
                 contentColumnFamily, path);
+        return readablePaths(childContent);
+    }
+
+    /**
+     * @param structures
+     *            structure objects, as returned by a listing or a search.
+     * @return the paths of the objects the current user can read. The objects
+     *         are read ahead and checked {@link #FILTER_BATCH_SIZE} at a time
+     *         so that the ACLs they share are only loaded once.
+     */
+    private Iterator<String> readablePaths(final Iterator<Map<String, Object>> structures) {
         return new PreemptiveIterator<String>() {
 
-            private String childPath;
+            private Iterator<String> readable = Collections.<String> emptyList().iterator();
+            private String readablePath;
 
             @Override
             protected boolean internalHasNext() {
-                while(childContent.hasNext()) {
-                    try {
-                        Map<String, Object> structureMap = childContent.next();
-                        LOGGER.debug("Loaded Next child of {} as {} ", path, structureMap);
+                while (!readable.hasNext() && structures.hasNext()) {
+                    List<String> paths = Lists.newArrayList();
+                    while (paths.size() < FILTER_BATCH_SIZE && structures.hasNext()) {
+                        Map<String, Object> structureMap = structures.next();
+                        LOGGER.debug("Loaded Next as {} ", structureMap);
                         if ( structureMap != null && structureMap.size() > 0 ) {
-                            String testChildPath = (String) structureMap.get(PATH_FIELD);
-                                accessControlManager.check(Security.ZONE_CONTENT, testChildPath, Permissions.CAN_READ);
-                                childPath = testChildPath;
-                                // this is not that efficient since it requires the map is
-                                // loaded, at the moment I dont have a way round this with the
-                                // underlying index strucutre.
-                                LOGGER.debug("Got Next Child of {} as {} ", path, childPath);
-                                return true;
+                            paths.add((String) structureMap.get(PATH_FIELD));
                         }
-                    } catch (AccessDeniedException e) {
-                        LOGGER.debug(e.getMessage(),e);
+                    }
+                    try {
+                        readable = accessControlManager.filter(Security.ZONE_CONTENT, paths,
+                                Permissions.CAN_READ).iterator();
                     } catch (StorageClientException e) {
-                        LOGGER.debug(e.getMessage(),e);
+                        // don't lose the whole batch, check each path on its own.
+                        LOGGER.warn("Failed to filter {} paths, checking each path {} ",
+                                paths.size(), e.getMessage());
+                        readable = checkEachPath(paths).iterator();
                     }
                 }
+                if (readable.hasNext()) {
+                    readablePath = readable.next();
+                    return true;
+                }
                 LOGGER.debug("No more");
-                childPath = null;
+                readablePath = null;
                 return false;
             }
 
             @Override
             protected String internalNext() {
-                return childPath;
+                return readablePath;
             }
         };
     }
 
+    /**
+     * @return the paths that can be read, checked one at a time.
+     */
+    private List<String> checkEachPath(List<String> paths) {
+        List<String> readable = Lists.newArrayList();
+        for (String path : paths) {
+            try {
+                accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
+                readable.add(path);
+            } catch (AccessDeniedException e) {
+                LOGGER.debug("Can't read {} ", path);
+            } catch (StorageClientException e) {
+                LOGGER.warn("Failed to check read access to {} {} ", path, e.getMessage());
+            }
+        }
+        return readable;
+    }
+
     public void update(Content excontent) throws AccessDeniedException, StorageClientException {
         checkOpen();
         InternalContent content = (InternalContent) excontent;
@@ -423,6 +455,30 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         }
     }
 
+    public void reindex(String path) throws AccessDeniedException, StorageClientException {
+        checkOpen();
+        accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_WRITE);
+        Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
+        if (structure == null || structure.isEmpty()) {
+            return;
+        }
+        client.reindex(keySpace, contentColumnFamily, path);
+        String uuid = (String) structure.get(STRUCTURE_UUID_FIELD);
+        if (uuid != null) {
+            client.reindex(keySpace, contentColumnFamily, uuid);
+        }
+        // the children are listed before any is reindexed, so the listing is
+        // not left open over the writes.
+        List<String> children = Lists.newArrayList(listChildPaths(path));
+        for (String child : children) {
+            try {
+                reindex(child);
+            } catch (AccessDeniedException e) {
+                LOGGER.debug("Can't reindex {} ", child);
+            }
+        }
+    }
+
     public long writeBody(String path, InputStream in) throws StorageClientException,
             AccessDeniedException, IOException {
         return writeBody(path, in, null);
@@ -593,17 +649,28 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
             }
 
         }
-        // update the content data to reflect the new primary location.
-        putCached(keySpace, contentColumnFamily, idStore,
-                ImmutableMap.of(PATH_FIELD, (Object)to), false);
-
-        // insert the new to Structure and remove the from
-        fromStructure.put(PATH_FIELD, to);
-        putCached(keySpace, contentColumnFamily, to, fromStructure, true);
-
-        // remove the old from.
-        removeFromCache(keySpace, contentColumnFamily, from);
-        client.remove(keySpace, contentColumnFamily, from);
+        // the content and both structure rows change together.
+        startBatch();
+        boolean committed = false;
+        try {
+            // update the content data to reflect the new primary location.
+            putCached(keySpace, contentColumnFamily, idStore,
+                    ImmutableMap.of(PATH_FIELD, (Object)to), false);
+
+            // insert the new to Structure and remove the from
+            fromStructure.put(PATH_FIELD, to);
+            putCached(keySpace, contentColumnFamily, to, fromStructure, true);
+
+            // remove the old from.
+            removeFromCache(keySpace, contentColumnFamily, from);
+            client.remove(keySpace, contentColumnFamily, from);
+            commitBatch();
+            committed = true;
+        } finally {
+            if (!committed) {
+                abortBatch();
+            }
+        }
         eventListener.onDelete(Security.ZONE_CONTENT, from, accessControlManager.getCurrentUserId(), null, "op:move");
         eventListener.onUpdate(Security.ZONE_CONTENT, to, accessControlManager.getCurrentUserId(), true, null, "op:move");
 
@@ -661,16 +728,27 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         // if not a root, modify the new parent location, creating the
         // structured if necessary
         String parent = StorageClientUtils.getParentObjectPath(from);
-        Map<String, Object> parentToStructure = getCached(keySpace, contentColumnFamily, parent);
-        if (parentToStructure == null || parentToStructure.size() == 0) {
-            // create a new parent
-            Content content = new Content(parent, null);
-            update(content);
-        }
+        startBatch();
+        boolean committed = false;
+        try {
+            Map<String, Object> parentToStructure = getCached(keySpace, contentColumnFamily,
+                    parent);
+            if (parentToStructure == null || parentToStructure.size() == 0) {
+                // create a new parent
+                Content content = new Content(parent, null);
+                update(content);
+            }
 
-        // create the new object for the path, pointing to the Object
-        putCached(keySpace, contentColumnFamily, from, ImmutableMap.of(STRUCTURE_UUID_FIELD,
-                idStore, PATH_FIELD, from, LINKED_PATH_FIELD, to), true);
+            // create the new object for the path, pointing to the Object
+            putCached(keySpace, contentColumnFamily, from, ImmutableMap.of(STRUCTURE_UUID_FIELD,
+                    idStore, PATH_FIELD, from, LINKED_PATH_FIELD, to), true);
+            commitBatch();
+            committed = true;
+        } finally {
+            if (!committed) {
+                abortBatch();
+            }
+        }
 
     }
 
@@ -679,7 +757,8 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_WRITE);
         Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
         String contentId = (String)structure.get(STRUCTURE_UUID_FIELD);
-        Map<String, Object> saveVersion = getCached(keySpace, contentColumnFamily, contentId);
+        Map<String, Object> saveVersion = Maps.newHashMap(getCached(keySpace,
+                contentColumnFamily, contentId));
 
         // versionHistoryId is the UUID of the version history for this node.
 
@@ -713,12 +792,22 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
         Object versionNumber = System.currentTimeMillis();
         saveVersion.put(VERSION_NUMBER_FIELD, versionNumber);
 
-        putCached(keySpace, contentColumnFamily, saveVersionId, saveVersion, false);
-        putCached(keySpace, contentColumnFamily, newVersionId, newVersion, true);
-        putCached(keySpace, contentColumnFamily, versionHistoryId,
-                ImmutableMap.of(saveVersionId, versionNumber), true);
-        putCached(keySpace, contentColumnFamily, path,
-                ImmutableMap.of(STRUCTURE_UUID_FIELD, (Object)newVersionId), true);
+        startBatch();
+        boolean committed = false;
+        try {
+            putCached(keySpace, contentColumnFamily, saveVersionId, saveVersion, false);
+            putCached(keySpace, contentColumnFamily, newVersionId, newVersion, true);
+            putCached(keySpace, contentColumnFamily, versionHistoryId,
+                    ImmutableMap.of(saveVersionId, versionNumber), true);
+            putCached(keySpace, contentColumnFamily, path,
+                    ImmutableMap.of(STRUCTURE_UUID_FIELD, (Object)newVersionId), true);
+            commitBatch();
+            committed = true;
+        } finally {
+            if (!committed) {
+                abortBatch();
+            }
+        }
         if ( LOGGER.isDebugEnabled() ) {
             LOGGER.debug("Saved Version History  {} {} ", versionHistoryId,
                     getCached(keySpace, contentColumnFamily, versionHistoryId));
@@ -847,19 +936,15 @@ public class ContentManagerImpl extends CachingManager implements ContentManager
             Iterator<Content> contentResultsIterator = null;
             try {
               final Iterator<Map<String,Object>> clientSearchKeysIterator = client.find(keySpace, contentColumnFamily, finalSearchProperties);
+              final Iterator<String> readablePaths = readablePaths(clientSearchKeysIterator);
               contentResultsIterator = new PreemptiveIterator<Content>() {
                   Content contentResult;
 
                   protected boolean internalHasNext() {
                       contentResult = null;
-                      while (contentResult == null && clientSearchKeysIterator.hasNext()) {
+                      while (contentResult == null && readablePaths.hasNext()) {
                           try {
-                              Map<String, Object> structureMap = clientSearchKeysIterator.next();
-                              LOGGER.debug("Loaded Next as {} ", structureMap);
-                              if ( structureMap != null && structureMap.size() > 0 ) {
-                                  String path = (String) structureMap.get(PATH_FIELD);
-                                  contentResult = get(path);
-                              }
+                              contentResult = get(readablePaths.next());
                           } catch (AccessDeniedException e) {
                               LOGGER.debug(e.getMessage(),e);
                           } catch (StorageClientException e) {
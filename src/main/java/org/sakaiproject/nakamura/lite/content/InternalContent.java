@@ -29,6 +29,7 @@ import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.types.LazyRow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -199,7 +200,7 @@ public class InternalContent {
     /**
      * Map of the content object itself.
      */
-    private ImmutableMap<String, Object> content;
+    private Map<String, Object> content;
     /**
      * Path locating this content object within the overall content structure.
      */
@@ -236,7 +237,7 @@ public class InternalContent {
         if (content == null) {
             content = ImmutableMap.of();
         }
-        this.content = ImmutableMap.copyOf(content);
+        this.content = readOnlyCopy(content);
         this.updatedContent = Maps.newHashMap();
         this.path = path;
         updated = true;
@@ -244,6 +245,18 @@ public class InternalContent {
         readOnly = false;
     }
 
+    /**
+     * @return a read only copy of the map. Rows loaded from storage are already
+     *         read only and are not copied, so that their values are only
+     *         decoded when used.
+     */
+    private static Map<String, Object> readOnlyCopy(Map<String, Object> m) {
+        if (m instanceof LazyRow) {
+            return m;
+        }
+        return ImmutableMap.copyOf(m);
+    }
+
     /**
      * Convert a new content object to an internal version.
      * 
@@ -265,7 +278,7 @@ public class InternalContent {
      */
     public void reset(Map<String, Object> updatedMap) {
         if ( !readOnly ) {
-            this.content = ImmutableMap.copyOf(updatedMap);
+            this.content = readOnlyCopy(updatedMap);
             updatedContent.clear();
             updated = false;
             LOGGER.debug("Reset to {} ",updatedMap);
@@ -26,9 +26,11 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.CachingManager;
 import org.sakaiproject.nakamura.lite.types.StringType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,6 +67,15 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
     @Property(intValue = 0)
     private static final String LONG_STRING_SIZE = "long-string-size";
 
+    @Property(intValue = 10000)
+    private static final String CACHE_MAX_ENTRIES = "cache-max-entries";
+    @Property(longValue = 0)
+    private static final String CACHE_MAX_WEIGHT = "cache-max-weight";
+    @Property(intValue = 16)
+    private static final String CACHE_CONCURRENCY_LEVEL = "cache-concurrency-level";
+    @Property(longValue = 30000)
+    private static final String NEGATIVE_CACHE_TTL = "negative-cache-ttl";
+
     public  static final String DEFAULT_FILE_STORE = "store";
     @Property(value = "store")
     public static final String FS_STORE_BASE_DIR = "store-base-dir";
@@ -78,6 +89,14 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
 
     private GenericObjectPool pool;
 
+    private int cacheMaxEntries;
+
+    private long cacheMaxWeight;
+
+    private int cacheConcurrencyLevel;
+
+    private long negativeCacheTTL;
+
 
     public AbstractClientConnectionPool() {
     }
@@ -117,6 +136,14 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
         // set the maximum size of a string, if this is not 0, strings over this size will become files.
         StringType.setLengthLimit(StorageClientUtils.getSetting(properties.get(LONG_STRING_SIZE),0));
 
+        cacheMaxEntries = StorageClientUtils.getSetting(properties.get(CACHE_MAX_ENTRIES), 10000);
+        cacheMaxWeight = StorageClientUtils.getSetting(properties.get(CACHE_MAX_WEIGHT), 0L);
+        cacheConcurrencyLevel = StorageClientUtils.getSetting(properties.get(CACHE_CONCURRENCY_LEVEL), 16);
+
+        // how long in ms to remember rows that don't exist, 0 to disable.
+        negativeCacheTTL = StorageClientUtils.getSetting(properties.get(NEGATIVE_CACHE_TTL),
+                CachingManager.DEFAULT_NEGATIVE_CACHE_TTL);
+
     }
 
 
@@ -133,6 +160,25 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
         }
     }
 
+    /**
+     * @return a new cache sized by the cache-max-entries and
+     *         cache-concurrency-level settings, for use when no
+     *         StorageCacheManager has been provided. If cache-max-weight is
+     *         set the cache is also bounded by the serialized size of the rows
+     *         it holds, in bytes.
+     */
+    protected Map<String, CacheHolder> createSharedCache() {
+        if (cacheMaxWeight > 0) {
+            return new ConcurrentLRUMap<String, CacheHolder>(cacheMaxEntries, cacheMaxWeight,
+                    cacheConcurrencyLevel, new CacheHolderWeigher());
+        }
+        return new ConcurrentLRUMap<String, CacheHolder>(cacheMaxEntries, cacheConcurrencyLevel);
+    }
+
+    public long getNegativeCacheTTL() {
+        return negativeCacheTTL;
+    }
+
     public Set<String> getIndexColumns() {
         return indexColums;
     }
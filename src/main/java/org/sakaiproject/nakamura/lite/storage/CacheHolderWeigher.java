@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.types.LazyRow;
+import org.sakaiproject.nakamura.lite.types.Types;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Weighs a CacheHolder by the number of bytes its map occupies when
+ * serialized, which is a reasonable approximation of the relative heap
+ * consumed by the row.
+ */
+public class CacheHolderWeigher implements Weigher<CacheHolder> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheHolderWeigher.class);
+
+    /**
+     * The weight given to every holder, covering the holder and map
+     * overhead, so that empty rows still count against the budget.
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    public int weigh(CacheHolder value) {
+        Map<String, Object> m = value.get();
+        if (m == null || m.isEmpty()) {
+            return ENTRY_OVERHEAD;
+        }
+        if (m instanceof LazyRow) {
+            // the row still holds its encoded form, which is its size.
+            return ENTRY_OVERHEAD + ((LazyRow) m).getEncodedSize();
+        }
+        try {
+            return ENTRY_OVERHEAD + Types.storeMapToStream("", m, "").available();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to weigh cache entry, using an estimate {} ", e.getMessage());
+            return ENTRY_OVERHEAD * (m.size() + 1);
+        }
+    }
+
+}
@@ -19,119 +19,296 @@ package org.sakaiproject.nakamura.lite.storage;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
- * 
+ * A concurrent LRU map. The map is split into a number of segments, each with
+ * its own lock and its own share of the entry and weight budgets. Each segment
+ * keeps its entries in access order so that eviction of the least recently
+ * used entry is a constant time operation, and contention is limited to
+ * threads that hit the same segment. Eviction is per segment, so the map as a
+ * whole is an approximation of a true LRU.
+ *
+ * The views returned by {@link #keySet()}, {@link #values()} and
+ * {@link #entrySet()} are snapshots and are not backed by the map.
+ *
+ * Keys must not be null. Values may be null, a null value weighs 1 and the
+ * weigher is not asked to weigh it.
+ *
  * @param <K>
  * @param <V>
  */
 public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
-    public class Holder<T> {
+    private static final int DEFAULT_MAX_ENTRIES = 100;
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    private static final int MAX_SEGMENTS = 1 << 16;
+
+    /**
+     * Weighs every value as 1, so that the weight budget is the same as the
+     * entry budget.
+     */
+    private static final Weigher<Object> SINGLETON_WEIGHER = new Weigher<Object>() {
+        public int weigh(Object value) {
+            return 1;
+        }
+    };
 
-        protected long last;
-        protected V value;
-        private K key;
+    private static final class Node<V> {
+        private final V value;
+        private final int weight;
 
-        public Holder(K key, V value) {
-            this.key = key;
+        private Node(V value, int weight) {
             this.value = value;
-            this.last = System.currentTimeMillis();
+            this.weight = weight;
         }
+    }
+
+    private static final class Segment<K, V> extends ReentrantLock {
+        private static final long serialVersionUID = -2545880532616390917L;
+        private final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<K, Node<V>>(16, 0.75f,
+                true);
+        private final int maxEntries;
+        private final long maxWeight;
+        private volatile int count;
+        private volatile long weight;
 
-        public int compareTo(Holder<T> o) {
-            return (int) (this.last - o.last);
+        private Segment(int maxEntries, long maxWeight) {
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            try {
-                if (obj == null) {
-                    return false;
-                }
-                @SuppressWarnings("unchecked")
-                Holder<T> t = (Holder<T>) obj;
-                return value.equals(t.value);
-            } catch (ClassCastException e) {
-                return false;
+        /**
+         * Evict from the least recently used end until the segment is inside
+         * its budgets. Must be called with the lock held.
+         *
+         * @return the number of entries evicted.
+         */
+        private int evict() {
+            int evicted = 0;
+            Iterator<Node<V>> lru = map.values().iterator();
+            while ((map.size() > maxEntries || weight > maxWeight) && lru.hasNext()) {
+                Node<V> n = lru.next();
+                lru.remove();
+                weight -= n.weight;
+                evicted++;
             }
+            count = map.size();
+            return evicted;
         }
+    }
+
+    private final Segment<K, V>[] segments;
+    private final int segmentShift;
+    private final int segmentMask;
+    private final Weigher<? super V> weigher;
+    private final long maxWeight;
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ConcurrentLRUMap() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public ConcurrentLRUMap(int size) {
+        this(size, Long.MAX_VALUE, DEFAULT_CONCURRENCY_LEVEL, SINGLETON_WEIGHER);
+    }
 
-        @Override
-        public int hashCode() {
-            return value.hashCode();
+    public ConcurrentLRUMap(int size, int concurrencyLevel) {
+        this(size, Long.MAX_VALUE, concurrencyLevel, SINGLETON_WEIGHER);
+    }
+
+    /**
+     * @param size
+     *            the maximum number of entries in the map.
+     * @param maxWeight
+     *            the maximum total weight of the values in the map as
+     *            calculated by the weigher.
+     * @param concurrencyLevel
+     *            the expected number of concurrently updating threads, used to
+     *            size the number of segments.
+     * @param weigher
+     *            used to weigh values as they are added.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLRUMap(int size, long maxWeight, int concurrencyLevel,
+            Weigher<? super V> weigher) {
+        if (size <= 0 || maxWeight <= 0 || concurrencyLevel <= 0 || weigher == null) {
+            throw new IllegalArgumentException("Size, weight and concurrency level must be positive and a weigher is required");
+        }
+        // the number of segments is a power of 2 no larger than the
+        // concurrency level or the number of entries, so every segment can
+        // hold at least one entry.
+        int limit = Math.min(Math.min(concurrencyLevel, size), MAX_SEGMENTS);
+        int shift = 0;
+        int nsegments = 1;
+        while (nsegments << 1 <= limit) {
+            nsegments <<= 1;
+            shift++;
+        }
+        segmentShift = 32 - shift;
+        segmentMask = nsegments - 1;
+        segments = new Segment[nsegments];
+        int segmentEntries = (size + nsegments - 1) / nsegments;
+        long segmentWeight = (maxWeight == Long.MAX_VALUE) ? Long.MAX_VALUE : Math.max(1L,
+                (maxWeight + nsegments - 1) / nsegments);
+        for (int i = 0; i < nsegments; i++) {
+            segments[i] = new Segment<K, V>(segmentEntries, segmentWeight);
         }
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+    }
 
+    /**
+     * Spread the hash code so that keys with similar hash codes end up in
+     * different segments (the same function as ConcurrentHashMap).
+     */
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h += (h << 15) ^ 0xffffcd7d;
+        h ^= (h >>> 10);
+        h += (h << 3);
+        h ^= (h >>> 6);
+        h += (h << 2) + (h << 14);
+        h ^= (h >>> 16);
+        if (segmentMask == 0) {
+            return segments[0];
+        }
+        return segments[(h >>> segmentShift) & segmentMask];
     }
 
     /**
-   * 
-   */
-    private static final long serialVersionUID = 6397790801684912025L;
-    private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
-    private int maxSize = 100;
+     * @return the total weight of all the values in the map, as calculated by
+     *         the weigher. When the map has no weigher this is the number of
+     *         entries.
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment<K, V> s : segments) {
+            weight += s.weight;
+        }
+        return weight;
+    }
 
-    public ConcurrentLRUMap() {
+    /**
+     * @return the weight budget of the map, Long.MAX_VALUE if the map is only
+     *         bounded by the number of entries.
+     */
+    public long getMaxWeight() {
+        return maxWeight;
     }
 
-    public ConcurrentLRUMap(int size) {
-        maxSize = size;
+    /**
+     * @return the number of entries that have been evicted to keep the map
+     *         within its budgets.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
     }
 
     public int size() {
-        return delegate.size();
+        long size = 0;
+        for (Segment<K, V> s : segments) {
+            size += s.count;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
     }
 
     public boolean isEmpty() {
-        return delegate.isEmpty();
+        for (Segment<K, V> s : segments) {
+            if (s.count != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public boolean containsKey(Object key) {
-        return delegate.containsKey(key);
+        Segment<K, V> s = segmentFor(key);
+        s.lock();
+        try {
+            // containsKey does not change the access order.
+            return s.map.containsKey(key);
+        } finally {
+            s.unlock();
+        }
     }
 
     public boolean containsValue(Object value) {
-        @SuppressWarnings("unchecked")
-        Holder<V> v = new Holder<V>(null, (V) value);
-        return delegate.containsValue(v);
+        for (Segment<K, V> s : segments) {
+            s.lock();
+            try {
+                for (Node<V> n : s.map.values()) {
+                    if (value == null ? n.value == null : value.equals(n.value)) {
+                        return true;
+                    }
+                }
+            } finally {
+                s.unlock();
+            }
+        }
+        return false;
     }
 
-    public V put(K key, V value) {
-        if (delegate.size() > maxSize) {
-            // this is horribly slow for large sets
-            List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-            Collections.sort(l, new Comparator<Holder<V>>() {
-
-                public int compare(Holder<V> o1, Holder<V> o2) {
-                    return (int) (o1.last - o2.last);
-                }
-            });
-            int i = 0;
-            while (delegate.size() > ((75*maxSize)/100) && i < l.size()) {
-                delegate.remove(l.get(i++).key);
+    public V get(Object key) {
+        Segment<K, V> s = segmentFor(key);
+        s.lock();
+        try {
+            Node<V> n = s.map.get(key);
+            if (n == null) {
+                return null;
             }
+            return n.value;
+        } finally {
+            s.unlock();
         }
-        Holder<V> v = delegate.put(key, new Holder<V>(key, value));
-        if (v == null) {
-            return null;
+    }
+
+    public V put(K key, V value) {
+        // null values are allowed, as they were before the map was segmented.
+        Node<V> node = new Node<V>(value, (value == null) ? 1 : weigher.weigh(value));
+        Segment<K, V> s = segmentFor(key);
+        s.lock();
+        try {
+            Node<V> old = s.map.put(key, node);
+            s.weight += node.weight;
+            if (old != null) {
+                s.weight -= old.weight;
+            }
+            int evicted = s.evict();
+            if (evicted > 0) {
+                evictions.addAndGet(evicted);
+            }
+            if (old == null) {
+                return null;
+            }
+            return old.value;
+        } finally {
+            s.unlock();
         }
-        return v.value;
     }
 
     public V remove(Object key) {
-        Holder<V> v = delegate.remove(key);
-        if (v == null) {
-            return null;
+        Segment<K, V> s = segmentFor(key);
+        s.lock();
+        try {
+            Node<V> old = s.map.remove(key);
+            if (old == null) {
+                return null;
+            }
+            s.weight -= old.weight;
+            s.count = s.map.size();
+            return old.value;
+        } finally {
+            s.unlock();
         }
-        return v.value;
     }
 
     public void putAll(Map<? extends K, ? extends V> t) {
@@ -141,52 +318,59 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
     }
 
     public void clear() {
-        delegate.clear();
+        for (Segment<K, V> s : segments) {
+            s.lock();
+            try {
+                s.map.clear();
+                s.weight = 0;
+                s.count = 0;
+            } finally {
+                s.unlock();
+            }
+        }
     }
 
     public Set<K> keySet() {
-        return delegate.keySet();
+        Set<K> keys = new HashSet<K>();
+        for (Segment<K, V> s : segments) {
+            s.lock();
+            try {
+                keys.addAll(s.map.keySet());
+            } finally {
+                s.unlock();
+            }
+        }
+        return keys;
     }
 
     public Collection<V> values() {
         List<V> values = new ArrayList<V>();
-        for (Holder<V> v : delegate.values()) {
-            values.add(v.value);
+        for (Segment<K, V> s : segments) {
+            s.lock();
+            try {
+                for (Node<V> n : s.map.values()) {
+                    values.add(n.value);
+                }
+            } finally {
+                s.unlock();
+            }
         }
         return values;
     }
 
     public Set<Entry<K, V>> entrySet() {
-        Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-        for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
-            set.add(new Entry<K, V>() {
-
-                public K getKey() {
-                    return e.getKey();
-                }
-
-                public V getValue() {
-                    return ((Holder<V>) e.getValue()).value;
-                }
-
-                public V setValue(V value) {
-                    Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-                    if (h == null) {
-                        return null;
-                    }
-                    return h.value;
+        Map<K, V> snapshot = new HashMap<K, V>();
+        for (Segment<K, V> s : segments) {
+            s.lock();
+            try {
+                for (Entry<K, Node<V>> e : s.map.entrySet()) {
+                    snapshot.put(e.getKey(), e.getValue().value);
                 }
-            });
+            } finally {
+                s.unlock();
+            }
         }
-        return set;
+        return snapshot.entrySet();
     }
 
-    public V get(Object key) {
-        Holder<V> v = delegate.get(key);
-        if (v == null) {
-            return null;
-        }
-        v.last = System.currentTimeMillis();
-        return v.value;
-    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generates row ids by hashing the row key with a message digest. Digests are
+ * expensive to look up and are not thread safe, so each thread keeps its own
+ * digest for each algorithm. Optionally the most recently used row ids are
+ * remembered, so that hot rows are not hashed on every access.
+ */
+public class DigestRowHasher implements RowHasher {
+
+    /**
+     * Digests for the current thread, keyed by algorithm.
+     */
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS = new ThreadLocal<Map<String, MessageDigest>>() {
+        @Override
+        protected Map<String, MessageDigest> initialValue() {
+            return new HashMap<String, MessageDigest>();
+        }
+    };
+
+    private final String algorithm;
+    private final Map<String, String> rowIds;
+
+    /**
+     * @param algorithm
+     *            the digest algorithm.
+     * @param cacheSize
+     *            the number of row ids to remember, 0 to hash every time.
+     * @throws StorageClientException
+     *             if the algorithm is not available.
+     */
+    public DigestRowHasher(String algorithm, int cacheSize) throws StorageClientException {
+        this.algorithm = algorithm;
+        // fail early rather than on the first use.
+        getDigest();
+        if (cacheSize > 0) {
+            rowIds = new ConcurrentLRUMap<String, String>(cacheSize);
+        } else {
+            rowIds = null;
+        }
+    }
+
+    public String rowHash(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
+        String keystring = keySpace + ":" + columnFamily + ":" + key;
+        if (rowIds == null) {
+            return hash(keystring);
+        }
+        String rid = rowIds.get(keystring);
+        if (rid == null) {
+            rid = hash(keystring);
+            rowIds.put(keystring, rid);
+        }
+        return rid;
+    }
+
+    private String hash(String keystring) throws StorageClientException {
+        byte[] ridkey;
+        try {
+            ridkey = keystring.getBytes("UTF8");
+        } catch (UnsupportedEncodingException e) {
+            ridkey = keystring.getBytes();
+        }
+        // digest() resets the digest ready for the next use.
+        return StorageClientUtils.encode(getDigest().digest(ridkey));
+    }
+
+    private MessageDigest getDigest() throws StorageClientException {
+        Map<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest digest = digests.get(algorithm);
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new StorageClientException("Unable to get hash algorithm " + e.getMessage(), e);
+            }
+            digests.put(algorithm, digest);
+        }
+        return digest;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+}
@@ -22,6 +22,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -32,12 +33,28 @@ public interface StorageClient {
 	 * @param keySpace the keyspace to search
 	 * @param columnFamily the group of columns we're considering
 	 * @param key the key of the row
-	 * @return the key value pairs in the row key or null
+	 * @return the key value pairs in the row key or null. The map is read
+	 *         only, callers that need to change it must copy it.
 	 * @throws StorageClientException
 	 */
     Map<String, Object> get(String keySpace, String columnFamily, String key)
             throws StorageClientException;
 
+    /**
+     * Lookup a number of objects by key in as few operations as the store
+     * allows.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param keys the keys of the rows
+     * @return a map keyed by row key, in the order of keys, containing the key
+     *         value pairs of each row. Rows that don't exist are present as
+     *         empty maps, as they would be from {@link #get(String, String, String)}.
+     *         The row maps are read only.
+     * @throws StorageClientException
+     */
+    Map<String, Map<String, Object>> getAll(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException;
+
     /**
      * Insert or update a row in the store.
      * @param keySpace the keyspace to search
@@ -59,6 +76,53 @@ public interface StorageClient {
      */
     void remove(String keySpace, String columnFamily, String key) throws StorageClientException;
 
+    /**
+     * Rewrite the index entries of a row from its stored values, for rows
+     * written before some of their columns were indexed, or whose index
+     * entries were lost.
+     * @param keySpace the keyspace of the row
+     * @param columnFamily the group of columns we're considering
+     * @param key the key of the row
+     * @throws StorageClientException
+     */
+    void reindex(String keySpace, String columnFamily, String key) throws StorageClientException;
+
+    /**
+     * Start a batch. Inserts and removes made through this client until the
+     * batch is committed are applied together, so that a change to several
+     * rows is made with one commit. Reads through this client inside the batch
+     * see the changes made in the batch. Batches may be nested, only the
+     * outermost commit applies the changes.
+     *
+     * How atomic a batch is depends on the store:
+     * <ul>
+     * <li>JDBC: one transaction, all or none of the changes are stored.</li>
+     * <li>Cassandra: the changes are sent in one batch_mutate on commit, which
+     * is atomic per row but not across rows, and nothing is sent if the batch
+     * is aborted.</li>
+     * <li>Memory: changes are applied as they are made, and an aborted batch
+     * is not rolled back.</li>
+     * </ul>
+     * @throws StorageClientException
+     */
+    void startBatch() throws StorageClientException;
+
+    /**
+     * Commit the current batch. Nested batches are committed with the
+     * outermost batch.
+     * @throws StorageClientException
+     *             if the changes could not be applied, the caller must then
+     *             call {@link #abortBatch()}.
+     */
+    void commitBatch() throws StorageClientException;
+
+    /**
+     * Abandon the current batch, and any batches it is nested in, discarding
+     * the changes made in it where the store allows, see
+     * {@link #startBatch()}. Does nothing if there is no batch.
+     */
+    void abortBatch();
+
     /**
      * Get an {@link InputStream} to read a stream of content.
      * @param keySpace the keyspace to search
@@ -33,4 +33,10 @@ public interface StorageClientPool {
      */
     StorageCacheManager getStorageCacheManager();
 
+    /**
+     * @return how long in ms the caches of this datastore remember that a row
+     *         does not exist, 0 if they don't.
+     */
+    long getNegativeCacheTTL();
+
 }
@@ -52,7 +52,11 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -75,6 +79,17 @@ public class CassandraClient extends Client implements StorageClient {
     private int maxChunksPerBlockSet;
     private CassandraClientPool pool;
     private Set<String> indexColumns;
+    private int batchDepth;
+    /**
+     * The mutations of the current batch by key space, then row key and
+     * column family.
+     */
+    private Map<String, Map<String, Map<String, List<Mutation>>>> batchMutations = new LinkedHashMap<String, Map<String, Map<String, List<Mutation>>>>();
+    /**
+     * The last timestamp used for each row written in the current batch, by
+     * key space, column family and row key.
+     */
+    private Map<String, Long> batchTimestamps = new HashMap<String, Long>();
 
     public CassandraClient(CassandraClientPool pool, TProtocol tProtocol, TSocket tSocket,
             Map<String, Object> properties, Set<String> indexColums) {
@@ -105,6 +120,7 @@ public class CassandraClient extends Client implements StorageClient {
     }
 
     public void passivate() {
+        abortBatch();
     }
 
     public void activate() {
@@ -118,30 +134,49 @@ public class CassandraClient extends Client implements StorageClient {
         throws StorageClientException {
         Map<String, Object> row = new HashMap<String, Object>();
         try {
-            SlicePredicate predicate = new SlicePredicate();
-            SliceRange sliceRange = new SliceRange();
-            sliceRange.setStart(new byte[0]);
-            sliceRange.setFinish(new byte[0]);
-            predicate.setSlice_range(sliceRange);
-
             ColumnParent parent = new ColumnParent(columnFamily);
-            List<ColumnOrSuperColumn> results = get_slice(keySpace, key, parent, predicate,ConsistencyLevel.ONE);
-
-            for (ColumnOrSuperColumn result : results) {
-                if (result.isSetSuper_column()) {
-                    Map<String, Object> sc = new HashMap<String, Object>();
+            List<ColumnOrSuperColumn> results = get_slice(keySpace, key, parent, allColumns(),ConsistencyLevel.ONE);
+            loadRow(row, results);
+        } catch (InvalidRequestException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (UnavailableException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (TimedOutException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (TException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            LOGGER.debug(e.getMessage());
+        }
+        applyBatch(keySpace, columnFamily, key, row);
+        // read only, as the rows of the other clients are.
+        return Collections.unmodifiableMap(row);
+    }
 
-                    for (Column column : result.super_column.columns) {
-                        Object columnValue = Types.toObject(column.value);
-                        sc.put(new String(column.name, "UTF-8"), columnValue);
+    public Map<String, Map<String, Object>> getAll(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        Map<String, Map<String, Object>> rows = new LinkedHashMap<String, Map<String, Object>>();
+        for (String key : keys) {
+            rows.put(key, new HashMap<String, Object>());
+        }
+        if (rows.isEmpty()) {
+            return rows;
+        }
+        try {
+            ColumnParent parent = new ColumnParent(columnFamily);
+            Map<String, List<ColumnOrSuperColumn>> results = multiget_slice(keySpace,
+                    new ArrayList<String>(rows.keySet()), parent, allColumns(),
+                    ConsistencyLevel.ONE);
+            for (Entry<String, List<ColumnOrSuperColumn>> result : results.entrySet()) {
+                Map<String, Object> row = rows.get(result.getKey());
+                if (row != null) {
+                    try {
+                        loadRow(row, result.getValue());
+                    } catch (IOException e) {
+                        LOGGER.debug(e.getMessage());
                     }
-                    row.put(new String(result.super_column.name, "UTF-8"), sc);
-                } else {
-                    row.put(new String(result.column.name, "UTF-8"),
-                            Types.toObject(result.column.value));
                 }
             }
-
         } catch (InvalidRequestException e) {
             throw new StorageClientException(e.getMessage(), e);
         } catch (UnavailableException e) {
@@ -150,10 +185,39 @@ public class CassandraClient extends Client implements StorageClient {
             throw new StorageClientException(e.getMessage(), e);
         } catch (TException e) {
             throw new StorageClientException(e.getMessage(), e);
-        } catch (IOException e) {
-            LOGGER.debug(e.getMessage());
         }
-        return row;
+        for (Entry<String, Map<String, Object>> row : rows.entrySet()) {
+            applyBatch(keySpace, columnFamily, row.getKey(), row.getValue());
+            row.setValue(Collections.unmodifiableMap(row.getValue()));
+        }
+        return rows;
+    }
+
+    private SlicePredicate allColumns() {
+        SlicePredicate predicate = new SlicePredicate();
+        SliceRange sliceRange = new SliceRange();
+        sliceRange.setStart(new byte[0]);
+        sliceRange.setFinish(new byte[0]);
+        predicate.setSlice_range(sliceRange);
+        return predicate;
+    }
+
+    private void loadRow(Map<String, Object> row, List<ColumnOrSuperColumn> results)
+            throws IOException {
+        for (ColumnOrSuperColumn result : results) {
+            if (result.isSetSuper_column()) {
+                Map<String, Object> sc = new HashMap<String, Object>();
+
+                for (Column column : result.super_column.columns) {
+                    Object columnValue = Types.toObject(column.value);
+                    sc.put(new String(column.name, "UTF-8"), columnValue);
+                }
+                row.put(new String(result.super_column.name, "UTF-8"), sc);
+            } else {
+                row.put(new String(result.column.name, "UTF-8"),
+                        Types.toObject(result.column.value));
+            }
+        }
     }
 
     public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
@@ -166,7 +230,8 @@ public class CassandraClient extends Client implements StorageClient {
             List<Mutation> keyMutations = Lists.newArrayList();
             columnMutations.put(columnFamily, keyMutations);
             mutation.put(key, columnMutations);
-            
+            long timestamp = nextTimestamp(keySpace, columnFamily, key);
+
             for (Entry<String, Object> value : values.entrySet()) {
                 String name = value.getKey();
                 byte[] bname=null;
@@ -178,6 +243,7 @@ public class CassandraClient extends Client implements StorageClient {
                 Object v = value.getValue();
                 if (v instanceof RemoveProperty) {
                     Deletion deletion = new Deletion();
+                    deletion.setTimestamp(timestamp);
                     SlicePredicate deletionPredicate = new SlicePredicate();
                     deletionPredicate.addToColumn_names(bname);
                     deletion.setPredicate(deletionPredicate);
@@ -188,7 +254,7 @@ public class CassandraClient extends Client implements StorageClient {
                 else {
                     try{
                          byte b[]=Types.toByteArray(v);
-                         Column column = new Column(bname, b, System.currentTimeMillis());
+                         Column column = new Column(bname, b, timestamp);
                          ColumnOrSuperColumn csc = new ColumnOrSuperColumn();
                          csc.setColumn(column);
                          Mutation mu = new Mutation();
@@ -207,7 +273,11 @@ public class CassandraClient extends Client implements StorageClient {
                 }
             }
             LOGGER.debug("Mutation {} ", mutation);
-            batch_mutate(keySpace, mutation, ConsistencyLevel.ONE);
+            if (batchDepth > 0) {
+                addToBatch(keySpace, mutation);
+            } else {
+                batch_mutate(keySpace, mutation, ConsistencyLevel.ONE);
+            }
         } catch (InvalidRequestException e) {
             throw new StorageClientException(e.getMessage(), e);
         } catch (UnavailableException e) {
@@ -219,6 +289,142 @@ public class CassandraClient extends Client implements StorageClient {
         }
     }
 
+    /**
+     * Merge the mutations of one insert into the mutations of the batch.
+     */
+    private void addToBatch(String keySpace, Map<String, Map<String, List<Mutation>>> mutation) {
+        Map<String, Map<String, List<Mutation>>> keySpaceMutations = batchMutations.get(keySpace);
+        if (keySpaceMutations == null) {
+            keySpaceMutations = new LinkedHashMap<String, Map<String, List<Mutation>>>();
+            batchMutations.put(keySpace, keySpaceMutations);
+        }
+        for (Entry<String, Map<String, List<Mutation>>> row : mutation.entrySet()) {
+            Map<String, List<Mutation>> columnMutations = keySpaceMutations.get(row.getKey());
+            if (columnMutations == null) {
+                columnMutations = new HashMap<String, List<Mutation>>();
+                keySpaceMutations.put(row.getKey(), columnMutations);
+            }
+            for (Entry<String, List<Mutation>> cf : row.getValue().entrySet()) {
+                List<Mutation> mutations = columnMutations.get(cf.getKey());
+                if (mutations == null) {
+                    mutations = Lists.newArrayList();
+                    columnMutations.put(cf.getKey(), mutations);
+                }
+                mutations.addAll(cf.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the timestamp for a mutation of a row. In a batch every mutation
+     *         of a row gets a later timestamp than the one before, so that
+     *         mutations made in the same millisecond apply in order when the
+     *         batch is sent together, a remove then an insert leaves the row
+     *         and an insert then a remove does not.
+     */
+    private long nextTimestamp(String keySpace, String columnFamily, String key) {
+        long timestamp = System.currentTimeMillis();
+        if (batchDepth > 0) {
+            String rowKey = keySpace + ":" + columnFamily + ":" + key;
+            Long last = batchTimestamps.get(rowKey);
+            if (last != null && timestamp <= last) {
+                timestamp = last + 1;
+            }
+            batchTimestamps.put(rowKey, timestamp);
+        }
+        return timestamp;
+    }
+
+    /**
+     * Apply the mutations made to a row in the current batch to the row as
+     * read from the store, so that reads in a batch see its writes.
+     */
+    private void applyBatch(String keySpace, String columnFamily, String key,
+            Map<String, Object> row) throws StorageClientException {
+        Map<String, Map<String, List<Mutation>>> keySpaceMutations = batchMutations.get(keySpace);
+        if (keySpaceMutations == null || !keySpaceMutations.containsKey(key)) {
+            return;
+        }
+        List<Mutation> mutations = keySpaceMutations.get(key).get(columnFamily);
+        if (mutations == null) {
+            return;
+        }
+        try {
+            for (Mutation mu : mutations) {
+                if (mu.isSetDeletion()) {
+                    for (byte[] name : mu.deletion.predicate.column_names) {
+                        row.remove(new String(name, "UTF-8"));
+                    }
+                } else {
+                    Column column = mu.column_or_supercolumn.column;
+                    row.put(new String(column.name, "UTF-8"), Types.toObject(column.value));
+                }
+            }
+        } catch (IOException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Inserts and removes in a batch are collected and sent in one
+     * batch_mutate per key space when the outermost batch is committed, reads
+     * in the batch see them. Cassandra applies a batch_mutate atomically per
+     * row only, so a failure part way through a commit can leave some rows
+     * changed.
+     */
+    public void startBatch() {
+        batchDepth++;
+    }
+
+    public void commitBatch() throws StorageClientException {
+        if (batchDepth == 0) {
+            throw new StorageClientException("No batch to commit");
+        }
+        if (batchDepth == 1) {
+            try {
+                for (Entry<String, Map<String, Map<String, List<Mutation>>>> e : batchMutations
+                        .entrySet()) {
+                    LOGGER.debug("Batch Mutation {} ", e.getValue());
+                    batch_mutate(e.getKey(), e.getValue(), ConsistencyLevel.ONE);
+                }
+            } catch (InvalidRequestException e) {
+                throw new StorageClientException(e.getMessage(), e);
+            } catch (UnavailableException e) {
+                throw new StorageClientException(e.getMessage(), e);
+            } catch (TimedOutException e) {
+                throw new StorageClientException(e.getMessage(), e);
+            } catch (TException e) {
+                throw new StorageClientException(e.getMessage(), e);
+            }
+            batchMutations.clear();
+            batchTimestamps.clear();
+        }
+        batchDepth--;
+    }
+
+    public void abortBatch() {
+        batchDepth = 0;
+        batchMutations.clear();
+        batchTimestamps.clear();
+    }
+
+    public void reindex(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
+        if (columnFamily.equals(INDEX_COLUMN_FAMILY)) {
+            return;
+        }
+        for (Entry<String, Object> value : get(keySpace, columnFamily, key).entrySet()) {
+            if (shouldIndex(keySpace, columnFamily, value.getKey())) {
+                try {
+                    addIndex(keySpace, columnFamily, key, value.getKey().getBytes("UTF-8"),
+                            Types.toByteArray(value.getValue()));
+                } catch (IOException e) {
+                    throw new StorageClientException(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
     public void remove(String keySpace, String columnFamily, String key)
             throws StorageClientException {
       if(!columnFamily.equals(INDEX_COLUMN_FAMILY)){
@@ -243,6 +449,10 @@ public class CassandraClient extends Client implements StorageClient {
         }
       }
 
+        if (batchDepth > 0) {
+            removeInBatch(keySpace, columnFamily, key);
+            return;
+        }
         ColumnPath cp = new ColumnPath(columnFamily);
         try {
             remove(keySpace, key, cp, System.currentTimeMillis(), ConsistencyLevel.ONE);
@@ -257,6 +467,37 @@ public class CassandraClient extends Client implements StorageClient {
         }
     }
 
+    /**
+     * Queue the removal of a row in the current batch. batch_mutate can only
+     * delete named columns, so the columns of the row as seen by the batch are
+     * deleted.
+     */
+    private void removeInBatch(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
+        Map<String, Object> row = get(keySpace, columnFamily, key);
+        if (row.isEmpty()) {
+            return;
+        }
+        SlicePredicate deletionPredicate = new SlicePredicate();
+        try {
+            for (String name : row.keySet()) {
+                deletionPredicate.addToColumn_names(name.getBytes("UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new StorageClientException(e.getMessage(), e);
+        }
+        Deletion deletion = new Deletion();
+        deletion.setTimestamp(nextTimestamp(keySpace, columnFamily, key));
+        deletion.setPredicate(deletionPredicate);
+        Mutation mu = new Mutation();
+        mu.setDeletion(deletion);
+        Map<String, List<Mutation>> columnMutations = new HashMap<String, List<Mutation>>();
+        columnMutations.put(columnFamily, Lists.newArrayList(mu));
+        Map<String, Map<String, List<Mutation>>> mutation = new HashMap<String, Map<String, List<Mutation>>>();
+        mutation.put(key, columnMutations);
+        addToBatch(keySpace, mutation);
+    }
+
     public Map<String, Object> streamBodyIn(String keySpace, String contentColumnFamily,
             String contentId, String contentBlockId, String streamId, Map<String, Object> content, InputStream in)
             throws StorageClientException, AccessDeniedException, IOException {
@@ -40,7 +40,6 @@ import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.lite.storage.AbstractClientConnectionPool;
-import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -207,7 +206,7 @@ public class CassandraClientPool extends AbstractClientConnectionPool {
                } 
      
        
-        sharedCache = new ConcurrentLRUMap<String, CacheHolder>(10000);
+        sharedCache = createSharedCache();
         defaultStorageManagerCache = new StorageCacheManager() {
             
             public Map<String, CacheHolder> getContentCache() {
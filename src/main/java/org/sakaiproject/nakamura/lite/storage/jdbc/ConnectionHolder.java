@@ -21,18 +21,54 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
 
 public class ConnectionHolder {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionHolder.class);
     private static final long TTL = 3600000L;
+    public static final int DEFAULT_MAX_STATEMENTS = 50;
+    /**
+     * The least number of statements that may be kept open. A write of a row
+     * uses up to 5 statements at once (select, insert, update, remove and
+     * insert of index columns), with batched index statements pending until
+     * the end, so a smaller cache would close statements that are in use.
+     */
+    public static final int MIN_MAX_STATEMENTS = 8;
     private Connection connection;
     private long lastUsed;
+    private final Map<String, PreparedStatement> statements;
 
     public ConnectionHolder(Connection connection) {
+        this(connection, DEFAULT_MAX_STATEMENTS);
+    }
+
+    /**
+     * @param connection
+     *            the connection.
+     * @param maxStatements
+     *            the maximum number of prepared statements kept open on the
+     *            connection, the least recently used are closed first.
+     */
+    public ConnectionHolder(Connection connection, final int maxStatements) {
         this.lastUsed = System.currentTimeMillis();
         this.connection = connection;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, PreparedStatement> eldest) {
+                if (size() > maxStatements) {
+                    closeStatement(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
     }
 
     public void ping() {
@@ -47,7 +83,29 @@ public class ConnectionHolder {
         return connection;
     }
 
-    public void close() {
+    /**
+     * Get a prepared statement for the sql, prepared on this connection. The
+     * statement is kept open and reused until the connection is closed, so it
+     * must not be closed by the caller.
+     *
+     * @param sql
+     * @return the prepared statement.
+     * @throws SQLException
+     */
+    public synchronized PreparedStatement getStatement(String sql) throws SQLException {
+        PreparedStatement pst = statements.get(sql);
+        if (pst == null) {
+            pst = connection.prepareStatement(sql);
+            statements.put(sql, pst);
+        }
+        return pst;
+    }
+
+    public synchronized void close() {
+        for (PreparedStatement pst : statements.values()) {
+            closeStatement(pst);
+        }
+        statements.clear();
         if (connection != null) {
             try {
                 connection.close();
@@ -57,4 +115,12 @@ public class ConnectionHolder {
         }
     }
 
+    private void closeStatement(PreparedStatement pst) {
+        try {
+            pst.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Failed to close statement " + e.getMessage(), e);
+        }
+    }
+
 }
@@ -18,6 +18,8 @@
 package org.sakaiproject.nakamura.lite.storage.jdbc;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.Map;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
@@ -26,6 +28,20 @@ public class ConnectionManager extends TimerTask {
 
     private Map<Thread, ConnectionHolder> threadMap = new ConcurrentHashMap<Thread, ConnectionHolder>();
     private boolean closing = false;
+    private int maxStatements;
+
+    public ConnectionManager() {
+        this(ConnectionHolder.DEFAULT_MAX_STATEMENTS);
+    }
+
+    /**
+     * @param maxStatements
+     *            the number of prepared statements to keep open on each
+     *            connection.
+     */
+    public ConnectionManager(int maxStatements) {
+        this.maxStatements = maxStatements;
+    }
 
     @Override
     public void run() {
@@ -45,6 +61,26 @@ public class ConnectionManager extends TimerTask {
         return null;
     }
 
+    /**
+     * @param sql
+     * @return a prepared statement on the connection of the current thread,
+     *         which is reused until the connection is closed or replaced, so
+     *         it must not be closed by the caller.
+     * @throws SQLException
+     *             if the current thread has no connection.
+     */
+    public PreparedStatement getStatement(String sql) throws SQLException {
+        if ( closing ) {
+            throw new SQLException("ConnectionManager is closing ");
+        }
+        ConnectionHolder ch = threadMap.get(Thread.currentThread());
+        if (ch == null || ch.get() == null) {
+            throw new SQLException("No connection for the current thread ");
+        }
+        ch.ping();
+        return ch.getStatement(sql);
+    }
+
     public void set(Connection connection) {
         if ( closing ) {
             throw new IllegalStateException("ConnectionManager is closing ");
@@ -56,7 +92,7 @@ public class ConnectionManager extends TimerTask {
             c.close();
             threadMap.remove(t);
         }
-        ConnectionHolder ch = new ConnectionHolder(connection);
+        ConnectionHolder ch = new ConnectionHolder(connection, maxStatements);
         threadMap.put(t, ch);
     }
 
@@ -34,10 +34,13 @@ import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.content.FileStreamContentHelper;
 import org.sakaiproject.nakamura.lite.content.InternalContent;
 import org.sakaiproject.nakamura.lite.content.StreamedContentHelper;
+import org.sakaiproject.nakamura.lite.storage.DigestRowHasher;
 import org.sakaiproject.nakamura.lite.storage.Disposable;
 import org.sakaiproject.nakamura.lite.storage.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.RowHasher;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.jdbc.WriteBehindBuffer.PendingRow;
+import org.sakaiproject.nakamura.lite.storage.jdbc.WriteBehindBuffer.RowWriter;
 import org.sakaiproject.nakamura.lite.types.Types;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,8 +50,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UTFDataFormatException;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -57,6 +59,8 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.MessageFormat;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -71,12 +75,36 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
   public class SlowQueryLogger {
         // only used to define the logger.
     }
+
+    /**
+     * How index updates are sent to the database, worked out once by
+     * {@link JDBCStorageClient#checkBatchSupport()}.
+     */
+    public enum BatchSupport {
+        /**
+         * One statement per index value.
+         */
+        NONE,
+        /**
+         * As JDBC batches, the update counts of a batch are not reported, so
+         * a failed statement is only seen if the driver says so.
+         */
+        NO_UPDATE_COUNTS,
+        /**
+         * As JDBC batches, with an update count for every statement.
+         */
+        UPDATE_COUNTS
+    }
     private static final Logger LOGGER = LoggerFactory.getLogger(JDBCStorageClient.class);
     private static final Logger SQL_LOGGER = LoggerFactory.getLogger(SlowQueryLogger.class);
     private static final String SQL_VALIDATE = "validate";
     private static final String SQL_CHECKSCHEMA = "check-schema";
     private static final String SQL_COMMENT = "#";
     private static final String SQL_EOL = ";";
+    /**
+     * Cached in sqlKeys for a statement that has no sql configuration.
+     */
+    private static final Object NO_SQL_KEY = new Object();
     private static final String SQL_DELETE_STRING_ROW = "delete-string-row";
     private static final String SQL_INSERT_STRING_COLUMN = "insert-string-column";
     private static final String SQL_UPDATE_STRING_COLUMN = "update-string-column";
@@ -86,12 +114,23 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
     private static final String SQL_BLOCK_SELECT_ROW = "block-select-row";
     private static final String SQL_BLOCK_INSERT_ROW = "block-insert-row";
     private static final String SQL_BLOCK_UPDATE_ROW = "block-update-row";
+    private static final String SQL_BLOCK_UPSERT_ROW = "block-upsert-row";
+    private static final String SQL_BLOCK_SELECT_ROWS = "block-select-rows";
 
     private static final String PROP_HASH_ALG = "rowid-hash";
     private static final String USE_BATCH_INSERTS = "use-batch-inserts";
     private static final String JDBC_SUPPORT_LEVEL = "jdbc-support-level";
-    private static final String SQL_STATEMENT_SEQUENCE = "sql-statement-sequence";
-    private static final String UPDATE_FIRST_SEQUENCE = "updateFirst";
+    private static final String SELECT_ROWS_CHUNK_SIZE = "select-rows-chunk-size";
+    private static final int DEFAULT_SELECT_ROWS_CHUNK_SIZE = 100;
+    private static final String FIND_PREFETCH_SIZE = "find-prefetch-size";
+    private static final int DEFAULT_FIND_PREFETCH_SIZE = 25;
+    /**
+     * The index column written, and rolled back, when checking batch support,
+     * in the default content column family.
+     */
+    private static final String BATCH_PROBE_COLUMN = "_batchProbe";
+    private static final String BATCH_PROBE_KEYSPACE = "n";
+    private static final String BATCH_PROBE_COLUMN_FAMILY = "cn";
     /**
      * A set of columns that are indexed to allow operations within the driver.
      */
@@ -116,10 +155,39 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
     private Exception closed;
     private Exception passivate;
     private String rowidHash;
+    private DigestRowHasher rowHasher;
     private Map<String, AtomicInteger> counters = Maps.newConcurrentHashMap();
+    /**
+     * Resolved sql configuration keys, keyed by statement, key space, column
+     * family and shard. Values are the key or NO_SQL_KEY.
+     */
+    private Map<String, Object> sqlKeys = Maps.newConcurrentHashMap();
     private Set<String> indexColumns;
     private long slowQueryThreshold;
     private long verySlowQueryThreshold;
+    private int selectRowsChunkSize;
+    private int findPrefetchSize;
+    private int compressionThreshold;
+    /**
+     * The depth of nested batches, 0 outside a batch.
+     */
+    private int batchDepth;
+    /**
+     * The auto commit state of the connection before the outermost batch.
+     */
+    private boolean batchAutoCommit;
+    /**
+     * The rows written in the current batch, keyed by row id, as they are
+     * stored. The transaction of the batch holds the lock on each of them from
+     * the write to the commit, so no other transaction can change them and a
+     * further write to the same row in the batch needs no read.
+     */
+    private Map<String, Map<String, Object>> batchRows = Maps.newHashMap();
+    private final RowWriter rowWriter = new RowWriter() {
+        public List<PendingRow> write(List<PendingRow> rows) {
+            return writeRows(rows);
+        }
+    };
 
     public JDBCStorageClient(JDBCStorageClientPool jdbcStorageClientConnectionPool,
             Map<String, Object> properties, Map<String, Object> sqlConfig, Set<String> indexColumns) throws SQLException,
@@ -145,6 +213,10 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
         if (rowidHash == null) {
             rowidHash = "MD5";
         }
+        rowHasher = jdbcStorageClientConnectionPool.getRowHasher(rowidHash);
+        if (rowHasher == null) {
+            rowHasher = new DigestRowHasher(rowidHash, 0);
+        }
         active = true;
         slowQueryThreshold = 50L;
         verySlowQueryThreshold = 100L;
@@ -154,28 +226,59 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
         if (sqlConfig.containsKey(VERY_SLOW_QUERY_THRESHOLD)) {
             verySlowQueryThreshold = Long.parseLong((String)sqlConfig.get(VERY_SLOW_QUERY_THRESHOLD));
         }
+        selectRowsChunkSize = DEFAULT_SELECT_ROWS_CHUNK_SIZE;
+        if (sqlConfig.containsKey(SELECT_ROWS_CHUNK_SIZE)) {
+            selectRowsChunkSize = Integer.parseInt((String)sqlConfig.get(SELECT_ROWS_CHUNK_SIZE));
+        }
+        findPrefetchSize = DEFAULT_FIND_PREFETCH_SIZE;
+        if (sqlConfig.containsKey(FIND_PREFETCH_SIZE)) {
+            findPrefetchSize = Math.max(1, Integer.parseInt((String)sqlConfig.get(FIND_PREFETCH_SIZE)));
+        }
+        compressionThreshold = StorageClientUtils.getSetting(
+                properties.get(JDBCStorageClientPool.COMPRESSION_THRESHOLD), 0);
     }
 
     public Map<String, Object> get(String keySpace, String columnFamily, String key)
             throws StorageClientException {
         checkClosed();
         String rid = rowHash(keySpace, columnFamily, key);
-        return internalGet(keySpace, columnFamily, rid);
+        WriteBehindBuffer writeBehind = jcbcStorageClientConnection.getWriteBehindBuffer();
+        if (writeBehind == null) {
+            return internalGet(keySpace, columnFamily, rid);
+        }
+        // writes that have not been committed yet are applied to the stored
+        // row, they must be found before the row is read.
+        List<Map<String, Object>> unwritten = writeBehind.getPending(rid);
+        return WriteBehindBuffer.apply(internalGet(keySpace, columnFamily, rid), unwritten);
     }
     private Map<String, Object> internalGet(String keySpace, String columnFamily, String rid) throws StorageClientException {
+        Map<String, Object> result = readRow(keySpace, columnFamily, rid);
+        if (result == null) {
+            return Maps.newHashMap();
+        }
+        return result;
+    }
+
+    /**
+     * @return the stored row, or null if there is no row. A stored row may
+     *         have no properties.
+     */
+    private Map<String, Object> readRow(String keySpace, String columnFamily, String rid) throws StorageClientException {
         ResultSet body = null;
-        Map<String, Object> result = Maps.newHashMap();
+        Map<String, Object> result = null;
         PreparedStatement selectStringRow = null;
         try {
             selectStringRow = getStatement(keySpace, columnFamily, SQL_BLOCK_SELECT_ROW, rid, null);
-            inc("A");
             selectStringRow.clearWarnings();
             selectStringRow.clearParameters();
             selectStringRow.setString(1, rid);
             body = selectStringRow.executeQuery();
             inc("B");
             if (body.next()) {
-                Types.loadFromStream(rid, result, body.getBinaryStream(1), columnFamily);
+                // read the row in one piece rather than through the driver
+                // stream, values are decoded as they are used.
+                result = Types.loadRowFromBuffer(rid, ByteBuffer.wrap(body.getBytes(1)),
+                        columnFamily);
             }
         } catch (SQLException e) {
             LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily
@@ -199,48 +302,297 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
             throw new StorageClientException(e.getMessage(), e);
         } finally {
             close(body, "B");
-            close(selectStringRow, "A");
         }
         return result;
     }
 
-    public String rowHash(String keySpace, String columnFamily, String key)
+    public Map<String, Map<String, Object>> getAll(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        checkClosed();
+        Map<String, String> keysByRid = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            keysByRid.put(rowHash(keySpace, columnFamily, key), key);
+        }
+        WriteBehindBuffer writeBehind = jcbcStorageClientConnection.getWriteBehindBuffer();
+        Map<String, List<Map<String, Object>>> unwritten = Maps.newHashMap();
+        if (writeBehind != null) {
+            for (Entry<String, String> e : keysByRid.entrySet()) {
+                unwritten.put(e.getValue(), writeBehind.getPending(e.getKey()));
+            }
+        }
+        Map<String, Map<String, Object>> rows = internalGetAll(keySpace, columnFamily,
+                keysByRid.keySet());
+        Map<String, Map<String, Object>> result = Maps.newLinkedHashMap();
+        for (Entry<String, String> e : keysByRid.entrySet()) {
+            Map<String, Object> row = rows.get(e.getKey());
+            List<Map<String, Object>> rowUnwritten = unwritten.get(e.getValue());
+            if (rowUnwritten != null) {
+                row = WriteBehindBuffer.apply(row, rowUnwritten);
+            }
+            result.put(e.getValue(), row);
+        }
+        return result;
+    }
+
+    /**
+     * Get a number of rows by row id, in as few statements as the dialect
+     * allows.
+     *
+     * @return the rows keyed by row id, rows that don't exist are empty.
+     */
+    private Map<String, Map<String, Object>> internalGetAll(String keySpace,
+            String columnFamily, Collection<String> rids) throws StorageClientException {
+        Map<String, Map<String, Object>> result = Maps.newLinkedHashMap();
+        // rows are grouped by the statement that selects them, since the
+        // statement may be sharded on the row id.
+        Map<String, List<String>> ridsBySql = Maps.newLinkedHashMap();
+        for (String rid : rids) {
+            if (result.containsKey(rid)) {
+                continue;
+            }
+            String sqlKey = getSqlKey(keySpace, columnFamily, SQL_BLOCK_SELECT_ROWS, rid);
+            if (sqlKey == null) {
+                // this dialect has no multi row select, fall back to single
+                // row selects.
+                result.put(rid, internalGet(keySpace, columnFamily, rid));
+                continue;
+            }
+            result.put(rid, Maps.<String, Object>newHashMap());
+            List<String> sqlRids = ridsBySql.get(sqlKey);
+            if (sqlRids == null) {
+                sqlRids = Lists.newArrayList();
+                ridsBySql.put(sqlKey, sqlRids);
+            }
+            sqlRids.add(rid);
+        }
+        for (Entry<String, List<String>> e : ridsBySql.entrySet()) {
+            List<String> sqlRids = e.getValue();
+            for (int i = 0; i < sqlRids.size(); i += selectRowsChunkSize) {
+                List<String> chunk = sqlRids.subList(i,
+                        Math.min(i + selectRowsChunkSize, sqlRids.size()));
+                selectRows(keySpace, columnFamily, getSql(e.getKey()), chunk, result);
+            }
+        }
+        return result;
+    }
+
+    private void selectRows(String keySpace, String columnFamily, String sql,
+            List<String> rids, Map<String, Map<String, Object>> result)
             throws StorageClientException {
-        MessageDigest hasher;
-        try {
-            hasher = MessageDigest.getInstance(rowidHash);
-        } catch (NoSuchAlgorithmException e1) {
-            throw new StorageClientException("Unable to get hash algorithm " + e1.getMessage(), e1);
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < rids.size(); i++) {
+            if (i > 0) {
+                placeholders.append(", ");
+            }
+            placeholders.append("?");
         }
-        String keystring = keySpace + ":" + columnFamily + ":" + key;
-        byte[] ridkey;
+        String sqlStatement = MessageFormat.format(sql, placeholders.toString());
+        ResultSet body = null;
+        PreparedStatement selectRows = null;
         try {
-            ridkey = keystring.getBytes("UTF8");
-        } catch (UnsupportedEncodingException e) {
-            ridkey = keystring.getBytes();
+            selectRows = jcbcStorageClientConnection.getConnection().prepareStatement(sqlStatement);
+            inc("getAll");
+            selectRows.clearWarnings();
+            selectRows.clearParameters();
+            int i = 1;
+            for (String rid : rids) {
+                selectRows.setString(i, rid);
+                i++;
+            }
+            body = selectRows.executeQuery();
+            inc("getAll r");
+            while (body.next()) {
+                String rid = body.getString(1);
+                if (result.containsKey(rid)) {
+                    result.put(rid, Types.loadRowFromBuffer(rid, ByteBuffer.wrap(body.getBytes(2)),
+                            columnFamily));
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily
+                    + ":" + rids, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily
+                    + ":" + rids, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } finally {
+            close(body, "getAll r");
+            close(selectRows, "getAll");
         }
-        return StorageClientUtils.encode(hasher.digest(ridkey));
+    }
+
+    public String rowHash(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
+        return rowHasher.rowHash(keySpace, columnFamily, key);
     }
 
     public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException {
         checkClosed();
+        for (Entry<String, Object> e : values.entrySet()) {
+            String k = e.getKey();
+            Object o = e.getValue();
+            if (o instanceof byte[]) {
+                throw new RuntimeException("Invalid content in " + k
+                        + ", storing byte[] rather than streaming it");
+            }
+        }
+        WriteBehindBuffer writeBehind = jcbcStorageClientConnection.getWriteBehindBuffer();
+        if (writeBehind != null && batchDepth == 0) {
+            // the insert returns once the row has been committed, together
+            // with the inserts other threads made while it waited. The row
+            // may change again before it is written, so the current row is
+            // read when it is written. Writes in a batch are not held back,
+            // they are committed with the batch. Since every earlier insert
+            // through this client has been committed, no held back write of
+            // this client can land after them.
+            writeBehind.commit(writeBehind.add(rowHash(keySpace, columnFamily, key), keySpace,
+                    columnFamily, key, values, probablyNew), rowWriter);
+            return;
+        }
+        internalInsert(keySpace, columnFamily, key, values, probablyNew);
+    }
+
+    public void startBatch() throws StorageClientException {
+        checkClosed();
+        if (batchDepth == 0) {
+            // rows held back by other threads are committed first, since
+            // they must never be written in the transaction of the batch,
+            // where an abort would lose them.
+            flushWriteBehind();
+            // every statement until the commit runs in this transaction, the
+            // statements inside don't commit as the connection is no longer
+            // in auto commit.
+            try {
+                batchAutoCommit = startBlock();
+            } catch (SQLException e) {
+                LOGGER.warn("Failed to start batch {} ", e.getMessage());
+                throw new StorageClientException(e.getMessage(), e);
+            }
+        }
+        batchDepth++;
+    }
+
+    public void commitBatch() throws StorageClientException {
+        checkClosed();
+        if (batchDepth == 0) {
+            throw new StorageClientException("No batch to commit");
+        }
+        if (batchDepth == 1) {
+            batchRows.clear();
+            try {
+                endBlock(batchAutoCommit);
+                inc("batch");
+            } catch (SQLException e) {
+                LOGGER.warn("Failed to commit batch {} ", e.getMessage());
+                throw new StorageClientException(e.getMessage(), e);
+            }
+        }
+        batchDepth--;
+    }
+
+    public void abortBatch() {
+        if (batchDepth > 0) {
+            batchDepth = 0;
+            batchRows.clear();
+            abandonBlock(batchAutoCommit);
+        }
+    }
+
+    /**
+     * Commit the writes other clients of the same pool are holding back to
+     * commit together. Writes made through this client are committed before
+     * insert returns, so this is only needed to hurry the writes of others.
+     * Inside a batch nothing is flushed.
+     *
+     * @throws StorageClientException
+     */
+    public void flush() throws StorageClientException {
+        checkClosed();
+        flushWriteBehind();
+    }
+
+    /**
+     * Flush the write behind buffer on the connection of this client, unless
+     * the client is in a batch. The buffer holds the rows of other threads,
+     * which must not be committed or rolled back with the batch.
+     */
+    private void flushWriteBehind() {
+        WriteBehindBuffer writeBehind = jcbcStorageClientConnection.getWriteBehindBuffer();
+        if (writeBehind != null && batchDepth == 0) {
+            writeBehind.flush(rowWriter);
+        }
+    }
 
+    /**
+     * Write rows held back by the write behind buffer in one transaction. If
+     * the transaction fails each row is written in a transaction of its own,
+     * so that one bad row doesn't hold back the others.
+     *
+     * @return the rows that could not be written.
+     */
+    List<PendingRow> writeRows(List<PendingRow> rows) {
+        boolean autoCommit = true;
+        try {
+            autoCommit = startBlock();
+            for (PendingRow row : rows) {
+                internalInsert(row.getKeySpace(), row.getColumnFamily(), row.getKey(),
+                        row.getValues(), row.isProbablyNew());
+            }
+            endBlock(autoCommit);
+            inc("group commit");
+            return Collections.emptyList();
+        } catch (SQLException e) {
+            abandonBlock(autoCommit);
+            LOGGER.warn("Failed to write {} rows together, writing them one at a time {} ",
+                    rows.size(), e.getMessage());
+        } catch (StorageClientException e) {
+            abandonBlock(autoCommit);
+            LOGGER.warn("Failed to write {} rows together, writing them one at a time {} ",
+                    rows.size(), e.getMessage());
+        }
+        List<PendingRow> failed = Lists.newArrayList();
+        for (PendingRow row : rows) {
+            try {
+                internalInsert(row.getKeySpace(), row.getColumnFamily(), row.getKey(),
+                        row.getValues(), row.isProbablyNew());
+            } catch (StorageClientException e) {
+                LOGGER.warn("Failed to write {}:{}:{} {} ", new Object[] { row.getKeySpace(),
+                        row.getColumnFamily(), row.getKey(), e.getMessage() });
+                failed.add(row);
+            }
+        }
+        return failed;
+    }
+
+    private void internalInsert(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew)
+            throws StorageClientException {
         Map<String, PreparedStatement> statementCache = Maps.newHashMap();
         boolean autoCommit = true;
+        boolean completed = false;
         try {
             autoCommit = startBlock();
             String rid = rowHash(keySpace, columnFamily, key);
-            for (Entry<String, Object> e : values.entrySet()) {
-                String k = e.getKey();
-                Object o = e.getValue();
-                if (o instanceof byte[]) {
-                    throw new RuntimeException("Invalid content in " + k
-                            + ", storing byte[] rather than streaming it");
-                }
-            }
 
-            Map<String, Object> m = get(keySpace, columnFamily, key);
+            // the row before this update, used to work out which index
+            // columns have changed. This is the stored row, without any
+            // writes that are still held back, read in the same transaction
+            // as the write. A cached copy may be stale or a negative entry,
+            // which would lose properties and index rows. A row this batch
+            // has already written is locked by it, so what was written is
+            // what is stored. Whether the row is stored also decides between
+            // inserting and updating it.
+            Map<String, Object> before = batchRows.get(rid);
+            if (before == null) {
+                before = readRow(keySpace, columnFamily, rid);
+            }
+            boolean stored = before != null;
+            if (!stored) {
+                before = Maps.newHashMap();
+            }
+            Map<String, Object> m = Maps.newHashMap(before);
             for (Entry<String, Object> e : values.entrySet()) {
                 String k = e.getKey();
                 Object o = e.getValue();
@@ -252,96 +604,66 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
                 }
             }
             LOGGER.debug("Saving {} {} {} ", new Object[]{key, rid, m});
-            if ( probablyNew && !UPDATE_FIRST_SEQUENCE.equals(getSql(SQL_STATEMENT_SEQUENCE))) {
-                PreparedStatement insertBlockRow = getStatement(keySpace, columnFamily,
-                        SQL_BLOCK_INSERT_ROW, rid, statementCache);
-                insertBlockRow.clearWarnings();
-                insertBlockRow.clearParameters();
-                insertBlockRow.setString(1, rid);
-                InputStream insertStream = null;
-                try {
-                  insertStream = Types.storeMapToStream(rid, m, columnFamily);
-                } catch (UTFDataFormatException e) {
-                  throw new DataFormatException(INVALID_DATA_ERROR, e);
-                }
-              if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
-                  insertBlockRow.setBinaryStream(2, insertStream, insertStream.available());
-                } else {
-                  insertBlockRow.setBinaryStream(2, insertStream);
-                }
-                int rowsInserted = 0;
-                try {
-                    rowsInserted = insertBlockRow.executeUpdate();
-                } catch ( SQLException e ) {
-                    LOGGER.debug(e.getMessage(),e);
-                }
-                if ( rowsInserted == 0 ) {
-                    PreparedStatement updateBlockRow = getStatement(keySpace, columnFamily,
-                            SQL_BLOCK_UPDATE_ROW, rid, statementCache);
-                    updateBlockRow.clearWarnings();
-                    updateBlockRow.clearParameters();
-                    updateBlockRow.setString(2, rid);
-                  try {
-                    insertStream = Types.storeMapToStream(rid, m, columnFamily);
-                  } catch (UTFDataFormatException e) {
-                    throw new DataFormatException(INVALID_DATA_ERROR, e);
-                  }
-                  if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
-                      updateBlockRow.setBinaryStream(1, insertStream, insertStream.available());
-                    } else {
-                      updateBlockRow.setBinaryStream(1, insertStream);
-                    }
-                    if( updateBlockRow.executeUpdate() == 0) {
-                        throw new StorageClientException("Failed to save " + rid);
-                    } else {
-                        LOGGER.debug("Updated {} ", rid);
-                    }
-                } else {
-                    LOGGER.debug("Inserted {} ", rid);                    
-                }                
-            } else {
+            // the body is serialized once, whichever statements are needed to
+            // store it.
+            InputStream body = null;
+            try {
+                body = Types.storeMapToStream(rid, m, columnFamily, compressionThreshold);
+            } catch (UTFDataFormatException e) {
+                throw new DataFormatException(INVALID_DATA_ERROR, e);
+            }
+            PreparedStatement upsertBlockRow = getStatement(keySpace, columnFamily,
+                    SQL_BLOCK_UPSERT_ROW, rid, statementCache);
+            if (upsertBlockRow != null) {
+                upsertBlockRow.clearWarnings();
+                upsertBlockRow.clearParameters();
+                upsertBlockRow.setString(1, rid);
+                setBody(upsertBlockRow, 2, body);
+                // some databases report 0 rows when an update leaves the row
+                // unchanged, so only an exception is a failure.
+                upsertBlockRow.executeUpdate();
+                LOGGER.debug("Upserted {} ", rid);
+            } else if (stored) {
                 PreparedStatement updateBlockRow = getStatement(keySpace, columnFamily,
                         SQL_BLOCK_UPDATE_ROW, rid, statementCache);
                 updateBlockRow.clearWarnings();
                 updateBlockRow.clearParameters();
                 updateBlockRow.setString(2, rid);
-              InputStream updateStream = null;
-              try {
-                updateStream = Types.storeMapToStream(rid, m, columnFamily);
-              } catch (UTFDataFormatException e) {
-                  throw new DataFormatException(INVALID_DATA_ERROR, e);
-              }
-              if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
-                  updateBlockRow.setBinaryStream(1, updateStream, updateStream.available());
-                } else {
-                  updateBlockRow.setBinaryStream(1, updateStream);
-                }
+                setBody(updateBlockRow, 1, body);
                 if (updateBlockRow.executeUpdate() == 0) {
-                    PreparedStatement insertBlockRow = getStatement(keySpace, columnFamily,
-                            SQL_BLOCK_INSERT_ROW, rid, statementCache);
-                    insertBlockRow.clearWarnings();
-                    insertBlockRow.clearParameters();
-                    insertBlockRow.setString(1, rid);
-                  try {
-                    updateStream = Types.storeMapToStream(rid, m, columnFamily);
-                  } catch (UTFDataFormatException e) {
-                    throw new DataFormatException(INVALID_DATA_ERROR, e);
-                  }
-                  if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
-                      insertBlockRow.setBinaryStream(2, updateStream, updateStream.available());
-                    } else {
-                      insertBlockRow.setBinaryStream(2, updateStream);
-                    }
-                    if (insertBlockRow.executeUpdate() == 0) {
-                        throw new StorageClientException("Failed to save " + rid);
-                    } else {
-                        LOGGER.debug("Inserted {} ", rid);
-                    }
-                } else {
-                    LOGGER.debug("Updated {} ", rid);
+                    throw new StorageClientException("Failed to save " + rid);
+                }
+                LOGGER.debug("Updated {} ", rid);
+            } else {
+                PreparedStatement insertBlockRow = getStatement(keySpace, columnFamily,
+                        SQL_BLOCK_INSERT_ROW, rid, statementCache);
+                insertBlockRow.clearWarnings();
+                insertBlockRow.clearParameters();
+                insertBlockRow.setString(1, rid);
+                setBody(insertBlockRow, 2, body);
+                if (insertBlockRow.executeUpdate() == 0) {
+                    throw new StorageClientException("Failed to save " + rid);
                 }
+                LOGGER.debug("Inserted {} ", rid);
             }
-            if ("1".equals(getSql(USE_BATCH_INSERTS))) {
+            if (batchDepth > 0) {
+                batchRows.put(rid, m);
+            }
+            // only index columns whose values have changed need their index
+            // rows rewritten, and the parent hash only changes with the key,
+            // so is only written for a new row.
+            List<Entry<String, Object>> indexChanges = Lists.newArrayList();
+            for (Entry<String, Object> e : values.entrySet()) {
+                String k = e.getKey();
+                if (shouldIndex(keySpace, columnFamily, k)
+                        && !Arrays.equals(toIndexValues(before.get(k)), toIndexValues(m.get(k)))) {
+                    indexChanges.add(e);
+                }
+            }
+            boolean newRow = !stored;
+            BatchSupport batchSupport = jcbcStorageClientConnection.getBatchSupport();
+            if (batchSupport == BatchSupport.UPDATE_COUNTS
+                    || batchSupport == BatchSupport.NO_UPDATE_COUNTS) {
                 Set<PreparedStatement> removeSet = Sets.newHashSet();
                 // execute the updates and add the necessary inserts.
                 Map<PreparedStatement, List<Entry<String, Object>>> insertSequence = Maps
@@ -349,62 +671,56 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
 
                 Set<PreparedStatement> insertSet = Sets.newHashSet();
 
-                for (Entry<String, Object> e : values.entrySet()) {
+                for (Entry<String, Object> e : indexChanges) {
                     String k = e.getKey();
                     Object o = e.getValue();
-                    if (shouldIndex(keySpace, columnFamily, k)) {
-                        if ( o instanceof RemoveProperty || o == null ) {
-                            PreparedStatement removeStringColumn = getStatement(keySpace,
-                                    columnFamily, SQL_REMOVE_STRING_COLUMN, rid, statementCache);
-                            removeStringColumn.setString(1, rid);
-                            removeStringColumn.setString(2, k);
-                            removeStringColumn.addBatch();
-                            removeSet.add(removeStringColumn);
-                        } else {
-                            // remove all previous values
+                    if ( o instanceof RemoveProperty || o == null ) {
+                        PreparedStatement removeStringColumn = getStatement(keySpace,
+                                columnFamily, SQL_REMOVE_STRING_COLUMN, rid, statementCache);
+                        removeStringColumn.setString(1, rid);
+                        removeStringColumn.setString(2, k);
+                        removeStringColumn.addBatch();
+                        removeSet.add(removeStringColumn);
+                    } else {
+                        // remove all previous values, if there were any
+                        if (before.get(k) != null) {
                             PreparedStatement removeStringColumn = getStatement(keySpace,
                                     columnFamily, SQL_REMOVE_STRING_COLUMN, rid, statementCache);
                             removeStringColumn.setString(1, rid);
                             removeStringColumn.setString(2, k);
                             removeStringColumn.addBatch();
                             removeSet.add(removeStringColumn);
-                            // insert new values, as we just removed them we know we can insert, no need to attempt update
-                            // the only thing that we know is the colum value changes so we have to re-index the whole
-                            // property
-                            Object[] valueMembers = (o instanceof Object[]) ? (Object[]) o : new Object[] { o };
-                            for (Object ov : valueMembers) {
-                                String valueMember = ov.toString();
-                                PreparedStatement insertStringColumn = getStatement(keySpace,
-                                    columnFamily, SQL_INSERT_STRING_COLUMN, rid, statementCache);
-                                insertStringColumn.setString(1, valueMember);
-                                insertStringColumn.setString(2, rid);
-                                insertStringColumn.setString(3, k);
-                                insertStringColumn.addBatch();
-                                LOGGER.debug("Insert Index {} {}", k, valueMember);
-                                insertSet.add(insertStringColumn);
-                                List<Entry<String, Object>> insertSeq = insertSequence
-                                .get(insertStringColumn);
-                                if (insertSeq == null) {
-                                  insertSeq = Lists.newArrayList();
-                                  insertSequence.put(insertStringColumn, insertSeq);
-                                }
-                                insertSeq.add(e);
+                        }
+                        // insert new values, as we just removed them we know we can insert, no need to attempt update
+                        // the only thing that we know is the colum value changes so we have to re-index the whole
+                        // property
+                        Object[] valueMembers = (o instanceof Object[]) ? (Object[]) o : new Object[] { o };
+                        for (Object ov : valueMembers) {
+                            String valueMember = ov.toString();
+                            PreparedStatement insertStringColumn = getStatement(keySpace,
+                                columnFamily, SQL_INSERT_STRING_COLUMN, rid, statementCache);
+                            insertStringColumn.setString(1, valueMember);
+                            insertStringColumn.setString(2, rid);
+                            insertStringColumn.setString(3, k);
+                            insertStringColumn.addBatch();
+                            LOGGER.debug("Insert Index {} {}", k, valueMember);
+                            insertSet.add(insertStringColumn);
+                            List<Entry<String, Object>> insertSeq = insertSequence
+                            .get(insertStringColumn);
+                            if (insertSeq == null) {
+                              insertSeq = Lists.newArrayList();
+                              insertSequence.put(insertStringColumn, insertSeq);
                             }
+                            insertSeq.add(e);
                         }
                     }
                 }
 
-                if ( !StorageClientUtils.isRoot(key)) {
+                if ( newRow && !StorageClientUtils.isRoot(key)) {
                     // create a holding map containing a rowhash of the parent and then process the entry to generate a update operation.
                     Map<String, Object> autoIndexMap = ImmutableMap.of(InternalContent.PARENT_HASH_FIELD, (Object)rowHash(keySpace, columnFamily, StorageClientUtils.getParentObjectPath(key)));
                     for ( Entry<String, Object> e : autoIndexMap.entrySet()) {
-                        // remove all previous values
-                        PreparedStatement removeStringColumn = getStatement(keySpace,
-                                columnFamily, SQL_REMOVE_STRING_COLUMN, rid, statementCache);
-                        removeStringColumn.setString(1, rid);
-                        removeStringColumn.setString(2, e.getKey());
-                        removeStringColumn.addBatch();
-                        removeSet.add(removeStringColumn);
+                        // the row is new, so there are no previous values.
                         PreparedStatement insertStringColumn = getStatement(keySpace,
                                 columnFamily, SQL_INSERT_STRING_COLUMN, rid, statementCache);
                         insertStringColumn.setString(1, (String)e.getValue());
@@ -435,10 +751,13 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
                     List<Entry<String, Object>> insertSeq = insertSequence.get(pst);
                     for (int i = 0; i < res.length; i++ ) {
                         Entry<String, Object> e = insertSeq.get(i);
-                        if ( res[i] <= 0 && res[i] != -2 ) { // Oracle drivers respond with -2 on a successful insert when the number is not known http://download.oracle.com/javase/1.3/docs/guide/jdbc/spec2/jdbc2.1.frame6.html
-                            LOGGER.warn("Index failed for {} {} ", new Object[] { rid, e.getKey(),
-                                    e.getValue() });
-                            
+                        // the count is only checked if the driver was seen to
+                        // report counts for batches when the pool started.
+                        if (res[i] == Statement.EXECUTE_FAILED
+                                || (res[i] == 0 && batchSupport == BatchSupport.UPDATE_COUNTS)) {
+                            throw new StorageClientException("Failed to save "
+                                    + getRowId(keySpace, columnFamily, key) + "  column:["
+                                    + e.getKey() + "] ");
                         } else {
                             LOGGER.debug("Index inserted for {} {} ", new Object[] { rid, e.getKey(),
                                     e.getValue() });
@@ -448,28 +767,29 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
                 }
 
             } else {
-                for (Entry<String, Object> e : values.entrySet()) {
+                for (Entry<String, Object> e : indexChanges) {
                     String k = e.getKey();
                     Object o = e.getValue();
-                    if (shouldIndex(keySpace, columnFamily, k)) {
-                        if (o instanceof RemoveProperty || o == null) {
-                            PreparedStatement removeStringColumn = getStatement(keySpace,
-                                    columnFamily, SQL_REMOVE_STRING_COLUMN, rid, statementCache);
-                            removeStringColumn.clearWarnings();
-                            removeStringColumn.clearParameters();
-                            removeStringColumn.setString(1, rid);
-                            removeStringColumn.setString(2, k);
-                            int nrows = removeStringColumn.executeUpdate();
-                            if (nrows == 0) {
-                                m = get(keySpace, columnFamily, key);
-                                LOGGER.debug(
-                                        "Column Not present did not remove {} {} Current Column:{} ",
-                                        new Object[] { getRowId(keySpace, columnFamily, key), k, m });
-                            } else {
-                                LOGGER.debug("Removed Index {} {} {} ",
-                                        new Object[]{getRowId(keySpace, columnFamily, key), k, nrows});
-                            }
+                    if (o instanceof RemoveProperty || o == null) {
+                        PreparedStatement removeStringColumn = getStatement(keySpace,
+                                columnFamily, SQL_REMOVE_STRING_COLUMN, rid, statementCache);
+                        removeStringColumn.clearWarnings();
+                        removeStringColumn.clearParameters();
+                        removeStringColumn.setString(1, rid);
+                        removeStringColumn.setString(2, k);
+                        int nrows = removeStringColumn.executeUpdate();
+                        if (nrows == 0) {
+                            m = get(keySpace, columnFamily, key);
+                            LOGGER.debug(
+                                    "Column Not present did not remove {} {} Current Column:{} ",
+                                    new Object[] { getRowId(keySpace, columnFamily, key), k, m });
                         } else {
+                            LOGGER.debug("Removed Index {} {} {} ",
+                                    new Object[]{getRowId(keySpace, columnFamily, key), k, nrows});
+                        }
+                    } else {
+                        // remove all previous values, if there were any
+                        if (before.get(k) != null) {
                             PreparedStatement removeStringColumn = getStatement(keySpace,
                                     columnFamily, SQL_REMOVE_STRING_COLUMN, rid, statementCache);
                             removeStringColumn.clearWarnings();
@@ -486,32 +806,32 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
                                 LOGGER.debug("Removed Index {} {} {} ",
                                         new Object[]{getRowId(keySpace, columnFamily, key), k, nrows});
                             }
-                            Object[] os = (o instanceof Object[]) ? (Object[]) o : new Object[] { o };
-                            for (Object ov : os) {
-                                String v = ov.toString();
-                                PreparedStatement insertStringColumn = getStatement(keySpace,
-                                        columnFamily, SQL_INSERT_STRING_COLUMN, rid, statementCache);
-                                insertStringColumn.clearWarnings();
-                                insertStringColumn.clearParameters();
-                                insertStringColumn.setString(1, v);
-                                insertStringColumn.setString(2, rid);
-                                insertStringColumn.setString(3, k);
-                                LOGGER.debug("Non Batch Insert Index {} {}", k, v);
-                                if (insertStringColumn.executeUpdate() == 0) {
-                                    throw new StorageClientException("Failed to save "
-                                            + getRowId(keySpace, columnFamily, key) + "  column:["
-                                            + k + "] ");
-                                } else {
-                                    LOGGER.debug("Inserted Index {} {} [{}]",
-                                            new Object[] { getRowId(keySpace, columnFamily, key),
-                                                    k, v });
-                                }
+                        }
+                        Object[] os = (o instanceof Object[]) ? (Object[]) o : new Object[] { o };
+                        for (Object ov : os) {
+                            String v = ov.toString();
+                            PreparedStatement insertStringColumn = getStatement(keySpace,
+                                    columnFamily, SQL_INSERT_STRING_COLUMN, rid, statementCache);
+                            insertStringColumn.clearWarnings();
+                            insertStringColumn.clearParameters();
+                            insertStringColumn.setString(1, v);
+                            insertStringColumn.setString(2, rid);
+                            insertStringColumn.setString(3, k);
+                            LOGGER.debug("Non Batch Insert Index {} {}", k, v);
+                            if (insertStringColumn.executeUpdate() == 0) {
+                                throw new StorageClientException("Failed to save "
+                                        + getRowId(keySpace, columnFamily, key) + "  column:["
+                                        + k + "] ");
+                            } else {
+                                LOGGER.debug("Inserted Index {} {} [{}]",
+                                        new Object[] { getRowId(keySpace, columnFamily, key),
+                                                k, v });
                             }
                         }
                     }
                 }
 
-                if (!StorageClientUtils.isRoot(key)) {
+                if (newRow && !StorageClientUtils.isRoot(key)) {
                     String parent = StorageClientUtils.getParentObjectPath(key);
                     String hash = rowHash(keySpace, columnFamily, parent);
                     LOGGER.debug("Hash of {}:{}:{} is {} ", new Object[] { keySpace, columnFamily,
@@ -521,24 +841,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
                     for (Entry<String, Object> e : autoIndexMap.entrySet()) {
                         String k = e.getKey();
                         Object v = e.getValue();
-                        PreparedStatement removeStringColumn = getStatement(keySpace, columnFamily,
-                                SQL_REMOVE_STRING_COLUMN, rid, statementCache);
-                        removeStringColumn.clearWarnings();
-                        removeStringColumn.clearParameters();
-                        removeStringColumn.setString(1, rid);
-                        removeStringColumn.setString(2, k);
-                        int nrows = removeStringColumn.executeUpdate();
-                        if (nrows == 0) {
-                            m = get(keySpace, columnFamily, key);
-                            LOGGER.debug(
-                                    "Column Not present did not remove {} {} Current Column:{} ",
-                                    new Object[] { getRowId(keySpace, columnFamily, key), k, m });
-                        } else {
-                            LOGGER.debug(
-                                    "Removed Index {} {} {} ",
-                                    new Object[] { getRowId(keySpace, columnFamily, key), k, nrows });
-                        }
-
+                        // the row is new, so there are no previous values.
                         PreparedStatement insertStringColumn = getStatement(keySpace, columnFamily,
                                 SQL_INSERT_STRING_COLUMN, rid, statementCache);
                         insertStringColumn.clearWarnings();
@@ -560,6 +863,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
 
             }
             endBlock(autoCommit);
+            completed = true;
         } catch (SQLException e) {
             abandonBlock(autoCommit);
             LOGGER.warn("Failed to perform insert/update operation on {}:{}:{} ", new Object[] {
@@ -571,7 +875,98 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
                     keySpace, columnFamily, key }, e);
             throw new StorageClientException(e.getMessage(), e);
         } finally {
-            close(statementCache);
+            if (!completed) {
+                // the statements stay open on the connection, so don't leave
+                // a partial batch behind for the next caller.
+                clearBatches(statementCache);
+            }
+        }
+    }
+
+    /**
+     * Work out whether index updates can be sent as JDBC batches, and whether
+     * the driver reports an update count for each statement in a batch, by
+     * batching two index inserts for a row that does not exist. The inserts
+     * are removed and rolled back.
+     *
+     * @return how index updates should be sent, NONE if batches are disabled
+     *         in the sql configuration or don't work with this driver.
+     */
+    public BatchSupport checkBatchSupport() {
+        if (!"1".equals(getSql(USE_BATCH_INSERTS))) {
+            return BatchSupport.NONE;
+        }
+        boolean autoCommit = true;
+        PreparedStatement insertStringColumn = null;
+        try {
+            if (!jcbcStorageClientConnection.getConnection().getMetaData().supportsBatchUpdates()) {
+                LOGGER.info("Driver does not support batch updates, index updates will not be batched");
+                return BatchSupport.NONE;
+            }
+            autoCommit = startBlock();
+            String rid = rowHash(BATCH_PROBE_KEYSPACE, BATCH_PROBE_COLUMN_FAMILY,
+                    StorageClientUtils.getInternalUuid());
+            insertStringColumn = getStatement(BATCH_PROBE_KEYSPACE, BATCH_PROBE_COLUMN_FAMILY,
+                    SQL_INSERT_STRING_COLUMN, rid, null);
+            for (int i = 0; i < 2; i++) {
+                insertStringColumn.setString(1, String.valueOf(i));
+                insertStringColumn.setString(2, rid);
+                insertStringColumn.setString(3, BATCH_PROBE_COLUMN);
+                insertStringColumn.addBatch();
+            }
+            int[] res = insertStringColumn.executeBatch();
+            PreparedStatement removeStringColumn = getStatement(BATCH_PROBE_KEYSPACE,
+                    BATCH_PROBE_COLUMN_FAMILY, SQL_REMOVE_STRING_COLUMN, rid, null);
+            removeStringColumn.clearParameters();
+            removeStringColumn.setString(1, rid);
+            removeStringColumn.setString(2, BATCH_PROBE_COLUMN);
+            removeStringColumn.executeUpdate();
+            if (res.length != 2) {
+                LOGGER.info("Batch update reported {} results for 2 inserts, index updates will not be batched", res.length);
+                return BatchSupport.NONE;
+            }
+            BatchSupport batchSupport = BatchSupport.UPDATE_COUNTS;
+            for (int r : res) {
+                if (r == Statement.SUCCESS_NO_INFO) {
+                    batchSupport = BatchSupport.NO_UPDATE_COUNTS;
+                } else if (r != 1) {
+                    LOGGER.info("Batch update reported {} for an insert, index updates will not be batched", r);
+                    return BatchSupport.NONE;
+                }
+            }
+            LOGGER.info("Index updates will be batched, batch update counts {} ",
+                    (batchSupport == BatchSupport.UPDATE_COUNTS) ? "are reported" : "are not reported");
+            return batchSupport;
+        } catch (SQLException e) {
+            LOGGER.info("Batch updates failed, index updates will not be batched {} ", e.getMessage());
+            return BatchSupport.NONE;
+        } catch (StorageClientException e) {
+            LOGGER.info("Batch updates failed, index updates will not be batched {} ", e.getMessage());
+            return BatchSupport.NONE;
+        } finally {
+            if (insertStringColumn != null) {
+                try {
+                    insertStringColumn.clearBatch();
+                } catch (SQLException e) {
+                    LOGGER.debug(e.getMessage(), e);
+                }
+            }
+            // nothing written by the check is kept.
+            abandonBlock(autoCommit);
+        }
+    }
+
+    /**
+     * Bind a serialized row body to a statement parameter. The body may be
+     * bound more than once, it is rewound each time.
+     */
+    private void setBody(PreparedStatement pst, int index, InputStream body)
+            throws SQLException, IOException {
+        body.reset();
+        if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
+            pst.setBinaryStream(index, body, body.available());
+        } else {
+            pst.setBinaryStream(index, body);
         }
     }
 
@@ -602,6 +997,22 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
         return autoCommit;
       }
 
+    /**
+     * @return the values held in the index for a property, one per member of
+     *         an array, or null if the property has no value.
+     */
+    private String[] toIndexValues(Object o) {
+        if (o == null || o instanceof RemoveProperty) {
+            return null;
+        }
+        Object[] os = (o instanceof Object[]) ? (Object[]) o : new Object[] { o };
+        String[] indexValues = new String[os.length];
+        for (int i = 0; i < os.length; i++) {
+            indexValues[i] = os[i].toString();
+        }
+        return indexValues;
+    }
+
     private boolean shouldIndex(String keySpace, String columnFamily, String k) {
         if ( AUTO_INDEX_COLUMNS.contains(columnFamily+":"+k)) {
             return true;
@@ -622,21 +1033,27 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
     public void remove(String keySpace, String columnFamily, String key)
             throws StorageClientException {
         checkClosed();
+        WriteBehindBuffer writeBehind = jcbcStorageClientConnection.getWriteBehindBuffer();
+        String rid = rowHash(keySpace, columnFamily, key);
+        if (writeBehind != null && writeBehind.isPending(rid)) {
+            // writes other threads made before the remove must not recreate
+            // the row after it. In a batch they were flushed when the batch
+            // started.
+            flushWriteBehind();
+        }
+        batchRows.remove(rid);
         PreparedStatement deleteStringRow = null;
         PreparedStatement deleteBlockRow = null;
-        String rid = rowHash(keySpace, columnFamily, key);
         boolean autoCommit = false;
         try {
             autoCommit = startBlock();
             deleteStringRow = getStatement(keySpace, columnFamily, SQL_DELETE_STRING_ROW, rid, null);
-            inc("deleteStringRow");
             deleteStringRow.clearWarnings();
             deleteStringRow.clearParameters();
             deleteStringRow.setString(1, rid);
             deleteStringRow.executeUpdate();
 
             deleteBlockRow = getStatement(keySpace, columnFamily, SQL_BLOCK_DELETE_ROW, rid, null);
-            inc("deleteBlockRow");
             deleteBlockRow.clearWarnings();
             deleteBlockRow.clearParameters();
             deleteBlockRow.setString(1, rid);
@@ -647,9 +1064,77 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
             LOGGER.warn("Failed to perform delete operation on {}:{}:{} ", new Object[] { keySpace,
                     columnFamily, key }, e);
             throw new StorageClientException(e.getMessage(), e);
-        } finally {
-            close(deleteStringRow, "deleteStringRow");
-            close(deleteBlockRow, "deleteBlockRow");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Every index row of the row is rewritten. Updates only rewrite the index
+     * rows of values that change, and only index the parent hash when the row
+     * is created, so a row written before one of its columns was indexed is
+     * not found by queries on those columns until it is reindexed.
+     */
+    public void reindex(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
+        checkClosed();
+        WriteBehindBuffer writeBehind = jcbcStorageClientConnection.getWriteBehindBuffer();
+        String rid = rowHash(keySpace, columnFamily, key);
+        if (writeBehind != null && writeBehind.isPending(rid)) {
+            // index the row as it will be stored.
+            flushWriteBehind();
+        }
+        boolean autoCommit = true;
+        try {
+            autoCommit = startBlock();
+            Map<String, Object> row = internalGet(keySpace, columnFamily, rid);
+            PreparedStatement deleteStringRow = getStatement(keySpace, columnFamily,
+                    SQL_DELETE_STRING_ROW, rid, null);
+            deleteStringRow.clearWarnings();
+            deleteStringRow.clearParameters();
+            deleteStringRow.setString(1, rid);
+            deleteStringRow.executeUpdate();
+            if (!row.isEmpty()) {
+                Map<String, Object> index = Maps.newHashMap();
+                for (Entry<String, Object> e : row.entrySet()) {
+                    if (shouldIndex(keySpace, columnFamily, e.getKey())) {
+                        index.put(e.getKey(), e.getValue());
+                    }
+                }
+                if (!StorageClientUtils.isRoot(key)) {
+                    index.put(InternalContent.PARENT_HASH_FIELD, rowHash(keySpace, columnFamily,
+                            StorageClientUtils.getParentObjectPath(key)));
+                }
+                for (Entry<String, Object> e : index.entrySet()) {
+                    String[] indexValues = toIndexValues(e.getValue());
+                    if (indexValues == null) {
+                        continue;
+                    }
+                    for (String v : indexValues) {
+                        PreparedStatement insertStringColumn = getStatement(keySpace,
+                                columnFamily, SQL_INSERT_STRING_COLUMN, rid, null);
+                        insertStringColumn.clearWarnings();
+                        insertStringColumn.clearParameters();
+                        insertStringColumn.setString(1, v);
+                        insertStringColumn.setString(2, rid);
+                        insertStringColumn.setString(3, e.getKey());
+                        if (insertStringColumn.executeUpdate() == 0) {
+                            throw new StorageClientException("Failed to reindex "
+                                    + getRowId(keySpace, columnFamily, key) + "  column:["
+                                    + e.getKey() + "] ");
+                        }
+                    }
+                }
+            }
+            endBlock(autoCommit);
+            LOGGER.debug("Reindexed {} ", rid);
+        } catch (SQLException e) {
+            abandonBlock(autoCommit);
+            LOGGER.warn("Failed to reindex {}:{}:{} ", new Object[] { keySpace, columnFamily,
+                    key }, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (StorageClientException e) {
+            abandonBlock(autoCommit);
+            throw e;
         }
     }
 
@@ -673,41 +1158,69 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
     }
 
     /**
-     * Get a prepared statement, potentially optimized and sharded.
+     * Get a prepared statement, potentially optimized and sharded. The
+     * statement is cached on the connection of the current thread and reused
+     * by later calls, so it must not be closed.
      * 
      * @param keySpace
      * @param columnFamily
      * @param sqlSelectStringRow
      * @param rid
      * @param statementCache
+     *            if not null, records the statements used by the current
+     *            operation.
      * @return
      * @throws SQLException
      */
     private PreparedStatement getStatement(String keySpace, String columnFamily,
             String sqlSelectStringRow, String rid, Map<String, PreparedStatement> statementCache)
             throws SQLException {
+        String k = getSqlKey(keySpace, columnFamily, sqlSelectStringRow, rid);
+        if (k == null) {
+            return null;
+        }
+        if (statementCache != null && statementCache.containsKey(k)) {
+            return statementCache.get(k);
+        }
+        PreparedStatement pst = jcbcStorageClientConnection.getStatement((String) sqlConfig.get(k));
+        if (statementCache != null) {
+            statementCache.put(k, pst);
+        }
+        return pst;
+    }
+
+    /**
+     * Find the most specific configuration key for a statement, the statement
+     * may be specialized by key space, column family and shard.
+     *
+     * @return the key of the statement in the sql configuration or null if
+     *         there is none.
+     */
+    private String getSqlKey(String keySpace, String columnFamily, String statementName,
+            String rid) {
         String shard = rid.substring(0, 1);
+        String sqlKeyId = statementName + ":" + keySpace + ":" + columnFamily + ":" + shard;
+        Object sqlKey = sqlKeys.get(sqlKeyId);
+        if (sqlKey == null) {
+            sqlKey = resolveSqlKey(keySpace, columnFamily, statementName, shard);
+            sqlKeys.put(sqlKeyId, (sqlKey == null) ? NO_SQL_KEY : sqlKey);
+        }
+        return (sqlKey == NO_SQL_KEY) ? null : (String) sqlKey;
+    }
+
+    private String resolveSqlKey(String keySpace, String columnFamily, String statementName,
+            String shard) {
         String[] keys = new String[] {
-                sqlSelectStringRow + "." + keySpace + "." + columnFamily + "._" + shard,
-                sqlSelectStringRow + "." + columnFamily + "._" + shard,
-                sqlSelectStringRow + "." + keySpace + "._" + shard,
-                sqlSelectStringRow + "._" + shard,
-                sqlSelectStringRow + "." + keySpace + "." + columnFamily,
-                sqlSelectStringRow + "." + columnFamily, sqlSelectStringRow + "." + keySpace,
-                sqlSelectStringRow };
+                statementName + "." + keySpace + "." + columnFamily + "._" + shard,
+                statementName + "." + columnFamily + "._" + shard,
+                statementName + "." + keySpace + "._" + shard,
+                statementName + "._" + shard,
+                statementName + "." + keySpace + "." + columnFamily,
+                statementName + "." + columnFamily, statementName + "." + keySpace,
+                statementName };
         for (String k : keys) {
             if (sqlConfig.containsKey(k)) {
-                if (statementCache != null && statementCache.containsKey(k)) {
-                    return statementCache.get(k);
-                } else {
-                    PreparedStatement pst = jcbcStorageClientConnection.getConnection()
-                            .prepareStatement((String) sqlConfig.get(k));
-                    if (statementCache != null) {
-                        inc("cachedStatement");
-                        statementCache.put(k, pst);
-                    }
-                    return pst;
-                }
+                return k;
             }
         }
         return null;
@@ -845,6 +1358,10 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
     }
 
     public void passivate() {
+        if (batchDepth > 0) {
+            LOGGER.warn("Client returned to the pool with a batch open, the batch has been aborted");
+            abortBatch();
+        }
         disposeDisposables();
     }
 
@@ -1076,6 +1593,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
 
                 private Map<String, Object> nextValue = Maps.newHashMap();
                 private boolean open = true;
+                private Iterator<Map<String, Object>> prefetched = Collections.<Map<String, Object>>emptyList().iterator();
 
                 @Override
                 protected Map<String, Object> internalNext() {
@@ -1085,10 +1603,11 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
                 @Override
                 protected boolean internalHasNext() {
                     try {
-                        if (open && rs.next()) {
-                            String id = rs.getString(1);
-                             nextValue = internalGet(keySpace, columnFamily, id);
-                             LOGGER.debug("Got Row ID {} {} ", id, nextValue);
+                        if (!prefetched.hasNext() && open) {
+                            prefetch();
+                        }
+                        if (prefetched.hasNext()) {
+                            nextValue = prefetched.next();
                             return true;
                         }
                         close();
@@ -1108,6 +1627,45 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
                     }
                 }
 
+                /**
+                 * Read the next batch of row ids from the result set and load
+                 * the rows in as few selects as possible, rather than a
+                 * select per row. Writes that have not been committed yet are
+                 * applied to the rows, as they are by get.
+                 */
+                private void prefetch() throws SQLException, StorageClientException {
+                    List<String> ids = Lists.newArrayList();
+                    while (ids.size() < findPrefetchSize && rs.next()) {
+                        ids.add(rs.getString(1));
+                    }
+                    WriteBehindBuffer writeBehind = jcbcStorageClientConnection
+                            .getWriteBehindBuffer();
+                    Map<String, List<Map<String, Object>>> unwritten = Maps.newHashMap();
+                    if (writeBehind != null) {
+                        for (String id : ids) {
+                            unwritten.put(id, writeBehind.getPending(id));
+                        }
+                    }
+                    List<Map<String, Object>> values = Lists.newArrayList();
+                    if (ids.size() == 1) {
+                        values.add(internalGet(keySpace, columnFamily, ids.get(0)));
+                    } else if (ids.size() > 1) {
+                        Map<String, Map<String, Object>> rows = internalGetAll(keySpace,
+                                columnFamily, ids);
+                        for (String id : ids) {
+                            values.add(rows.get(id));
+                        }
+                    }
+                    for (int i = 0; i < values.size(); i++) {
+                        List<Map<String, Object>> rowUnwritten = unwritten.get(ids.get(i));
+                        if (rowUnwritten != null) {
+                            values.set(i, WriteBehindBuffer.apply(values.get(i), rowUnwritten));
+                        }
+                    }
+                    prefetched = values.iterator();
+                    LOGGER.debug("Got Row IDs {} ", ids);
+                }
+
                 @Override
                 public void close() {
                     if (open) {
@@ -1248,12 +1806,11 @@ public class JDBCStorageClient implements StorageClient, RowHasher {
         }
     }
 
-    private void close(Map<String, PreparedStatement> statementCache) {
+    private void clearBatches(Map<String, PreparedStatement> statementCache) {
         for (PreparedStatement pst : statementCache.values()) {
             if (pst != null) {
                 try {
-                    pst.close();
-                    dec("cachedStatement");
+                    pst.clearBatch();
                 } catch (SQLException e) {
                     LOGGER.debug(e.getMessage(), e);
                 }
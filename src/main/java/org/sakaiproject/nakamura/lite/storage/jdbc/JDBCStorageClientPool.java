@@ -39,8 +39,9 @@ import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.lite.storage.AbstractClientConnectionPool;
-import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.DigestRowHasher;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClient.BatchSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,6 +52,7 @@ import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.Driver;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -73,6 +75,30 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
     private static final String USERNAME = "username";
     @Property(value = { "" })
     private static final String PASSWORD = "password";
+    @Property(intValue = 10000)
+    private static final String ROWID_HASH_CACHE_SIZE = "rowid-hash-cache-size";
+    private static final int DEFAULT_ROWID_HASH_CACHE_SIZE = 10000;
+    @Property(intValue = 50)
+    private static final String STATEMENT_CACHE_SIZE = "statement-cache-size";
+    /**
+     * Row bodies that encode to more bytes than this are compressed, 0 to
+     * never compress.
+     */
+    @Property(intValue = 0)
+    public static final String COMPRESSION_THRESHOLD = "compression-threshold";
+    /**
+     * How long in ms an insert may wait for inserts from other threads so
+     * that they are committed together, 0 to commit each insert as it is
+     * made. An insert returns once it has been committed.
+     */
+    @Property(longValue = 0)
+    private static final String WRITE_BEHIND_INTERVAL = "write-behind-interval";
+    /**
+     * The number of held back rows at which the inserting thread commits them
+     * rather than waiting for the interval.
+     */
+    @Property(intValue = 1000)
+    private static final String WRITE_BEHIND_MAX_PENDING = "write-behind-max-pending";
  
     @Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
     private StorageCacheManager storageManagerCache;
@@ -138,6 +164,12 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
 
     private Map<String, CacheHolder> sharedCache;
 
+    private DigestRowHasher rowHasher;
+
+    private WriteBehindBuffer writeBehindBuffer;
+
+    private volatile BatchSupport batchSupport = BatchSupport.NONE;
+
 
     @Override
     @Activate
@@ -146,11 +178,27 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
         this.properties = properties;
         super.activate(properties);
 
-        connectionManager = new ConnectionManager();
+        int statementCacheSize = StorageClientUtils.getSetting(
+                properties.get(STATEMENT_CACHE_SIZE), ConnectionHolder.DEFAULT_MAX_STATEMENTS);
+        if (statementCacheSize < ConnectionHolder.MIN_MAX_STATEMENTS) {
+            LOGGER.warn("{} of {} would close statements in use, using {} ", new Object[] {
+                    STATEMENT_CACHE_SIZE, statementCacheSize, ConnectionHolder.MIN_MAX_STATEMENTS });
+            statementCacheSize = ConnectionHolder.MIN_MAX_STATEMENTS;
+        }
+        connectionManager = new ConnectionManager(statementCacheSize);
         timer = new Timer();
         timer.schedule(connectionManager, 30000L, 30000L);
 
-        sharedCache = new ConcurrentLRUMap<String, CacheHolder>(10000);
+        long writeBehindInterval = StorageClientUtils.getSetting(
+                properties.get(WRITE_BEHIND_INTERVAL), 0L);
+        if (writeBehindInterval > 0) {
+            // inserting threads flush the buffer themselves, so no timer is
+            // needed to bound how long a row is held back.
+            writeBehindBuffer = new WriteBehindBuffer(StorageClientUtils.getSetting(
+                    properties.get(WRITE_BEHIND_MAX_PENDING), 1000), writeBehindInterval);
+        }
+
+        sharedCache = createSharedCache();
         // this is a default cache used where none has been provided.
         defaultStorageManagerCache = new StorageCacheManager() {
             
@@ -223,9 +271,11 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
     @Override
     @Deactivate
     public void deactivate(Map<String, Object> properties) {
+        timer.cancel();
+        // commit anything held back while there are still clients.
+        flushWriteBehind();
         super.deactivate(properties);
 
-        timer.cancel();
         connectionManager.close();
 
         String connectionUrl = StorageClientUtils.getSetting(this.properties.get(CONNECTION_URL),"");
@@ -269,6 +319,7 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
                     LOGGER.info("   Database Driver: {} ", properties.get(JDBC_DRIVER));
                     LOGGER.info("   Database URL   : {} ", properties.get(CONNECTION_URL));
                     client.checkSchema(getClientConfigLocations(client.getConnection()));
+                    batchSupport = client.checkBatchSupport();
                     schemaHasBeenChecked = true;
                 } catch (Throwable e) {
                     LOGGER.warn("Failed to check Schema", e);
@@ -359,6 +410,66 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
         return defaultStorageManagerCache;
     }
 
+    /**
+     * @param algorithm
+     *            the row id hash algorithm from the sql configuration.
+     * @return a row hasher shared by all clients from this pool, so that the
+     *         row ids it remembers are shared.
+     * @throws StorageClientException
+     *             if the algorithm is not available.
+     */
+    public synchronized DigestRowHasher getRowHasher(String algorithm)
+            throws StorageClientException {
+        if (rowHasher == null || !rowHasher.getAlgorithm().equals(algorithm)) {
+            int cacheSize = DEFAULT_ROWID_HASH_CACHE_SIZE;
+            if (properties != null) {
+                cacheSize = StorageClientUtils.getSetting(properties.get(ROWID_HASH_CACHE_SIZE),
+                        DEFAULT_ROWID_HASH_CACHE_SIZE);
+            }
+            rowHasher = new DigestRowHasher(algorithm, cacheSize);
+        }
+        return rowHasher;
+    }
+
+    /**
+     * @return how clients send index updates, checked against the database
+     *         when the schema is checked, NONE until then.
+     */
+    public BatchSupport getBatchSupport() {
+        return batchSupport;
+    }
+
+    /**
+     * @return the buffer holding inserts back to be committed together, or null
+     *         if inserts are committed as they are made.
+     */
+    public WriteBehindBuffer getWriteBehindBuffer() {
+        return writeBehindBuffer;
+    }
+
+    /**
+     * Commit the inserts held back by the write behind buffer, if there is
+     * one, using a client from the pool.
+     */
+    private void flushWriteBehind() {
+        if (writeBehindBuffer == null || writeBehindBuffer.size() == 0) {
+            return;
+        }
+        JDBCStorageClient client = null;
+        try {
+            client = (JDBCStorageClient) getClient();
+            client.flush();
+        } catch (ClientPoolException e) {
+            LOGGER.warn("Failed to get a client to write held back rows {} ", e.getMessage());
+        } catch (StorageClientException e) {
+            LOGGER.warn("Failed to write held back rows {} ", e.getMessage());
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
     public Connection getConnection() throws SQLException {
         Connection connection = connectionManager.get();
         if (connection == null) {
@@ -373,4 +484,17 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
         return connection;
     }
 
+    /**
+     * @param sql
+     * @return a prepared statement on the connection of the current thread.
+     *         Statements are kept open and reused until the connection is
+     *         recycled, so the caller must not close it.
+     * @throws SQLException
+     */
+    public PreparedStatement getStatement(String sql) throws SQLException {
+        // make certain the thread has a connection.
+        getConnection();
+        return connectionManager.getStatement(sql);
+    }
+
 }
@@ -0,0 +1,359 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Holds inserts so that writes from many threads can be committed together in
+ * one transaction rather than one transaction each. Writes to the same row are
+ * merged in the order they were made, and rows are written in the order they
+ * were first written. Only one flush runs at a time, so a row that is written
+ * while it is being flushed is written again by the next flush, after the
+ * first write has been committed.
+ *
+ * A thread that adds a write waits, for at most the maximum delay, for
+ * another thread to flush it, and then flushes the buffer itself, so every
+ * write is committed, or has failed, before the thread moves on. A write that
+ * can't be committed is reported to the thread that made it and is not
+ * retried.
+ *
+ * Rows that are pending or being flushed are visible through
+ * {@link #getPending(String)} so that reads can be served from the buffer.
+ * Queries against the index only see rows once they are flushed.
+ */
+public class WriteBehindBuffer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindBuffer.class);
+
+    /**
+     * Writes a number of rows to storage.
+     */
+    public interface RowWriter {
+        /**
+         * Write the rows, in one transaction if possible.
+         *
+         * @param rows
+         * @return the rows that could not be written, an empty list if all
+         *         were written.
+         */
+        List<PendingRow> write(List<PendingRow> rows);
+    }
+
+    /**
+     * A write added to the buffer, which is done once the row it was merged
+     * into has been written or has failed.
+     */
+    public static final class PendingWrite {
+        /**
+         * Set under the lock of the buffer.
+         */
+        private volatile boolean done;
+        private volatile boolean failed;
+
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * @return true if the row the write was merged into could not be
+         *         written.
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    /**
+     * The merged writes to a single row.
+     */
+    public static final class PendingRow {
+        private final String rowId;
+        private final String keySpace;
+        private final String columnFamily;
+        private final String key;
+        private final Map<String, Object> values;
+        private final boolean probablyNew;
+        /**
+         * The writes merged into this row.
+         */
+        private final List<PendingWrite> writes;
+
+        private PendingRow(String rowId, String keySpace, String columnFamily, String key,
+                Map<String, Object> values, boolean probablyNew, List<PendingWrite> writes) {
+            this.rowId = rowId;
+            this.keySpace = keySpace;
+            this.columnFamily = columnFamily;
+            this.key = key;
+            this.values = values;
+            this.probablyNew = probablyNew;
+            this.writes = writes;
+        }
+
+        public String getKeySpace() {
+            return keySpace;
+        }
+
+        public String getColumnFamily() {
+            return columnFamily;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the values to write, including RemoveProperty values for
+         *         properties that are to be removed.
+         */
+        public Map<String, Object> getValues() {
+            return values;
+        }
+
+        public boolean isProbablyNew() {
+            return probablyNew;
+        }
+
+        /**
+         * @return a row with the values of this row overwritten by the values
+         *         of the later row.
+         */
+        private PendingRow merge(PendingRow later) {
+            Map<String, Object> merged = new LinkedHashMap<String, Object>(values);
+            merged.putAll(later.values);
+            List<PendingWrite> mergedWrites = Lists.newArrayList(writes);
+            mergedWrites.addAll(later.writes);
+            return new PendingRow(rowId, keySpace, columnFamily, key, merged, probablyNew,
+                    mergedWrites);
+        }
+    }
+
+    private final Object lock = new Object();
+    private final Object flushLock = new Object();
+    private final int maxPending;
+    private final long maxDelay;
+    /**
+     * Rows waiting to be flushed, by row id, guarded by lock.
+     */
+    private LinkedHashMap<String, PendingRow> pending = Maps.newLinkedHashMap();
+    /**
+     * Rows being flushed, by row id, guarded by lock.
+     */
+    private Map<String, PendingRow> inFlight = Collections.emptyMap();
+
+    /**
+     * @param maxPending
+     *            the number of pending rows at which a thread adding a row
+     *            flushes the buffer without waiting.
+     * @param maxDelay
+     *            the longest time in ms a thread waits for its write to be
+     *            flushed by another thread before it flushes the buffer itself.
+     */
+    public WriteBehindBuffer(int maxPending, long maxDelay) {
+        this.maxPending = Math.max(1, maxPending);
+        this.maxDelay = Math.max(0L, maxDelay);
+    }
+
+    /**
+     * Add a write to the buffer, merging it with any pending write to the same
+     * row. The write must then be passed to
+     * {@link #commit(PendingWrite, RowWriter)} by the same thread.
+     *
+     * @param rowId
+     *            the id of the row in storage, unique across key spaces and
+     *            column families.
+     * @return the write, to wait on.
+     */
+    public PendingWrite add(String rowId, String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew) {
+        PendingWrite write = new PendingWrite();
+        // the caller may reuse the map.
+        PendingRow row = new PendingRow(rowId, keySpace, columnFamily, key,
+                new LinkedHashMap<String, Object>(values), probablyNew,
+                Lists.newArrayList(write));
+        synchronized (lock) {
+            PendingRow current = pending.get(rowId);
+            if (current != null) {
+                row = current.merge(row);
+            }
+            pending.put(rowId, row);
+        }
+        return write;
+    }
+
+    /**
+     * Wait for a write to be committed by another thread, for at most the
+     * maximum delay, or without waiting if the buffer is full, and flush the
+     * buffer if it has not been.
+     *
+     * @param write
+     *            from {@link #add(String, String, String, String, Map, boolean)}
+     * @param writer
+     *            used if this thread has to flush the buffer.
+     * @throws StorageClientException
+     *             if the row the write was merged into could not be written.
+     */
+    public void commit(PendingWrite write, RowWriter writer) throws StorageClientException {
+        long deadline = System.currentTimeMillis() + maxDelay;
+        try {
+            synchronized (lock) {
+                while (!write.done && pending.size() < maxPending) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    lock.wait(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!write.done) {
+            // waits for any flush in progress, which may be writing this row.
+            flush(writer);
+        }
+        if (write.failed) {
+            throw new StorageClientException("Failed to write row, see earlier warnings");
+        }
+    }
+
+    /**
+     * @return the unwritten values of the row, the values being flushed before
+     *         the values waiting to be flushed, so that applying them in order
+     *         gives the latest values. Empty if the row has no unwritten
+     *         values.
+     */
+    public List<Map<String, Object>> getPending(String rowId) {
+        synchronized (lock) {
+            PendingRow flushing = inFlight.get(rowId);
+            PendingRow waiting = pending.get(rowId);
+            if (flushing == null && waiting == null) {
+                return Collections.emptyList();
+            }
+            List<Map<String, Object>> values = Lists.newArrayList();
+            if (flushing != null) {
+                values.add(flushing.values);
+            }
+            if (waiting != null) {
+                values.add(waiting.values);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Apply unwritten values to a row that has been read from storage.
+     *
+     * @param row
+     *            the row as stored.
+     * @param unwritten
+     *            from {@link #getPending(String)}, which must be called before
+     *            the row is read so that no write can be missed.
+     * @return the row with the unwritten values applied.
+     */
+    public static Map<String, Object> apply(Map<String, Object> row,
+            List<Map<String, Object>> unwritten) {
+        if (unwritten.isEmpty()) {
+            return row;
+        }
+        Map<String, Object> result = Maps.newHashMap(row);
+        for (Map<String, Object> values : unwritten) {
+            for (Entry<String, Object> e : values.entrySet()) {
+                Object o = e.getValue();
+                if (o == null || o instanceof RemoveProperty) {
+                    result.remove(e.getKey());
+                } else {
+                    result.put(e.getKey(), o);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the row has writes that have not been committed.
+     */
+    public boolean isPending(String rowId) {
+        synchronized (lock) {
+            return pending.containsKey(rowId) || inFlight.containsKey(rowId);
+        }
+    }
+
+    /**
+     * @return the number of rows waiting to be flushed.
+     */
+    public int size() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Write every row added before this call. The writes merged into rows
+     * that can't be written are marked as failed, to be reported to the
+     * threads that made them by {@link #commit(PendingWrite, RowWriter)}.
+     *
+     * @param writer
+     */
+    public void flush(RowWriter writer) {
+        synchronized (flushLock) {
+            List<PendingRow> rows = null;
+            synchronized (lock) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                inFlight = pending;
+                pending = Maps.newLinkedHashMap();
+                rows = Lists.newArrayList(inFlight.values());
+            }
+            List<PendingRow> failed = rows;
+            try {
+                failed = writer.write(rows);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to write " + rows.size() + " rows ", e);
+            } finally {
+                synchronized (lock) {
+                    for (PendingRow row : failed) {
+                        for (PendingWrite write : row.writes) {
+                            write.failed = true;
+                        }
+                    }
+                    for (PendingRow row : rows) {
+                        for (PendingWrite write : row.writes) {
+                            write.done = true;
+                        }
+                    }
+                    inFlight = Collections.emptyMap();
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+}
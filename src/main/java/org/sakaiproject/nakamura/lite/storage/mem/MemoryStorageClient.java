@@ -40,6 +40,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -64,6 +67,7 @@ public class MemoryStorageClient implements StorageClient {
     private int maxChunksPerBlockSet;
     private BlockContentHelper contentHelper;
     private MemoryStorageClientPool pool;
+    private int batchDepth;
 
     public MemoryStorageClient(MemoryStorageClientPool pool,
             Map<String, Object> store, Map<String, Object> properties) {
@@ -88,7 +92,26 @@ public class MemoryStorageClient implements StorageClient {
 
     public Map<String, Object> get(String keySpace, String columnFamily, String key)
             throws StorageClientException {
-        return (Map<String, Object>) getOrCreateRow(keySpace, columnFamily, key);
+        return readOnlyCopy(getOrCreateRow(keySpace, columnFamily, key));
+    }
+
+    public Map<String, Map<String, Object>> getAll(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        Map<String, Map<String, Object>> rows = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            rows.put(key, readOnlyCopy(getOrCreateRow(keySpace, columnFamily, key)));
+        }
+        return rows;
+    }
+
+    /**
+     * Rows are returned as read only copies, as the JDBC client does, so that
+     * a caller that changes a row it read, possibly one shared through a
+     * cache, fails here as it would there, and later writes don't change rows
+     * already read.
+     */
+    private Map<String, Object> readOnlyCopy(Map<String, Object> row) {
+        return Collections.unmodifiableMap(new HashMap<String, Object>(row));
     }
 
     private Map<String, Object> getOrCreateRow(String keySpace, String columnFamily, String key) {
@@ -116,7 +139,7 @@ public class MemoryStorageClient implements StorageClient {
 
     public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException {
-        Map<String, Object> row = get(keySpace, columnFamily, key);
+        Map<String, Object> row = getOrCreateRow(keySpace, columnFamily, key);
 
         for (Entry<String, Object> e : values.entrySet()) {
             Object value = e.getValue();
@@ -170,6 +193,38 @@ public class MemoryStorageClient implements StorageClient {
         }
     }
 
+    public void startBatch() {
+        // changes to the memory store are made as they happen, the store can't
+        // roll them back.
+        batchDepth++;
+    }
+
+    public void commitBatch() throws StorageClientException {
+        if (batchDepth == 0) {
+            throw new StorageClientException("No batch to commit");
+        }
+        batchDepth--;
+    }
+
+    public void abortBatch() {
+        if (batchDepth > 0) {
+            LOGGER.warn("Memory store batch aborted, the changes made in it have not been undone");
+        }
+        batchDepth = 0;
+    }
+
+    public void reindex(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
+        String keyName = rowHash(keySpace, columnFamily, key);
+        if (store.containsKey(keyName)) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> row = (Map<String, Object>) store.get(keyName);
+            for (Entry<String, Object> e : row.entrySet()) {
+                addIndex(keySpace, columnFamily, key, e.getKey(), e.getValue());
+            }
+        }
+    }
+
     public void remove(String keySpace, String columnFamily, String key)
             throws StorageClientException {
         String keyName = rowHash(keySpace, columnFamily, key);
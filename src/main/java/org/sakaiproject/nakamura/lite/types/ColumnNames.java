@@ -0,0 +1,130 @@
+package org.sakaiproject.nakamura.lite.types;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMap.Builder;
+
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.lite.content.InternalContent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Column names that appear in most rows, encoded as small integers in the v2
+ * row format, and an interner for the names read from rows so that every row
+ * in memory does not carry its own copy of the same names.
+ */
+final class ColumnNames {
+
+    /**
+     * The well known column names. The position of a name is its code in
+     * stored rows, so this list may only ever be appended to, never reordered
+     * or shortened, and the value of a constant used here must never change.
+     */
+    private static final String[] DICTIONARY = new String[] {
+        InternalContent.UUID_FIELD,
+        InternalContent.PATH_FIELD,
+        InternalContent.PARENT_HASH_FIELD,
+        InternalContent.STRUCTURE_UUID_FIELD,
+        InternalContent.LINKED_PATH_FIELD,
+        InternalContent.BLOCKID_FIELD,
+        InternalContent.PREVIOUS_VERSION_UUID_FIELD,
+        InternalContent.PREVIOUS_BLOCKID_FIELD,
+        InternalContent.NEXT_VERSION_FIELD,
+        InternalContent.READONLY_FIELD,
+        InternalContent.DELETED_FIELD,
+        InternalContent.BLOCKSIZE_FIELD,
+        InternalContent.LENGTH_FIELD,
+        InternalContent.NBLOCKS_FIELD,
+        InternalContent.BODY_LAST_MODIFIED_FIELD,
+        InternalContent.BODY_LAST_MODIFIED_BY_FIELD,
+        InternalContent.BODY_CREATED_FIELD,
+        InternalContent.BODY_CREATED_BY_FIELD,
+        InternalContent.CREATED_FIELD,
+        InternalContent.CREATED_BY_FIELD,
+        InternalContent.LASTMODIFIED_FIELD,
+        InternalContent.LASTMODIFIED_BY_FIELD,
+        InternalContent.COPIED_FROM_PATH_FIELD,
+        InternalContent.COPIED_FROM_ID_FIELD,
+        InternalContent.COPIED_DEEP_FIELD,
+        InternalContent.MIMETYPE_FIELD,
+        InternalContent.ENCODING_FIELD,
+        InternalContent.VERSION_HISTORY_ID_FIELD,
+        InternalContent.VERSION_NUMBER_FIELD,
+        InternalContent.VERSION_SAVEDBY_FIELD,
+        Authorizable.PASSWORD_FIELD,
+        Authorizable.PRINCIPALS_FIELD,
+        Authorizable.MEMBERS_FIELD,
+        Authorizable.ID_FIELD,
+        Authorizable.NAME_FIELD,
+        Authorizable.AUTHORIZABLE_TYPE_FIELD,
+        Authorizable.LASTMODIFIED_FIELD,
+        Authorizable.LASTMODIFIED_BY_FIELD,
+        Authorizable.CREATED_FIELD,
+        Authorizable.CREATED_BY_FIELD
+    };
+
+    private static final Map<String, Integer> CODES = getCodes();
+
+    /**
+     * The maximum number of names kept by the interner, names read after the
+     * interner is full are returned as read.
+     */
+    private static final int MAX_INTERNED = 10000;
+
+    private static final ConcurrentHashMap<String, String> interned = new ConcurrentHashMap<String, String>();
+
+    private ColumnNames() {
+    }
+
+    private static Map<String, Integer> getCodes() {
+        Builder<String, Integer> builder = ImmutableMap.builder();
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            builder.put(DICTIONARY[i], i + 1);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param name
+     * @return the code of the name, or 0 if the name is not well known.
+     */
+    static int getCode(String name) {
+        Integer code = CODES.get(name);
+        if (code == null) {
+            return 0;
+        }
+        return code;
+    }
+
+    /**
+     * @param code
+     *            a code returned by {@link #getCode(String)}, greater than 0.
+     * @return the name.
+     * @throws IllegalArgumentException
+     *             if the code is not known, the row was written by a later
+     *             version.
+     */
+    static String getName(int code) {
+        if (code < 1 || code > DICTIONARY.length) {
+            throw new IllegalArgumentException("Unknown column name code " + code);
+        }
+        return DICTIONARY[code - 1];
+    }
+
+    /**
+     * @param name
+     * @return a shared instance of the name.
+     */
+    static String intern(String name) {
+        String s = interned.get(name);
+        if (s != null) {
+            return s;
+        }
+        if (interned.size() >= MAX_INTERNED) {
+            return name;
+        }
+        s = interned.putIfAbsent(name, name);
+        return (s == null) ? name : s;
+    }
+}
@@ -0,0 +1,198 @@
+package org.sakaiproject.nakamura.lite.types;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A read only row that decodes each value the first time it is asked for.
+ * When the row is loaded only the names are read and the position of each
+ * value in the encoded row is recorded, so callers that only look at a few
+ * properties of a wide row don't pay to decode the rest. Decoding is safe from
+ * several threads, which may happen when the row is shared through a cache;
+ * two threads may decode the same value but will see equal values.
+ */
+public final class LazyRow extends AbstractMap<String, Object> {
+
+    /**
+     * Rows with more names than this get a hash index, smaller rows are
+     * searched.
+     */
+    private static final int INDEX_THRESHOLD = 16;
+
+    private final byte[] data;
+    private final int encodedSize;
+    private final String[] names;
+    private final Type<?>[] types;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final AtomicReferenceArray<Object> values;
+    private final Map<String, Integer> index;
+    private transient Set<String> keySet;
+    private transient Set<Entry<String, Object>> entrySet;
+
+    LazyRow(byte[] data, int encodedSize, String[] names, Type<?>[] types, int[] offsets,
+            int[] lengths) {
+        this.data = data;
+        this.encodedSize = encodedSize;
+        this.names = names;
+        this.types = types;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.values = new AtomicReferenceArray<Object>(names.length);
+        if (names.length > INDEX_THRESHOLD) {
+            index = new HashMap<String, Integer>(names.length * 2);
+            for (int i = 0; i < names.length; i++) {
+                index.put(names[i], i);
+            }
+        } else {
+            index = null;
+        }
+    }
+
+    /**
+     * @return the number of bytes of the encoded row this row was loaded from.
+     */
+    public int getEncodedSize() {
+        return encodedSize;
+    }
+
+    private int indexOf(Object key) {
+        if (index != null) {
+            Integer i = index.get(key);
+            return (i == null) ? -1 : i;
+        }
+        for (int i = 0; i < names.length; i++) {
+            // names are interned, so most matches are the same instance.
+            if (names[i] == key || names[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Object valueAt(int i) {
+        Object v = values.get(i);
+        if (v == null) {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, offsets[i],
+                    lengths[i]));
+            try {
+                v = types[i].load(dis);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to decode property " + names[i], e);
+            }
+            values.set(i, v);
+        }
+        return v;
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return names.length == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        return valueAt(i);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        // the names are known without decoding any values.
+        if (keySet == null) {
+            keySet = new AbstractSet<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return new Iterator<String>() {
+                        private int next = 0;
+
+                        public boolean hasNext() {
+                            return next < names.length;
+                        }
+
+                        public String next() {
+                            if (next >= names.length) {
+                                throw new NoSuchElementException();
+                            }
+                            return names[next++];
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException("Rows are read only");
+                        }
+                    };
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return containsKey(o);
+                }
+
+                @Override
+                public int size() {
+                    return names.length;
+                }
+            };
+        }
+        return keySet;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<Entry<String, Object>>() {
+                        private int next = 0;
+
+                        public boolean hasNext() {
+                            return next < names.length;
+                        }
+
+                        public Entry<String, Object> next() {
+                            if (next >= names.length) {
+                                throw new NoSuchElementException();
+                            }
+                            int i = next++;
+                            return new SimpleImmutableEntry<String, Object>(names[i], valueAt(i));
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException("Rows are read only");
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return names.length;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+}
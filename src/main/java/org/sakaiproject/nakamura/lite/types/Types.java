@@ -3,6 +3,7 @@ package org.sakaiproject.nakamura.lite.types;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import org.sakaiproject.nakamura.api.lite.RemoveProperty;
@@ -13,11 +14,18 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class Types {
 
@@ -47,6 +55,7 @@ public class Types {
     
     private static final Map<Class<?>,Type<?>> typeMap = Types.getTypeMap();
     private static final Map<Integer, Type<?>> typeByIdMap = Types.getTypeByIdMap();
+    private static final String UTF8 = "UTF-8";
 
 
     static Map<Class<?>, Type<?>> getTypeMap() {
@@ -103,7 +112,34 @@ public class Types {
 
 
     /**
-     * Load a Map from binary stream
+     * Rows in format v2 and later start with this, which can't start a v1 row
+     * as no row key is 65535 bytes long.
+     */
+    private static final int FORMAT_MARKER = 0xFFFF;
+    private static final int FORMAT_V2 = 2;
+    /**
+     * A column name that is not in the dictionary, the name follows.
+     */
+    private static final int INLINE_NAME = 0;
+    /**
+     * Each value is preceded by its length in bytes, so that a reader can find
+     * a value without decoding the values before it.
+     */
+    private static final int FLAG_VALUE_LENGTHS = 0x01;
+    /**
+     * Everything after the flags is compressed with Deflate, preceded by its
+     * uncompressed length.
+     */
+    private static final int FLAG_DEFLATE = 0x02;
+    private static final int KNOWN_FLAGS = FLAG_VALUE_LENGTHS | FLAG_DEFLATE;
+    /**
+     * The number of bytes before the part of a v2 row that may be compressed.
+     */
+    private static final int HEADER_SIZE = 4;
+
+    /**
+     * Load a Map from binary stream, in either the current or the original
+     * format.
      * 
      * @param output
      * @param binaryStream
@@ -111,7 +147,58 @@ public class Types {
      */
     public static void loadFromStream(String key, Map<String, Object> output, InputStream binaryStream, String type)
             throws IOException {
-        DataInputStream dis = new DataInputStream(binaryStream);
+        PushbackInputStream in = new PushbackInputStream(binaryStream, 2);
+        DataInputStream dis = new DataInputStream(in);
+        int b0 = in.read();
+        int b1 = in.read();
+        if (b1 < 0) {
+            throw new EOFException();
+        }
+        if (((b0 << 8) | b1) == FORMAT_MARKER) {
+            loadV2(key, output, dis, type);
+        } else {
+            in.unread(b1);
+            in.unread(b0);
+            loadV1(key, output, dis, type);
+        }
+    }
+
+    /**
+     * Load a Map from a buffer holding a whole row, in either the current or
+     * the original format. The position of the buffer is not changed.
+     *
+     * @param key
+     * @param output
+     * @param buffer
+     * @param type
+     * @throws IOException
+     */
+    public static void loadFromBuffer(String key, Map<String, Object> output, ByteBuffer buffer,
+            String type) throws IOException {
+        if (buffer.remaining() < 2) {
+            throw new EOFException();
+        }
+        ByteArrayInputStream in = null;
+        if (buffer.hasArray()) {
+            in = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset()
+                    + buffer.position(), buffer.remaining());
+        } else {
+            byte[] b = new byte[buffer.remaining()];
+            buffer.duplicate().get(b);
+            in = new ByteArrayInputStream(b);
+        }
+        DataInputStream dis = new DataInputStream(in);
+        int p = buffer.position();
+        if ((((buffer.get(p) & 0xFF) << 8) | (buffer.get(p + 1) & 0xFF)) == FORMAT_MARKER) {
+            dis.skipBytes(2);
+            loadV2(key, output, dis, type);
+        } else {
+            loadV1(key, output, dis, type);
+        }
+    }
+
+    private static void loadV1(String key, Map<String, Object> output, DataInputStream dis,
+            String type) throws IOException {
         String ckey = dis.readUTF();
         if (!key.equals(ckey)) {
             throw new IOException("Body Key does not match row key, unable to read");
@@ -119,7 +206,7 @@ public class Types {
         int size = dis.readInt();
         LOGGER.debug("Reading {} items",size);
         for (int i = 0; i < size; i++) {            
-            String k = dis.readUTF();
+            String k = ColumnNames.intern(dis.readUTF());
             LOGGER.debug("Read key {} ",k);
             output.put(k,lookupTypeById(dis.readInt()).load(dis));
         }
@@ -129,14 +216,159 @@ public class Types {
         } catch (IOException e) {
             LOGGER.debug("No type specified");
         }
+        checkColumnFamily(cftype, type);
+        LOGGER.debug("Finished Reading");
+        dis.close();
+    }
+
+    private static void loadV2(String key, Map<String, Object> output, DataInputStream dis,
+            String type) throws IOException {
+        int version = dis.readUnsignedByte();
+        if (version != FORMAT_V2) {
+            throw new IOException("Unsupported row format version " + version
+                    + ", the row was written by a later version");
+        }
+        int flags = readFlags(dis);
+        if ((flags & FLAG_DEFLATE) != 0) {
+            readVarInt(dis);
+            dis = new DataInputStream(new InflaterInputStream(dis));
+        }
+        String ckey = readString(dis);
+        if (!key.equals(ckey)) {
+            throw new IOException("Body Key does not match row key, unable to read");
+        }
+        int size = readVarInt(dis);
+        LOGGER.debug("Reading {} items",size);
+        for (int i = 0; i < size; i++) {
+            String k = readName(dis);
+            LOGGER.debug("Read key {} ",k);
+            Type<?> t = lookupTypeById(readVarInt(dis));
+            if ((flags & FLAG_VALUE_LENGTHS) != 0) {
+                readVarInt(dis);
+            }
+            output.put(k,t.load(dis));
+        }
+        checkColumnFamily(readString(dis), type);
+        LOGGER.debug("Finished Reading");
+        dis.close();
+    }
+
+    private static int readFlags(DataInputStream dis) throws IOException {
+        int flags = dis.readUnsignedByte();
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IOException("Unsupported row flags " + flags
+                    + ", the row was written by a later version");
+        }
+        return flags;
+    }
+
+    /**
+     * Load a row from a buffer holding the whole row, decoding each value only
+     * when it is first asked for. Rows in the original format, or written
+     * without value lengths, are decoded in full. The position of the buffer
+     * is not changed and the buffer must not be modified after this call, as
+     * the row may refer to it.
+     *
+     * @param key
+     * @param buffer
+     * @param type
+     * @return the row, which is read only.
+     * @throws IOException
+     */
+    public static Map<String, Object> loadRowFromBuffer(String key, ByteBuffer buffer,
+            String type) throws IOException {
+        int size = buffer.remaining();
+        if (size < 4 || !buffer.hasArray()) {
+            Map<String, Object> output = Maps.newHashMap();
+            loadFromBuffer(key, output, buffer, type);
+            return output;
+        }
+        byte[] data = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        if ((((data[start] & 0xFF) << 8) | (data[start + 1] & 0xFF)) != FORMAT_MARKER
+                || data[start + 2] != FORMAT_V2
+                || ((data[start + 3] & 0xFF) & FLAG_VALUE_LENGTHS) == 0) {
+            Map<String, Object> output = Maps.newHashMap();
+            loadFromBuffer(key, output, buffer, type);
+            return output;
+        }
+        RowInputStream in = new RowInputStream(data, start, size);
+        DataInputStream dis = new DataInputStream(in);
+        dis.skipBytes(3);
+        int encodedSize = size;
+        if ((readFlags(dis) & FLAG_DEFLATE) != 0) {
+            // values are decoded from the inflated row.
+            byte[] inflated = new byte[readVarInt(dis)];
+            inflate(data, in.position(), start + size - in.position(), inflated);
+            data = inflated;
+            encodedSize = HEADER_SIZE + inflated.length;
+            in = new RowInputStream(data, 0, data.length);
+            dis = new DataInputStream(in);
+        }
+        String ckey = readString(dis);
+        if (!key.equals(ckey)) {
+            throw new IOException("Body Key does not match row key, unable to read");
+        }
+        int n = readVarInt(dis);
+        String[] names = new String[n];
+        Type<?>[] types = new Type<?>[n];
+        int[] offsets = new int[n];
+        int[] lengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = readName(dis);
+            types[i] = lookupTypeById(readVarInt(dis));
+            lengths[i] = readVarInt(dis);
+            offsets[i] = in.position();
+            if (dis.skipBytes(lengths[i]) != lengths[i]) {
+                throw new EOFException();
+            }
+        }
+        checkColumnFamily(readString(dis), type);
+        return new LazyRow(data, encodedSize, names, types, offsets, lengths);
+    }
+
+    private static void inflate(byte[] data, int offset, int length, byte[] output)
+            throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            int n = 0;
+            while (n < output.length && !inflater.finished()) {
+                int read = inflater.inflate(output, n, output.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != output.length) {
+                throw new EOFException("Compressed row is shorter than its recorded length");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed row is corrupt " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * A ByteArrayInputStream that reports how far into the array it has read.
+     */
+    private static final class RowInputStream extends ByteArrayInputStream {
+        private RowInputStream(byte[] buf, int offset, int length) {
+            super(buf, offset, length);
+        }
+
+        private int position() {
+            return pos;
+        }
+    }
+
+    private static void checkColumnFamily(String cftype, String type) throws IOException {
         if ( cftype != null && !cftype.equals(type)) {
             throw new IOException(
                     "Object is not of expected column family, unable to read expected [" + type
                             + "] was [" + cftype + "]");
         }
-        LOGGER.debug("Finished Reading");
-        dis.close();
-        binaryStream.close();
     }
 
     /**
@@ -155,11 +387,77 @@ public class Types {
     // records out there, so be very careful
     // Appending to record is possible, if you make the loader fail safe when
     // the data isnt there. See the last writeUTF for an example.
+    // This writes format v2: the format marker, version and flags bytes, then
+    // the key, the number of items and each item as a column name, a varint
+    // type id, a varint value length and the value, and finally the column
+    // family. Column names in the ColumnNames dictionary are written as their
+    // code, others inline. Strings and counts are varint length prefixed.
+    // When compressed, everything after the flags is a varint length followed
+    // by the Deflate compressed remainder of the row.
+    // loadFromStream still reads the original format, and v2 rows written
+    // before values had lengths.
     public static InputStream storeMapToStream(String key, Map<String, Object> m, String type)
             throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        return storeMapToStream(key, m, type, 0);
+    }
+
+    /**
+     * Save a map to a binary stream, compressing rows that are larger than a
+     * threshold, see storeMapToBuffer.
+     *
+     * @param key
+     * @param m
+     * @param type
+     * @param compressionThreshold
+     *            rows that encode to more bytes than this are compressed, 0 or
+     *            less to never compress.
+     * @return
+     * @throws IOException
+     */
+    public static InputStream storeMapToStream(String key, Map<String, Object> m, String type,
+            int compressionThreshold) throws IOException {
+        ByteBuffer b = storeMapToBuffer(key, m, type, compressionThreshold);
+        return new ByteArrayInputStream(b.array(), b.arrayOffset() + b.position(), b.remaining());
+    }
+
+    /**
+     * Save a map to a buffer, in the same format as storeMapToStream. The
+     * buffer wraps the array the row was encoded into, the row is not copied.
+     *
+     * @param key
+     * @param m
+     * @param type
+     * @return a buffer positioned at the start of the row and limited to its
+     *         end.
+     * @throws IOException
+     */
+    public static ByteBuffer storeMapToBuffer(String key, Map<String, Object> m, String type)
+            throws IOException {
+        return storeMapToBuffer(key, m, type, 0);
+    }
+
+    /**
+     * Save a map to a buffer, compressing rows that are larger than a
+     * threshold when that makes them smaller.
+     *
+     * @param key
+     * @param m
+     * @param type
+     * @param compressionThreshold
+     *            rows that encode to more bytes than this are compressed, 0 or
+     *            less to never compress.
+     * @return a buffer positioned at the start of the row and limited to its
+     *         end.
+     * @throws IOException
+     */
+    public static ByteBuffer storeMapToBuffer(String key, Map<String, Object> m, String type,
+            int compressionThreshold) throws IOException {
+        RowOutputStream baos = new RowOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeUTF(key);
+        dos.writeShort(FORMAT_MARKER);
+        dos.writeByte(FORMAT_V2);
+        dos.writeByte(FLAG_VALUE_LENGTHS);
+        writeString(dos, key);
         int size = 0;
         for (Entry<String, ?> e : m.entrySet()) {
             Object o = e.getValue();
@@ -168,28 +466,174 @@ public class Types {
             }
         }
 
-        dos.writeInt(size);
+        writeVarInt(dos, size);
         LOGGER.debug("Write {} items",size);
         for (Entry<String, ?> e : m.entrySet()) {
             Object o = e.getValue();
             if ( o != null && !(o instanceof RemoveProperty) ) {
                 String k = e.getKey();
                 LOGGER.debug("Write {} ",k);
-                dos.writeUTF(k);
+                writeName(dos, k);
                 Type<?> t = getTypeOfObject(o);
-                dos.writeInt(t.getTypeId());
+                writeVarInt(dos, t.getTypeId());
+                int start = baos.startValue();
                 t.save(dos, o);
+                dos.flush();
+                baos.endValue(start);
             }
         }
         // add the type in
-        dos.writeUTF(type);
+        writeString(dos, type);
         LOGGER.debug("Finished Writen {} items",size);
         dos.flush();
-        baos.flush();
-        byte[] b = baos.toByteArray();
-        baos.close();
-        dos.close();
-        return new ByteArrayInputStream(b);
+        ByteBuffer row = baos.toByteBuffer();
+        if (compressionThreshold > 0 && row.remaining() > compressionThreshold) {
+            return compress(row);
+        }
+        return row;
+    }
+
+    /**
+     * @return the row with everything after the header compressed, or the row
+     *         as it was if compressing does not make it smaller.
+     */
+    private static ByteBuffer compress(ByteBuffer row) throws IOException {
+        byte[] b = row.array();
+        int length = row.remaining() - HEADER_SIZE;
+        RowOutputStream baos = new RowOutputStream(row.remaining());
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.write(b, 0, HEADER_SIZE - 1);
+        dos.writeByte(b[HEADER_SIZE - 1] | FLAG_DEFLATE);
+        writeVarInt(dos, length);
+        // rows are written on the request thread, so speed matters more than
+        // the last few bytes.
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(b, HEADER_SIZE, length);
+            deflater.finish();
+            byte[] chunk = new byte[Math.min(length, 4096)];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                dos.write(chunk, 0, n);
+                if (baos.size() >= row.remaining()) {
+                    return row;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        dos.flush();
+        return baos.toByteBuffer();
+    }
+
+    /**
+     * A ByteArrayOutputStream that hands out its buffer rather than a copy.
+     */
+    private static final class RowOutputStream extends ByteArrayOutputStream {
+        private RowOutputStream() {
+            super(256);
+        }
+
+        private RowOutputStream(int size) {
+            super(size);
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        /**
+         * Leave a byte for the length of the value that follows.
+         *
+         * @return the position of the length.
+         */
+        private int startValue() {
+            write(0);
+            return count - 1;
+        }
+
+        /**
+         * Write the length of the value written since startValue, moving the
+         * value along if the length needs more than the byte left for it.
+         */
+        private void endValue(int start) {
+            int length = count - start - 1;
+            int n = 1;
+            for (int v = length >>> 7; v != 0; v >>>= 7) {
+                n++;
+            }
+            for (int i = 1; i < n; i++) {
+                write(0);
+            }
+            if (n > 1) {
+                System.arraycopy(buf, start + 1, buf, start + n, length);
+            }
+            int v = length;
+            for (int i = 0; i < n - 1; i++) {
+                buf[start + i] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[start + n - 1] = (byte) v;
+        }
+    }
+
+    private static void writeName(DataOutputStream dos, String name) throws IOException {
+        int code = ColumnNames.getCode(name);
+        writeVarInt(dos, code);
+        if (code == INLINE_NAME) {
+            writeString(dos, name);
+        }
+    }
+
+    private static String readName(DataInputStream dis) throws IOException {
+        int code = readVarInt(dis);
+        if (code == INLINE_NAME) {
+            return ColumnNames.intern(readString(dis));
+        }
+        try {
+            return ColumnNames.getName(code);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        writeVarInt(dos, b.length);
+        dos.write(b);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        byte[] b = new byte[readVarInt(dis)];
+        dis.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    /**
+     * Write an int that is not negative in 7 bit groups, low group first, with
+     * the top bit of each byte set if more follow.
+     */
+    static void writeVarInt(DataOutputStream dos, int v) throws IOException {
+        if (v < 0) {
+            throw new IOException("Negative values can't be written as a varint " + v);
+        }
+        while ((v & ~0x7F) != 0) {
+            dos.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        dos.writeByte(v);
+    }
+
+    static int readVarInt(DataInputStream dis) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = dis.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
     }
     
     
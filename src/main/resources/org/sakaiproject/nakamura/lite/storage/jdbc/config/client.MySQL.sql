@@ -31,25 +31,35 @@ remove-string-column.n.cn = delete from cn_css where rid = ? and cid = ?
 find.n.au = select a.rid, a.cid, a.v from au_css a {0} where {1} 1 = 1 limit {2,number,#} offset {3,number,#};, au_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 
 
+# block-upsert-row, if present, stores a row body in one statement with the parameters (rid, body), replacing
+# block-insert-row and block-update-row.
 block-select-row = select b from css_b where rid = ?
+block-select-rows = select rid, b from css_b where rid in ({0})
 block-delete-row = delete from css_b where rid = ?
 block-insert-row = insert into css_b (rid,b) values (?, ?)
 block-update-row = update css_b set b = ? where rid = ?
+block-upsert-row = insert into css_b (rid,b) values (?, ?) on duplicate key update b = values(b)
 
 block-select-row.n.ac = select b from ac_css_b where rid = ?
+block-select-rows.n.ac = select rid, b from ac_css_b where rid in ({0})
 block-delete-row.n.ac = delete from ac_css_b where rid = ?
 block-insert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?)
 block-update-row.n.ac = update ac_css_b set b = ? where rid = ?
+block-upsert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?) on duplicate key update b = values(b)
 
 block-select-row.n.cn = select b from cn_css_b where rid = ?
+block-select-rows.n.cn = select rid, b from cn_css_b where rid in ({0})
 block-delete-row.n.cn = delete from cn_css_b where rid = ?
 block-insert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?)
 block-update-row.n.cn = update cn_css_b set b = ? where rid = ?
+block-upsert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?) on duplicate key update b = values(b)
 
 block-select-row.n.au = select b from au_css_b where rid = ?
+block-select-rows.n.au = select rid, b from au_css_b where rid in ({0})
 block-delete-row.n.au = delete from au_css_b where rid = ?
 block-insert-row.n.au = insert into au_css_b (rid,b) values (?, ?)
 block-update-row.n.au = update au_css_b set b = ? where rid = ?
+block-upsert-row.n.au = insert into au_css_b (rid,b) values (?, ?) on duplicate key update b = values(b)
 
 #
 # These are finder statements
@@ -59,6 +69,12 @@ block-find.n.au = select distinct a.rid from au_css a {0} where {1} 1 = 1 {2} li
 block-find.n.cn = select distinct a.rid from cn_css a {0} where {1} 1 = 1 {2} limit {3,number,#} offset {4,number,#};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 block-find.n.ac = select distinct a.rid from ac_css a {0} where {1} 1 = 1 {2} limit {3,number,#} offset {4,number,#};, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 
+# Rows matched by block-find are loaded from the body tables in batches of find-prefetch-size using block-select-rows,
+# rather than with one block-select-row per row. 1 loads each row on its own. Multi row selects are split into
+# statements of at most select-rows-chunk-size row ids.
+find-prefetch-size = 25
+select-rows-chunk-size = 100
+
 
 # statement to validate the connection
 validate = select 1
@@ -32,25 +32,36 @@ find.n.au = select a.rid, a.cid, a.v from au_css where {1} 1 = 1 {2} limit {3,nu
 find.n.ac = select a.rid, a.cid, a.v from ac_css where {1} 1 = 1 {2} limit {3,number,#} offset {4,number,#};, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 find.n.cn = select a.rid, a.cid, a.v from cn_css where {1} 1 = 1 {2} limit {3,number,#} offset {4,number,#};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 
+# block-upsert-row, if present, stores a row body in one statement with the parameters (rid, body), replacing
+# block-insert-row and block-update-row. on conflict requires PostgreSQL 9.5 or later, remove the block-upsert-row
+# statements on earlier versions to store rows with block-insert-row or block-update-row.
 block-select-row = select b from css_b where rid = ?
+block-select-rows = select rid, b from css_b where rid in ({0})
 block-delete-row = delete from css_b where rid = ?
 block-insert-row = insert into css_b (rid,b) values (?, ?)
 block-update-row = update css_b set b = ? where rid = ?
+block-upsert-row = insert into css_b (rid,b) values (?, ?) on conflict (rid) do update set b = excluded.b
 
 block-select-row.n.ac = select b from ac_css_b where rid = ?
+block-select-rows.n.ac = select rid, b from ac_css_b where rid in ({0})
 block-delete-row.n.ac = delete from ac_css_b where rid = ?
 block-insert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?)
 block-update-row.n.ac = update ac_css_b set b = ? where rid = ?
+block-upsert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?) on conflict (rid) do update set b = excluded.b
 
 block-select-row.n.cn = select b from cn_css_b where rid = ?
+block-select-rows.n.cn = select rid, b from cn_css_b where rid in ({0})
 block-delete-row.n.cn = delete from cn_css_b where rid = ?
 block-insert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?)
 block-update-row.n.cn = update cn_css_b set b = ? where rid = ?
+block-upsert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?) on conflict (rid) do update set b = excluded.b
 
 block-select-row.n.au = select b from au_css_b where rid = ?
+block-select-rows.n.au = select rid, b from au_css_b where rid in ({0})
 block-delete-row.n.au = delete from au_css_b where rid = ?
 block-insert-row.n.au = insert into au_css_b (rid,b) values (?, ?)
 block-update-row.n.au = update au_css_b set b = ? where rid = ?
+block-upsert-row.n.au = insert into au_css_b (rid,b) values (?, ?) on conflict (rid) do update set b = excluded.b
 
 # base statement with paging ; table join ; where clause ; where clause for sort field (if needed) ; order by clause; sort field column( if needed)
 ## the subselect in the paging statement is required by Oracle to do paging. http://www.oracle.com/technetwork/issue-archive/2006/06-sep/o56asktom-086197.html
@@ -59,6 +70,12 @@ block-find.n.au = select distinct a.rid {5} from au_css a {0} where {1} 1 = 1 {2
 block-find.n.cn = select distinct a.rid {5} from cn_css a {0} where {1} 1 = 1 {2} limit {3,number,#} offset {4,number,#};, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
 block-find.n.ac = select distinct a.rid {5} from ac_css a {0} where {1} 1 = 1 {2} limit {3,number,#} offset {4,number,#};, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1} ;, {0}.v
 
+# Rows matched by block-find are loaded from the body tables in batches of find-prefetch-size using block-select-rows,
+# rather than with one block-select-row per row. 1 loads each row on its own. Multi row selects are split into
+# statements of at most select-rows-chunk-size row ids.
+find-prefetch-size = 25
+select-rows-chunk-size = 100
+
 
 # statement to validate the connection
 validate = select 1
@@ -78,7 +95,4 @@ use-batch-inserts = 1
 # e.g. the driver for Postgres 9 does not support JDBC methods introduced in JRE 1.6
 jdbc-support-level = 1.5
 
-#
-# PostgreSQL does not like to perform insert, fail, update operations. It wants update if missing insert.
-sql-statement-sequence = updateFirst
 
@@ -41,22 +41,28 @@ rowid-hash = SHA1
 select-index-columns = select cid from index_cols
 
 
+# block-upsert-row, if present, stores a row body in one statement with the parameters (rid, body), replacing
+# block-insert-row and block-update-row.
 block-select-row = select b from css_b where rid = ?
+block-select-rows = select rid, b from css_b where rid in ({0})
 block-delete-row = delete from css_b where rid = ?
 block-insert-row = insert into css_b (rid,b) values (?, ?)
 block-update-row = update css_b set b = ? where rid = ?
 
 block-select-row.n.au = select b from au_css_b where rid = ?
+block-select-rows.n.au = select rid, b from au_css_b where rid in ({0})
 block-delete-row.n.au = delete from au_css_b where rid = ?
 block-insert-row.n.au = insert into au_css_b (rid,b) values (?, ?)
 block-update-row.n.au = update au_css_b set b = ? where rid = ?
 
 block-select-row.n.ac = select b from ac_css_b where rid = ?
+block-select-rows.n.ac = select rid, b from ac_css_b where rid in ({0})
 block-delete-row.n.ac = delete from ac_css_b where rid = ?
 block-insert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?)
 block-update-row.n.ac = update ac_css_b set b = ? where rid = ?
 
 block-select-row.n.cn = select b from cn_css_b where rid = ?
+block-select-rows.n.cn = select rid, b from cn_css_b where rid in ({0})
 block-delete-row.n.cn = delete from cn_css_b where rid = ?
 block-insert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?)
 block-update-row.n.cn = update cn_css_b set b = ? where rid = ?
@@ -71,7 +77,16 @@ block-find.n.au = select distinct a.rid from au_css a {0} where {1} 1 = 1;, au_c
 block-find.n.ac = select distinct a.rid from ac_css a {0} where {1} 1 = 1;, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 block-find.n.cn = select distinct a.rid from cn_css a {0} where {1} 1 = 1;, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 
-use-batch-inserts = 0
+# Rows matched by block-find are loaded from the body tables in batches of find-prefetch-size using block-select-rows,
+# rather than with one block-select-row per row. 1 loads each row on its own. Multi row selects are split into
+# statements of at most select-rows-chunk-size row ids.
+find-prefetch-size = 25
+select-rows-chunk-size = 100
+
+# Use batch Inserts means that index updates will be sent to the database as JDBC batches rather than
+# one statement per value. At startup the driver is checked, and if it can't batch the statements are
+# sent one at a time. Set to 0 to never batch.
+use-batch-inserts = 1
 
 # Queries that take longer than these times to execute will be logged with warn and error respectively.
 # Logging is performed against org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClient.SlowQueryLogger
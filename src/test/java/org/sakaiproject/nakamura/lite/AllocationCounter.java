@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Measures the bytes allocated by the current thread, for the tests. Only
+ * some JVMs can measure allocation per thread, on others 0 is reported.
+ */
+public class AllocationCounter {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static Method allocatedBytes;
+
+    static {
+        try {
+            // only available on some JVMs.
+            Class<?> threads = Class.forName("com.sun.management.ThreadMXBean");
+            if (threads.isInstance(THREADS)) {
+                allocatedBytes = threads.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (Exception e) {
+            allocatedBytes = null;
+        }
+    }
+
+    private AllocationCounter() {
+    }
+
+    /**
+     * @return the number of bytes allocated by the current thread so far, or 0
+     *         if the JVM can't tell.
+     */
+    public static long allocated() {
+        if (allocatedBytes == null) {
+            return 0;
+        }
+        try {
+            return (Long) allocatedBytes.invoke(THREADS, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class CacheStatisticsTest {
+
+    @Test
+    public void testStripedCounter() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        final int nthreads = 8;
+        final CountDownLatch done = new CountDownLatch(nthreads);
+        for (int t = 0; t < nthreads; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        counter.increment();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        Assert.assertEquals(nthreads * 10000L, counter.get());
+        counter.reset();
+        Assert.assertEquals(0L, counter.get());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        Map<String, CacheHolder> cache = new ConcurrentLRUMap<String, CacheHolder>(2, 1);
+        CacheStatistics stats = CacheStatistics.getStatistics(cache, "test-statistics");
+        Assert.assertSame(stats, CacheStatistics.getStatistics(cache, "test-statistics"));
+        Assert.assertTrue(CacheStatistics.getAllStatistics().contains(stats));
+        // another cache of the same name, as in another repository, is
+        // counted apart.
+        Map<String, CacheHolder> otherCache = new ConcurrentLRUMap<String, CacheHolder>(2, 1);
+        CacheStatistics otherStats = CacheStatistics.getStatistics(otherCache, "test-statistics");
+        Assert.assertNotSame(stats, otherStats);
+        Assert.assertFalse(stats.getObjectName().equals(otherStats.getObjectName()));
+        otherStats.hit();
+        Assert.assertEquals(0L, stats.getHits());
+        for (int i = 0; i < 4; i++) {
+            cache.put("key" + i, new CacheHolder(null));
+        }
+        stats.hit();
+        stats.hit();
+        stats.hit();
+        stats.negativeHit();
+        stats.miss(500000L);
+        stats.miss(30000000L);
+        stats.invalidate();
+        Assert.assertEquals(3L, stats.getHits());
+        Assert.assertEquals(1L, stats.getNegativeHits());
+        Assert.assertEquals(2L, stats.getMisses());
+        Assert.assertEquals(66L, stats.getHitPercent());
+        Assert.assertEquals(1L, stats.getInvalidations());
+        Assert.assertEquals(2L, stats.getEvictions());
+        Assert.assertEquals(2L, stats.getSize());
+        Assert.assertEquals(2L, stats.getLoads());
+        Assert.assertEquals(30L, stats.getTotalLoadTime());
+        long[] histogram = stats.getLoadLatencyHistogram();
+        Assert.assertEquals(stats.getLoadLatencyBuckets().length + 1, histogram.length);
+        Assert.assertEquals(1L, histogram[0]);
+        Assert.assertEquals(1L, histogram[5]);
+
+        Assert.assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(
+                stats.getObjectName(), "Hits"));
+        Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(
+                otherStats.getObjectName(), "Hits"));
+
+        // 1.5ms is above the 1ms bound, 0.6ms + 0.6ms add up to more than 1ms.
+        stats.reset();
+        stats.miss(1500000L);
+        stats.miss(600000L);
+        stats.miss(600000L);
+        histogram = stats.getLoadLatencyHistogram();
+        Assert.assertEquals(2L, histogram[0]);
+        Assert.assertEquals(1L, histogram[1]);
+        Assert.assertEquals(2L, stats.getTotalLoadTime());
+
+        stats.reset();
+        Assert.assertEquals(0L, stats.getHits());
+        Assert.assertEquals(0L, stats.getEvictions());
+        Assert.assertEquals(0L, stats.getLoads());
+    }
+}
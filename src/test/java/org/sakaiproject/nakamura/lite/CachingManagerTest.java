@@ -0,0 +1,397 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationListener;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.cache.LoopbackCacheInvalidationBus;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.StorageClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingManagerTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingManagerTest.class);
+
+    private static class TestCachingManager extends CachingManager {
+
+        public TestCachingManager(StorageClient client, Map<String, CacheHolder> sharedCache) {
+            super(client, sharedCache, "test-caching-manager");
+        }
+
+        public Map<String, Object> get(String key) throws StorageClientException {
+            return getCached("n", "cn", key);
+        }
+
+        public Map<String, Map<String, Object>> getAll(String... keys)
+                throws StorageClientException {
+            return getCachedAll("n", "cn", Arrays.asList(keys));
+        }
+
+        public void put(String key, Map<String, Object> properties) throws StorageClientException {
+            putCached("n", "cn", key, properties, false);
+        }
+
+        public void start() throws StorageClientException {
+            startBatch();
+        }
+
+        public void commit() throws StorageClientException {
+            commitBatch();
+        }
+
+        public void abort() {
+            abortBatch();
+        }
+
+        @Override
+        protected Logger getLogger() {
+            return LOGGER;
+        }
+    }
+
+    /**
+     * A storage client that counts reads. If reading is given, each read
+     * counts it down and then blocks until release is counted down, so that
+     * tests can hold a read in progress.
+     */
+    private StorageClient createClient(final AtomicInteger reads, final CountDownLatch reading,
+            final CountDownLatch release) {
+        return (StorageClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { StorageClient.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if ("get".equals(method.getName()) || "getAll".equals(method.getName())) {
+                            reads.incrementAndGet();
+                            if (reading != null) {
+                                reading.countDown();
+                                release.await();
+                            }
+                        }
+                        if ("get".equals(method.getName())) {
+                            if (String.valueOf(args[2]).startsWith("missing")) {
+                                return new HashMap<String, Object>();
+                            }
+                            return ImmutableMap.of("key", args[2]);
+                        }
+                        if ("getAll".equals(method.getName())) {
+                            Map<String, Map<String, Object>> rows = new LinkedHashMap<String, Map<String, Object>>();
+                            for (Object key : (Collection<?>) args[2]) {
+                                if (String.valueOf(key).startsWith("missing")) {
+                                    rows.put((String) key, new HashMap<String, Object>());
+                                } else {
+                                    rows.put((String) key, ImmutableMap.of("key", key));
+                                }
+                            }
+                            return rows;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Wait until each thread is blocked, either on the load in progress or in
+     * a read of its own.
+     */
+    private void awaitBlocked(List<Thread> threads) {
+        for (Thread t : threads) {
+            while (t.isAlive() && t.getState() != Thread.State.WAITING) {
+                Thread.yield();
+            }
+        }
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        final Map<String, CacheHolder> cache = new ConcurrentLRUMap<String, CacheHolder>(100);
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final StorageClient client = createClient(reads, reading, release);
+        final int nthreads = 10;
+        final CountDownLatch done = new CountDownLatch(nthreads);
+        final AtomicInteger failures = new AtomicInteger();
+        Runnable get = new Runnable() {
+            public void run() {
+                try {
+                    // each thread has its own manager, as each session would.
+                    Map<String, Object> m = new TestCachingManager(client, cache).get("a");
+                    if (!"a".equals(m.get("key"))) {
+                        failures.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        // the first thread starts the load and is held in the read.
+        new Thread(get).start();
+        reading.await();
+        List<Thread> waiters = new ArrayList<Thread>();
+        for (int t = 1; t < nthreads; t++) {
+            Thread thread = new Thread(get);
+            waiters.add(thread);
+            thread.start();
+        }
+        awaitBlocked(waiters);
+        release.countDown();
+        done.await();
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals(1, reads.get());
+        Assert.assertNotNull(cache.get("n:cn:a"));
+    }
+
+    @Test
+    public void testInvalidateDuringLoad() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        final Map<String, CacheHolder> cache = new ConcurrentLRUMap<String, CacheHolder>(100);
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final StorageClient client = createClient(reads, reading, release);
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    new TestCachingManager(client, cache).get("b");
+                } catch (StorageClientException e) {
+                    LOGGER.info(e.getMessage(), e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }).start();
+        reading.await();
+        // a write while the read is in progress must stop the read being
+        // cached.
+        new TestCachingManager(client, cache).put("b", ImmutableMap.of("key", (Object) "new"));
+        release.countDown();
+        done.await();
+        Assert.assertNull(cache.get("n:cn:b"));
+    }
+
+    @Test
+    public void testReadAfterWriteDoesNotShareLoad() throws Exception {
+        final Map<String, CacheHolder> cache = new ConcurrentLRUMap<String, CacheHolder>(100);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final StorageClient loadingClient = createClient(new AtomicInteger(), loading, release);
+        final CountDownLatch writing = new CountDownLatch(1);
+        final StorageClient writingClient = createClient(new AtomicInteger(), writing, release);
+        final CountDownLatch done = new CountDownLatch(2);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    new TestCachingManager(loadingClient, cache).get("d");
+                } catch (StorageClientException e) {
+                    LOGGER.info(e.getMessage(), e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }).start();
+        loading.await();
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    TestCachingManager manager = new TestCachingManager(writingClient, cache);
+                    manager.put("d", ImmutableMap.of("key", (Object) "d"));
+                    manager.get("d");
+                } catch (StorageClientException e) {
+                    LOGGER.info(e.getMessage(), e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }).start();
+        try {
+            // the read back of the write is a read of its own, rather than a
+            // wait for the load that started before the write.
+            Assert.assertTrue(writing.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+        done.await();
+        Assert.assertNotNull(cache.get("n:cn:d"));
+    }
+
+    @Test
+    public void testNegativeCache() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        Map<String, CacheHolder> cache = new ConcurrentLRUMap<String, CacheHolder>(100);
+        TestCachingManager manager = new TestCachingManager(createClient(reads, null, null), cache);
+        manager.setNegativeCacheTTL(60000L);
+        long negativeHits = manager.getCacheStatistics().getNegativeHits();
+        Assert.assertTrue(manager.get("missing1").isEmpty());
+        Assert.assertEquals(1, reads.get());
+        Map<String, Object> m = manager.get("missing1");
+        Assert.assertTrue(m.isEmpty());
+        Assert.assertEquals(1, reads.get());
+        Assert.assertEquals(negativeHits + 1, manager.getCacheStatistics().getNegativeHits());
+        // the empty map returned must not be shared.
+        m.put("x", "y");
+        Assert.assertTrue(manager.get("missing1").isEmpty());
+
+        // writing the row removes the negative entry.
+        manager.put("missing1", ImmutableMap.of("key", (Object) "missing1"));
+        manager.get("missing1");
+        Assert.assertEquals(2, reads.get());
+
+        // negative entries expire.
+        manager.setNegativeCacheTTL(50L);
+        manager.get("missing2");
+        Assert.assertEquals(3, reads.get());
+        manager.get("missing2");
+        Assert.assertEquals(3, reads.get());
+        Thread.sleep(100);
+        manager.get("missing2");
+        Assert.assertEquals(4, reads.get());
+
+        // a ttl of 0 disables negative caching.
+        manager.setNegativeCacheTTL(0L);
+        manager.get("missing3");
+        manager.get("missing3");
+        Assert.assertEquals(6, reads.get());
+
+        // the setting is that of the manager, others keep their own.
+        TestCachingManager other = new TestCachingManager(createClient(reads, null, null),
+                new ConcurrentLRUMap<String, CacheHolder>(100));
+        other.get("missing4");
+        other.get("missing4");
+        Assert.assertEquals(7, reads.get());
+    }
+
+    @Test
+    public void testInvalidationBus() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        // two nodes sharing storage, each with its own cache.
+        final Map<String, CacheHolder> cache1 = new ConcurrentLRUMap<String, CacheHolder>(100);
+        final Map<String, CacheHolder> cache2 = new ConcurrentLRUMap<String, CacheHolder>(100);
+        LoopbackCacheInvalidationBus bus1 = new LoopbackCacheInvalidationBus("testInvalidationBus");
+        LoopbackCacheInvalidationBus bus2 = new LoopbackCacheInvalidationBus("testInvalidationBus");
+        try {
+            final CountDownLatch invalidated = new CountDownLatch(1);
+            bus2.addListener(new CacheInvalidationListener() {
+                public void invalidate(Collection<String> cacheKeys) {
+                    for (String cacheKey : cacheKeys) {
+                        CachingManager.invalidate(cache2, cacheKey);
+                    }
+                    invalidated.countDown();
+                }
+
+                public void invalidateAll() {
+                    cache2.clear();
+                }
+            });
+            StorageClient client = createClient(reads, null, null);
+            TestCachingManager manager1 = new TestCachingManager(client, cache1);
+            manager1.setCacheInvalidationBus(bus1);
+            TestCachingManager manager2 = new TestCachingManager(client, cache2);
+            manager2.setCacheInvalidationBus(bus2);
+            manager2.get("c");
+            Assert.assertNotNull(cache2.get("n:cn:c"));
+            manager1.put("c", ImmutableMap.of("key", (Object) "c"));
+            Assert.assertTrue(invalidated.await(10, TimeUnit.SECONDS));
+            Assert.assertFalse(cache2.containsKey("n:cn:c"));
+        } finally {
+            bus1.close();
+            bus2.close();
+        }
+    }
+
+    @Test
+    public void testGetCachedAll() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        Map<String, CacheHolder> cache = new ConcurrentLRUMap<String, CacheHolder>(100);
+        TestCachingManager manager = new TestCachingManager(createClient(reads, null, null), cache);
+        manager.get("a");
+        Assert.assertEquals(1, reads.get());
+        Map<String, Map<String, Object>> rows = manager.getAll("a", "b", "missing1", "c");
+        // only the misses are read, in one operation.
+        Assert.assertEquals(2, reads.get());
+        Assert.assertArrayEquals(new Object[] { "a", "b", "missing1", "c" }, rows.keySet()
+                .toArray());
+        Assert.assertEquals("a", rows.get("a").get("key"));
+        Assert.assertEquals("b", rows.get("b").get("key"));
+        Assert.assertEquals("c", rows.get("c").get("key"));
+        Assert.assertTrue(rows.get("missing1").isEmpty());
+        Assert.assertNotNull(cache.get("n:cn:b"));
+        Assert.assertNotNull(cache.get("n:cn:c"));
+        rows = manager.getAll("a", "b", "missing1", "c");
+        Assert.assertEquals(2, reads.get());
+        Assert.assertEquals("c", rows.get("c").get("key"));
+        Assert.assertTrue(rows.get("missing1").isEmpty());
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        Map<String, CacheHolder> cache = new ConcurrentLRUMap<String, CacheHolder>(100);
+        TestCachingManager manager = new TestCachingManager(createClient(reads, null, null), cache);
+        manager.start();
+        manager.start();
+        manager.put("a", ImmutableMap.of("key", (Object) "a"));
+        // rows written in a batch are read from storage and not cached
+        // until the batch is committed.
+        manager.get("a");
+        manager.get("a");
+        Assert.assertEquals(2, reads.get());
+        Assert.assertNull(cache.get("n:cn:a"));
+        // one read for the batch row, one for the row that can be cached.
+        manager.getAll("a", "b");
+        Assert.assertEquals(4, reads.get());
+        Assert.assertNull(cache.get("n:cn:a"));
+        Assert.assertNotNull(cache.get("n:cn:b"));
+        manager.commit();
+        manager.get("a");
+        Assert.assertNull(cache.get("n:cn:a"));
+        manager.commit();
+        // another session may have cached the row while the batch was open.
+        cache.put("n:cn:a", new CacheHolder(ImmutableMap.of("key", (Object) "stale")));
+        manager.start();
+        manager.put("a", ImmutableMap.of("key", (Object) "a"));
+        cache.put("n:cn:a", new CacheHolder(ImmutableMap.of("key", (Object) "stale")));
+        Assert.assertEquals("a", manager.get("a").get("key"));
+        manager.abort();
+        Assert.assertNull(cache.get("n:cn:a"));
+        manager.get("a");
+        Assert.assertNotNull(cache.get("n:cn:a"));
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.lite.accesscontrol;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -27,6 +28,7 @@ import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -45,10 +47,12 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.CacheStatistics;
 import org.sakaiproject.nakamura.lite.ConfigurationImpl;
 import org.sakaiproject.nakamura.lite.LoggingStorageListener;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
+import org.sakaiproject.nakamura.lite.storage.ConcurrentLRUMap;
 import org.sakaiproject.nakamura.lite.storage.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.StorageClientPool;
 import org.slf4j.Logger;
@@ -470,4 +474,273 @@ public abstract class AbstractAccessControlManagerImplTest {
 
     }
 
+    @Test
+    public void testSharedCompiledPermissions() throws StorageClientException,
+            AccessDeniedException {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User currentUser = authenticator.authenticate("admin", "admin");
+        String u1 = "user1-" + System.currentTimeMillis();
+        String g1 = "group1-" + System.currentTimeMillis();
+        String basepath = "testpath" + System.currentTimeMillis();
+        CompiledPermissionCache compiledPermissions = new CompiledPermissionCache();
+
+        AccessControlManagerImpl adminAccessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, null, new LoggingStorageListener(),
+                principalValidatorResolver);
+        adminAccessControlManager.setCompiledPermissionCache(compiledPermissions);
+        AuthorizableManagerImpl adminAuthorizableManager = new AuthorizableManagerImpl(
+                currentUser, client, configuration, adminAccessControlManager, null,
+                new LoggingStorageListener());
+        adminAuthorizableManager.createUser(u1, "User 1", "test",
+                ImmutableMap.of("test", (Object) "test"));
+        adminAuthorizableManager.createGroup(g1, "Group 1", null);
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath + "/a",
+                new AclModification[] { new AclModification(AclModification.grantKey(u1),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath + "/g",
+                new AclModification[] { new AclModification(AclModification.grantKey(g1),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+
+        // permissions compiled by one session are used by the next.
+        Assert.assertTrue(newSession(u1, compiledPermissions).can(Security.ZONE_CONTENT,
+                basepath + "/a/b", Permissions.CAN_WRITE));
+        int compiled = compiledPermissions.size();
+        Assert.assertTrue(compiled > 0);
+        Assert.assertTrue(newSession(u1, compiledPermissions).can(Security.ZONE_CONTENT,
+                basepath + "/a/b", Permissions.CAN_WRITE));
+        Assert.assertEquals(compiled, compiledPermissions.size());
+
+        // a change to the ACL of an ancestor removes them.
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath,
+                new AclModification[] { new AclModification(AclModification.denyKey(u1),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+        Assert.assertTrue(compiledPermissions.size() < compiled);
+        Assert.assertTrue(newSession(u1, compiledPermissions).can(Security.ZONE_CONTENT,
+                basepath + "/a/b", Permissions.CAN_WRITE));
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath + "/a",
+                new AclModification[] { new AclModification(AclModification.grantKey(u1),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_DEL) });
+        Assert.assertFalse(newSession(u1, compiledPermissions).can(Security.ZONE_CONTENT,
+                basepath + "/a/b", Permissions.CAN_WRITE));
+
+        // so does a change of membership.
+        Assert.assertFalse(newSession(u1, compiledPermissions).can(Security.ZONE_CONTENT,
+                basepath + "/g", Permissions.CAN_WRITE));
+        Group group = (Group) adminAuthorizableManager.findAuthorizable(g1);
+        group.addMember(u1);
+        adminAuthorizableManager.updateAuthorizable(group);
+        Assert.assertTrue(newSession(u1, compiledPermissions).can(Security.ZONE_CONTENT,
+                basepath + "/g", Permissions.CAN_WRITE));
+    }
+
+    @Test
+    public void testSharedCompiledPermissionsInDeepTree() throws StorageClientException,
+            AccessDeniedException {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User currentUser = authenticator.authenticate("admin", "admin");
+        long t = System.currentTimeMillis();
+        String[] users = new String[] { "user1-" + t, "user2-" + t, "user3-" + t };
+        String g1 = "group1-" + t;
+        Map<String, CacheHolder> aclCache = new ConcurrentLRUMap<String, CacheHolder>(1000);
+
+        AccessControlManagerImpl adminAccessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, aclCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        AuthorizableManagerImpl adminAuthorizableManager = new AuthorizableManagerImpl(
+                currentUser, client, configuration, adminAccessControlManager, null,
+                new LoggingStorageListener());
+        for (String u : users) {
+            adminAuthorizableManager.createUser(u, u, "test",
+                    ImmutableMap.of("test", (Object) "test"));
+        }
+        adminAuthorizableManager.createGroup(g1, "Group 1", null);
+        Group group = (Group) adminAuthorizableManager.findAuthorizable(g1);
+        group.addMember(users[1]);
+        adminAuthorizableManager.updateAuthorizable(group);
+
+        // everyone denied at the top, ACLs on two of every three levels
+        // below, and some of the siblings with their own ACL.
+        StringBuilder path = new StringBuilder("testpath" + t);
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, path.toString(),
+                new AclModification[] { new AclModification(
+                        AclModification.denyKey(Group.EVERYONE),
+                        Permissions.ALL.getPermission(), Operation.OP_REPLACE) });
+        for (int level = 0; level < 9; level++) {
+            path.append("/l").append(level);
+            if (level % 3 == 0) {
+                adminAccessControlManager.setAcl(Security.ZONE_CONTENT, path.toString(),
+                        new AclModification[] {
+                                new AclModification(AclModification.grantKey(users[0]),
+                                        Permissions.CAN_ANYTHING.getPermission(),
+                                        Operation.OP_REPLACE),
+                                new AclModification(AclModification.grantKey(g1),
+                                        Permissions.CAN_WRITE.getPermission(),
+                                        Operation.OP_REPLACE) });
+            } else if (level % 3 == 1) {
+                adminAccessControlManager.setAcl(Security.ZONE_CONTENT, path.toString(),
+                        new AclModification[] { new AclModification(
+                                AclModification.denyKey(users[2]),
+                                Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+            }
+        }
+        String[] siblings = new String[20];
+        for (int i = 0; i < siblings.length; i++) {
+            siblings[i] = path + "/item" + i;
+            if (i % 5 == 0) {
+                adminAccessControlManager.setAcl(Security.ZONE_CONTENT, siblings[i],
+                        new AclModification[] { new AclModification(
+                                AclModification.grantKey(users[2]),
+                                Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+            }
+        }
+
+        // sessions sharing compiled permissions decide as sessions that
+        // compile their own, and once they are compiled look up fewer ACLs.
+        CacheStatistics statistics = CacheStatistics.getStatistics(aclCache, "accesscontrol");
+        CompiledPermissionCache compiledPermissions = new CompiledPermissionCache();
+        long lookups = aclLookups(statistics);
+        boolean[] expected = checkSiblings(users, siblings, null, aclCache);
+        long perSession = aclLookups(statistics) - lookups;
+        Assert.assertTrue(Arrays.equals(expected,
+                checkSiblings(users, siblings, compiledPermissions, aclCache)));
+        lookups = aclLookups(statistics);
+        Assert.assertTrue(Arrays.equals(expected,
+                checkSiblings(users, siblings, compiledPermissions, aclCache)));
+        long shared = aclLookups(statistics) - lookups;
+        Assert.assertTrue("Shared sessions looked up " + shared + " ACLs, per session "
+                + perSession, shared < perSession);
+
+        // user1 is granted everything, user2 can write through the group,
+        // and user3 only where the sibling grants it.
+        for (int i = 0; i < siblings.length; i++) {
+            Assert.assertTrue(expected[i]);
+            Assert.assertTrue(expected[siblings.length + i]);
+            Assert.assertEquals(i % 5 == 0, expected[2 * siblings.length + i]);
+        }
+    }
+
+    private long aclLookups(CacheStatistics statistics) {
+        return statistics.getHits() + statistics.getNegativeHits() + statistics.getMisses()
+                + statistics.getCoalescedLoads();
+    }
+
+    /**
+     * @return whether each user can write each sibling, from a new session for
+     *         each user.
+     */
+    private boolean[] checkSiblings(String[] users, String[] siblings,
+            CompiledPermissionCache compiledPermissions, Map<String, CacheHolder> aclCache)
+            throws StorageClientException, AccessDeniedException {
+        boolean[] allowed = new boolean[users.length * siblings.length];
+        for (int u = 0; u < users.length; u++) {
+            SessionCheck session = newSession(users[u], compiledPermissions, aclCache);
+            for (int i = 0; i < siblings.length; i++) {
+                allowed[u * siblings.length + i] = session.can(Security.ZONE_CONTENT,
+                        siblings[i], Permissions.CAN_WRITE);
+            }
+        }
+        return allowed;
+    }
+
+    @Test
+    public void testFilter() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User currentUser = authenticator.authenticate("admin", "admin");
+        String u1 = "user1-" + System.currentTimeMillis();
+        String basepath = "testpath" + System.currentTimeMillis();
+
+        AccessControlManagerImpl adminAccessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, null, new LoggingStorageListener(),
+                principalValidatorResolver);
+        AuthorizableManagerImpl adminAuthorizableManager = new AuthorizableManagerImpl(
+                currentUser, client, configuration, adminAccessControlManager, null,
+                new LoggingStorageListener());
+        adminAuthorizableManager.createUser(u1, "User 1", "test",
+                ImmutableMap.of("test", (Object) "test"));
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath, new AclModification[] {
+                new AclModification(AclModification.grantKey(u1),
+                        Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath + "/a",
+                new AclModification[] { new AclModification(AclModification.grantKey(u1),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, basepath + "/private",
+                new AclModification[] { new AclModification(AclModification.denyKey(u1),
+                        Permissions.ALL.getPermission(), Operation.OP_REPLACE) });
+        List<String> paths = ImmutableList.of(basepath + "/a/x", basepath + "/private/x",
+                basepath + "/private", basepath + "/b", basepath + "/a/y",
+                basepath + "/private/y/z");
+
+        Assert.assertEquals(paths, adminAccessControlManager.filter(Security.ZONE_CONTENT,
+                paths, Permissions.CAN_WRITE));
+
+        AccessControlManager accessControlManager = newFilterSession(u1);
+        Assert.assertEquals(
+                ImmutableList.of(basepath + "/a/x", basepath + "/b", basepath + "/a/y"),
+                accessControlManager.filter(Security.ZONE_CONTENT, paths, Permissions.CAN_READ));
+        Assert.assertEquals(ImmutableList.of(basepath + "/a/x", basepath + "/a/y"),
+                accessControlManager.filter(Security.ZONE_CONTENT, paths, Permissions.CAN_WRITE));
+
+        // the same as checking each path in a new session.
+        for (Permission permission : new Permission[] { Permissions.CAN_READ,
+                Permissions.CAN_WRITE }) {
+            List<String> permitted = Lists.newArrayList();
+            for (String path : paths) {
+                if (newSession(u1, null).can(Security.ZONE_CONTENT, path, permission)) {
+                    permitted.add(path);
+                }
+            }
+            Assert.assertEquals(permitted, newFilterSession(u1).filter(Security.ZONE_CONTENT,
+                    paths, permission));
+        }
+    }
+
+    private AccessControlManager newFilterSession(String userId) throws StorageClientException,
+            AccessDeniedException {
+        User user = new AuthenticatorImpl(client, configuration).systemAuthenticate(userId);
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                user, configuration, null, new LoggingStorageListener(),
+                principalValidatorResolver);
+        new AuthorizableManagerImpl(user, client, configuration, accessControlManager, null,
+                new LoggingStorageListener());
+        return accessControlManager;
+    }
+
+    /**
+     * A permission check in a new session for a user, sharing compiled
+     * permissions.
+     */
+    private static interface SessionCheck {
+        boolean can(String objectType, String path, Permission permission)
+                throws StorageClientException;
+    }
+
+    private SessionCheck newSession(String userId, CompiledPermissionCache compiledPermissions)
+            throws StorageClientException, AccessDeniedException {
+        return newSession(userId, compiledPermissions, null);
+    }
+
+    private SessionCheck newSession(String userId, CompiledPermissionCache compiledPermissions,
+            Map<String, CacheHolder> aclCache) throws StorageClientException,
+            AccessDeniedException {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        final User user = authenticator.systemAuthenticate(userId);
+        final AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(
+                client, user, configuration, aclCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        accessControlManager.setCompiledPermissionCache(compiledPermissions);
+        new AuthorizableManagerImpl(user, client, configuration, accessControlManager, null,
+                new LoggingStorageListener());
+        return new SessionCheck() {
+            public boolean can(String objectType, String path, Permission permission)
+                    throws StorageClientException {
+                try {
+                    accessControlManager.check(objectType, path, permission);
+                    return true;
+                } catch (AccessDeniedException e) {
+                    return false;
+                }
+            }
+        };
+    }
+
 }
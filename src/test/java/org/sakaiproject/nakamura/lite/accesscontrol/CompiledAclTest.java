@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import com.google.common.collect.Maps;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+
+import java.util.Map;
+
+public class CompiledAclTest {
+
+    @Test
+    public void testEvaluate() {
+        Map<String, Object> acl = Maps.newHashMap();
+        acl.put(AclModification.grantKey("ca-user"), 0x01);
+        acl.put(AclModification.grantKey("ca-group1"), 0x06);
+        acl.put(AclModification.denyKey("ca-group1"), 0x10);
+        acl.put(AclModification.denyKey("ca-group2"), 0x20);
+        acl.put(AclModification.grantKey(Group.EVERYONE), 0x40);
+        acl.put(AclModification.denyKey(Group.EVERYONE), 0x80);
+        acl.put("_aclKey", "n;ca");
+        CompiledAcl compiledAcl = CompiledAcl.get(Maps.<String, CompiledAcl> newHashMap(),
+                "n;ca", acl);
+
+        int[] ids = CompiledAcl.getPrincipalIds(new String[] { "ca-user", "ca-group1",
+                "ca-other", "ca-group1" });
+        Assert.assertEquals(3, ids.length);
+        Assert.assertEquals(0x07, compiledAcl.getGranted(ids));
+        Assert.assertEquals(0x10, compiledAcl.getDenied(ids));
+        ids = CompiledAcl.getPrincipalIds(new String[] { "ca-group2" });
+        Assert.assertEquals(0, compiledAcl.getGranted(ids));
+        Assert.assertEquals(0x20, compiledAcl.getDenied(ids));
+        Assert.assertEquals(0x40, compiledAcl.getEveryoneGranted());
+        Assert.assertEquals(0x80, compiledAcl.getEveryoneDenied());
+    }
+
+    @Test
+    public void testRecompile() {
+        Map<String, CompiledAcl> compiledAcls = Maps.newHashMap();
+        Map<String, Object> acl = Maps.newHashMap();
+        acl.put(AclModification.grantKey("ca-user"), 0x01);
+        CompiledAcl compiledAcl = CompiledAcl.get(compiledAcls, "n;ca", acl);
+        Assert.assertSame(compiledAcl, CompiledAcl.get(compiledAcls, "n;ca", acl));
+
+        // a new row for the same key is compiled again.
+        Map<String, Object> changed = Maps.newHashMap(acl);
+        changed.put(AclModification.grantKey("ca-user"), 0x03);
+        CompiledAcl recompiled = CompiledAcl.get(compiledAcls, "n;ca", changed);
+        Assert.assertNotSame(compiledAcl, recompiled);
+        Assert.assertEquals(0x03, recompiled.getGranted(CompiledAcl
+                .getPrincipalIds(new String[] { "ca-user" })));
+    }
+}
@@ -18,8 +18,10 @@
 package org.sakaiproject.nakamura.lite.authorizable;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -28,9 +30,14 @@ import org.junit.Test;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolver;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
@@ -51,6 +58,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public abstract class AbstractAuthorizableManagerImplTest {
 
@@ -436,4 +444,170 @@ public abstract class AbstractAuthorizableManagerImplTest {
         Assert.assertTrue(group instanceof Group);
     }
 
+    @Test
+    public void testPrincipalClosure() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManagerImpl = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache,  new LoggingStorageListener(), principalValidatorResolver);
+
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+                client, configuration, accessControlManagerImpl, sharedCache,  new LoggingStorageListener());
+
+        String suffix = String.valueOf(System.currentTimeMillis());
+        String user = "closureuser" + suffix;
+        String section = "section" + suffix;
+        String course = "course" + suffix;
+        String site = "site" + suffix;
+        Assert.assertTrue(authorizableManager.createUser(user, "Closure User", "test", null));
+        Assert.assertTrue(authorizableManager.createGroup(section, "Section", null));
+        Assert.assertTrue(authorizableManager.createGroup(course, "Course", null));
+        Assert.assertTrue(authorizableManager.createGroup(site, "Site", null));
+
+        addMember(authorizableManager, course, section);
+        addMember(authorizableManager, section, user);
+        Assert.assertEquals(ImmutableSet.of(course),
+                getPrincipalClosure(authorizableManager, section));
+        // users hold no closure, they take those of their groups.
+        Assert.assertNull(authorizableManager.findAuthorizable(user).getPrincipalClosure());
+
+        // a change above a group reaches the groups below it.
+        addMember(authorizableManager, site, course);
+        Assert.assertEquals(ImmutableSet.of(site),
+                getPrincipalClosure(authorizableManager, course));
+        Assert.assertEquals(ImmutableSet.of(course, site),
+                getPrincipalClosure(authorizableManager, section));
+
+        Group group = (Group) authorizableManager.findAuthorizable(course);
+        group.removeMember(section);
+        authorizableManager.updateAuthorizable(group);
+        Assert.assertEquals(ImmutableSet.of(),
+                getPrincipalClosure(authorizableManager, section));
+
+        addMember(authorizableManager, course, section);
+        authorizableManager.delete(course);
+        Assert.assertEquals(ImmutableSet.of(course),
+                getPrincipalClosure(authorizableManager, section));
+    }
+
+    @Test
+    public void testRebuildPrincipalClosures() throws StorageClientException,
+            AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManagerImpl = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache,  new LoggingStorageListener(), principalValidatorResolver);
+
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+                client, configuration, accessControlManagerImpl, sharedCache,  new LoggingStorageListener());
+
+        String suffix = String.valueOf(System.currentTimeMillis());
+        String user = "rebuilduser" + suffix;
+        String section = "section" + suffix;
+        String course = "course" + suffix;
+        String path = "a/rebuild/path" + suffix;
+        Assert.assertTrue(authorizableManager.createUser(user, "Rebuild User", "test", null));
+        Assert.assertTrue(authorizableManager.createGroup(section, "Section", null));
+        Assert.assertTrue(authorizableManager.createGroup(course, "Course", null));
+        accessControlManagerImpl.setAcl(Security.ZONE_CONTENT, path,
+                new AclModification[] { new AclModification(AclModification.grantKey(course),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+
+        // membership written without the manager leaves the closures stale,
+        // access is resolved from the membership until they are rebuilt.
+        Map<String, Object> sectionRow = Maps.newHashMap(client.get(configuration.getKeySpace(),
+                configuration.getAuthorizableColumnFamily(), section));
+        sectionRow.put(Authorizable.PRINCIPALS_FIELD, course);
+        sectionRow.put(Authorizable.PRINCIPAL_CLOSURE_FIELD, new RemoveProperty());
+        client.insert(configuration.getKeySpace(), configuration.getAuthorizableColumnFamily(),
+                section, sectionRow, false);
+        Map<String, Object> userRow = Maps.newHashMap(client.get(configuration.getKeySpace(),
+                configuration.getAuthorizableColumnFamily(), user));
+        userRow.put(Authorizable.PRINCIPALS_FIELD, section);
+        client.insert(configuration.getKeySpace(), configuration.getAuthorizableColumnFamily(),
+                user, userRow, false);
+        Map<String, CacheHolder> cache = new ConcurrentLRUMap<String, CacheHolder>(1000);
+        accessControlManagerImpl = new AccessControlManagerImpl(client, currentUser,
+                configuration, cache, new LoggingStorageListener(), principalValidatorResolver);
+        authorizableManager = new AuthorizableManagerImpl(currentUser, client, configuration,
+                accessControlManagerImpl, cache, new LoggingStorageListener());
+        Assert.assertNull(authorizableManager.findAuthorizable(section).getPrincipalClosure());
+        Assert.assertTrue(canWrite(accessControlManagerImpl, authorizableManager, user, path));
+
+        authorizableManager.rebuildPrincipalClosures(section);
+        Assert.assertEquals(ImmutableSet.of(course),
+                getPrincipalClosure(authorizableManager, section));
+        Assert.assertTrue(canWrite(accessControlManagerImpl, authorizableManager, user, path));
+    }
+
+    @Test
+    public void testRemovePrincipalRevokesAccess() throws StorageClientException,
+            AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManagerImpl = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache,  new LoggingStorageListener(), principalValidatorResolver);
+
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+                client, configuration, accessControlManagerImpl, sharedCache,  new LoggingStorageListener());
+
+        String suffix = String.valueOf(System.currentTimeMillis());
+        String user = "principaluser" + suffix;
+        String section = "section" + suffix;
+        String course = "course" + suffix;
+        String path = "a/course/path" + suffix;
+        Assert.assertTrue(authorizableManager.createUser(user, "Principal User", "test", null));
+        Assert.assertTrue(authorizableManager.createGroup(section, "Section", null));
+        Assert.assertTrue(authorizableManager.createGroup(course, "Course", null));
+        addMember(authorizableManager, course, section);
+        addMember(authorizableManager, section, user);
+        accessControlManagerImpl.setAcl(Security.ZONE_CONTENT, path,
+                new AclModification[] { new AclModification(AclModification.grantKey(course),
+                        Permissions.CAN_WRITE.getPermission(), Operation.OP_REPLACE) });
+        Assert.assertTrue(canWrite(accessControlManagerImpl, authorizableManager, user, path));
+
+        // removing the principal directly, rather than the member, revokes access.
+        Authorizable a = authorizableManager.findAuthorizable(user);
+        a.removePrincipal(section);
+        authorizableManager.updateAuthorizable(a);
+        Assert.assertFalse(canWrite(accessControlManagerImpl, authorizableManager, user, path));
+
+        // adding the principal back brings the groups above it.
+        a = authorizableManager.findAuthorizable(user);
+        a.addPrincipal(section);
+        authorizableManager.updateAuthorizable(a);
+        Assert.assertTrue(canWrite(accessControlManagerImpl, authorizableManager, user, path));
+
+        // a principal removed from a group is removed from its members.
+        a = authorizableManager.findAuthorizable(section);
+        a.removePrincipal(course);
+        authorizableManager.updateAuthorizable(a);
+        Assert.assertFalse(canWrite(accessControlManagerImpl, authorizableManager, user, path));
+        Assert.assertEquals(ImmutableSet.of(),
+                getPrincipalClosure(authorizableManager, section));
+    }
+
+    private boolean canWrite(AccessControlManagerImpl accessControlManagerImpl,
+            AuthorizableManagerImpl authorizableManager, String authorizableId, String path)
+            throws StorageClientException, AccessDeniedException {
+        return accessControlManagerImpl.can(authorizableManager.findAuthorizable(authorizableId),
+                Security.ZONE_CONTENT, path, Permissions.CAN_WRITE);
+    }
+
+    private void addMember(AuthorizableManagerImpl authorizableManager, String groupId,
+            String memberId) throws StorageClientException, AccessDeniedException {
+        Group group = (Group) authorizableManager.findAuthorizable(groupId);
+        group.addMember(memberId);
+        authorizableManager.updateAuthorizable(group);
+    }
+
+    private Set<String> getPrincipalClosure(AuthorizableManagerImpl authorizableManager,
+            String authorizableId) throws StorageClientException, AccessDeniedException {
+        return Sets.newHashSet(Arrays.asList(authorizableManager.findAuthorizable(
+                authorizableId).getPrincipalClosure()));
+    }
+
 }
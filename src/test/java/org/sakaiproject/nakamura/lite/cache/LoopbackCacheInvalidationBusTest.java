@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheInvalidationListener;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LoopbackCacheInvalidationBusTest {
+
+    /**
+     * Records invalidations, and lets the test wait for a number of keys or an
+     * invalidate all rather than polling.
+     */
+    private static class RecordingListener implements CacheInvalidationListener {
+        private final List<String> keys = Lists.newArrayList();
+        private final AtomicInteger all = new AtomicInteger();
+        private final CountDownLatch keysReceived;
+        private final CountDownLatch allReceived = new CountDownLatch(1);
+
+        RecordingListener(int nkeys) {
+            keysReceived = new CountDownLatch(nkeys);
+        }
+
+        public synchronized void invalidate(Collection<String> cacheKeys) {
+            keys.addAll(cacheKeys);
+            for (int i = 0; i < cacheKeys.size(); i++) {
+                keysReceived.countDown();
+            }
+        }
+
+        public void invalidateAll() {
+            all.incrementAndGet();
+            allReceived.countDown();
+        }
+
+        public synchronized List<String> getKeys() {
+            return Lists.newArrayList(keys);
+        }
+
+        public void awaitKeys() throws InterruptedException {
+            Assert.assertTrue(keysReceived.await(10, TimeUnit.SECONDS));
+        }
+
+        public void awaitAll() throws InterruptedException {
+            Assert.assertTrue(allReceived.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * A bus without a sender thread, so that heartbeats don't take sequence
+     * numbers while a test encodes messages.
+     */
+    private static class UnstartedBus extends AbstractCacheInvalidationBus {
+        @Override
+        protected void send(List<String> cacheKeys, boolean all) {
+        }
+    }
+
+    @Test
+    public void testDeliveredToOtherNodes() throws InterruptedException {
+        LoopbackCacheInvalidationBus node1 = new LoopbackCacheInvalidationBus("testDelivered");
+        LoopbackCacheInvalidationBus node2 = new LoopbackCacheInvalidationBus("testDelivered");
+        LoopbackCacheInvalidationBus other = new LoopbackCacheInvalidationBus("testOtherGroup");
+        try {
+            RecordingListener listener1 = new RecordingListener(0);
+            RecordingListener listener2 = new RecordingListener(2);
+            RecordingListener otherListener = new RecordingListener(0);
+            node1.addListener(listener1);
+            node2.addListener(listener2);
+            other.addListener(otherListener);
+            node1.invalidate("n:cn:a");
+            node1.invalidate("n:cn:b");
+            listener2.awaitKeys();
+            Assert.assertEquals(ImmutableList.of("n:cn:a", "n:cn:b"), listener2.getKeys());
+            // a node doesn't receive its own invalidations.
+            Assert.assertEquals(0, listener1.getKeys().size());
+            Assert.assertEquals(0, otherListener.getKeys().size());
+        } finally {
+            node1.close();
+            node2.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void testOverflowInvalidatesAll() throws InterruptedException {
+        LoopbackCacheInvalidationBus node1 = new LoopbackCacheInvalidationBus("testOverflow", 200L,
+                10, 2);
+        LoopbackCacheInvalidationBus node2 = new LoopbackCacheInvalidationBus("testOverflow");
+        try {
+            RecordingListener listener2 = new RecordingListener(0);
+            node2.addListener(listener2);
+            for (int i = 0; i < 10; i++) {
+                node1.invalidate("n:cn:" + i);
+            }
+            listener2.awaitAll();
+            Assert.assertEquals(1, listener2.all.get());
+        } finally {
+            node1.close();
+            node2.close();
+        }
+    }
+
+    @Test
+    public void testMessageEncoding() throws IOException {
+        UnstartedBus sender = new UnstartedBus();
+        UnstartedBus receiver = new UnstartedBus();
+        RecordingListener listener = new RecordingListener(0);
+        receiver.addListener(listener);
+        List<String> keys = ImmutableList.of("n:cn:/a/b", "n:ac:k;é");
+        byte[] message = sender.encode(keys, false);
+        receiver.decodeAndReceive(message, 0, message.length);
+        Assert.assertEquals(keys, listener.getKeys());
+        Assert.assertEquals(0, listener.all.get());
+        try {
+            receiver.decodeAndReceive(new byte[] { 1, 2, 3, 4, 5 }, 0, 5);
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSequenceGapInvalidatesAll() throws IOException {
+        UnstartedBus sender = new UnstartedBus();
+        UnstartedBus receiver = new UnstartedBus();
+        RecordingListener listener = new RecordingListener(0);
+        receiver.addListener(listener);
+        byte[] m1 = sender.encode(ImmutableList.of("n:cn:a"), false);
+        byte[] m2 = sender.encode(ImmutableList.of("n:cn:b"), false);
+        byte[] m3 = sender.encode(ImmutableList.of("n:cn:c"), false);
+        byte[] m4 = sender.encode(ImmutableList.<String> of(), false);
+        receiver.decodeAndReceive(m1, 0, m1.length);
+        Assert.assertEquals(0, listener.all.get());
+        // m2 is lost.
+        receiver.decodeAndReceive(m3, 0, m3.length);
+        Assert.assertEquals(1, listener.all.get());
+        receiver.decodeAndReceive(m4, 0, m4.length);
+        Assert.assertEquals(1, listener.all.get());
+        // a late message is still delivered.
+        receiver.decodeAndReceive(m2, 0, m2.length);
+        Assert.assertEquals(1, listener.all.get());
+        Assert.assertEquals(ImmutableList.of("n:cn:a", "n:cn:b"), listener.getKeys());
+
+        // messages sent before the receiver was listening were missed.
+        UnstartedBus late = new UnstartedBus();
+        RecordingListener lateListener = new RecordingListener(0);
+        late.addListener(lateListener);
+        late.decodeAndReceive(m4, 0, m4.length);
+        Assert.assertEquals(1, lateListener.all.get());
+    }
+}
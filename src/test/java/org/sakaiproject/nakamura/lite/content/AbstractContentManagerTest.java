@@ -31,6 +31,7 @@ import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permission;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.PrincipalValidatorResolver;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
@@ -50,6 +51,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -231,8 +233,72 @@ public abstract class AbstractContentManagerTest {
 
 
     }
+
+    @Test
+    public void testListChildrenWhenFilterFails() throws StorageClientException,
+            AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        // the bulk check fails, so each path is checked on its own.
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, null,  new LoggingStorageListener(), principalValidatorResolver) {
+            @Override
+            public List<String> filter(String objectType, Collection<String> objectPaths,
+                    Permission permission) throws StorageClientException {
+                throw new StorageClientException("Filter failed");
+            }
+        };
+
+        ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+                configuration, null, new LoggingStorageListener());
+        contentManager.update(new Content("testFilterFails/1/111", ImmutableMap.of("prop111",
+                (Object) "value111")));
+        contentManager.update(new Content("testFilterFails/1/222", ImmutableMap.of("prop222",
+                (Object) "value222")));
+        Set<String> childSet = Sets.newHashSet();
+        for (String c : contentManager.get("testFilterFails/1").listChildPaths()) {
+            childSet.add(c);
+        }
+        Assert.assertEquals(2, childSet.size());
+        Assert.assertTrue(childSet.contains("testFilterFails/1/111"));
+        Assert.assertTrue(childSet.contains("testFilterFails/1/222"));
+    }
     
 
+    @Test
+    public void testReindex() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, null,  new LoggingStorageListener(), principalValidatorResolver);
+
+        ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+                configuration, null, new LoggingStorageListener());
+        contentManager.update(new Content("testReindex/1/11", ImmutableMap.of("prop11",
+                (Object) "value11")));
+        contentManager.update(new Content("testReindex/1/22", ImmutableMap.of("prop22",
+                (Object) "value22")));
+
+        // the tree is reindexed from the top, and is listed as before.
+        contentManager.reindex("testReindex");
+        Set<String> childSet = Sets.newHashSet();
+        int i = 0;
+        for (String c : contentManager.get("testReindex/1").listChildPaths()) {
+            i++;
+            childSet.add(c);
+        }
+        Assert.assertEquals(2, i);
+        Assert.assertTrue(childSet.contains("testReindex/1/11"));
+        Assert.assertTrue(childSet.contains("testReindex/1/22"));
+        Assert.assertEquals("value22", contentManager.get("testReindex/1/22").getProperty("prop22"));
+
+        // content that doesn't exist has nothing to reindex.
+        contentManager.reindex("testReindex/missing");
+        Assert.assertNull(contentManager.get("testReindex/missing"));
+    }
+
     @Test
     public void testCopySimple() throws StorageClientException, AccessDeniedException, IOException {
         AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jdbc;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.lite.storage.jdbc.ConnectionHolder;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.List;
+
+public class ConnectionHolderTest {
+
+    private List<String> prepared = Lists.newArrayList();
+    private List<String> closed = Lists.newArrayList();
+
+    private Connection newConnection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if ("prepareStatement".equals(method.getName())) {
+                            prepared.add((String) args[0]);
+                            return newStatement((String) args[0]);
+                        } else if ("close".equals(method.getName())) {
+                            closed.add("connection");
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private PreparedStatement newStatement(final String sql) {
+        return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if ("close".equals(method.getName())) {
+                            closed.add(sql);
+                        } else if ("hashCode".equals(method.getName())) {
+                            return System.identityHashCode(proxy);
+                        } else if ("equals".equals(method.getName())) {
+                            return proxy == args[0];
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void testStatementsAreReused() throws Exception {
+        ConnectionHolder holder = new ConnectionHolder(newConnection(), 10);
+        PreparedStatement a = holder.getStatement("select a");
+        Assert.assertSame(a, holder.getStatement("select a"));
+        Assert.assertNotSame(a, holder.getStatement("select b"));
+        Assert.assertEquals(2, prepared.size());
+        Assert.assertTrue(closed.isEmpty());
+        holder.close();
+        Assert.assertTrue(closed.contains("select a"));
+        Assert.assertTrue(closed.contains("select b"));
+        Assert.assertEquals("connection", closed.get(closed.size() - 1));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedStatementIsClosed() throws Exception {
+        ConnectionHolder holder = new ConnectionHolder(newConnection(), 2);
+        holder.getStatement("select a");
+        holder.getStatement("select b");
+        // touch a so that b is the oldest.
+        holder.getStatement("select a");
+        holder.getStatement("select c");
+        Assert.assertEquals(Lists.newArrayList("select b"), closed);
+        holder.getStatement("select a");
+        Assert.assertEquals(3, prepared.size());
+        holder.getStatement("select b");
+        Assert.assertEquals(4, prepared.size());
+    }
+}
@@ -19,9 +19,12 @@ package org.sakaiproject.nakamura.lite.jdbc;
 
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -36,13 +39,20 @@ import org.mockito.Answers;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClient;
 import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClientPool;
+import org.sakaiproject.nakamura.lite.storage.jdbc.WriteBehindBuffer;
+import org.sakaiproject.nakamura.lite.types.Types;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -73,6 +83,7 @@ public class JDBCStorageClientTest {
   public void setUp() throws Exception {
     // have the pool return the connection we control
     when(connPool.getConnection()).thenReturn(conn);
+    when(connPool.getStatement(anyString())).thenReturn(ps2);
 
     // funnel in data when the indexed columns are looked up
     when(conn.prepareStatement(anyString())).thenReturn(ps2);
@@ -380,4 +391,195 @@ public class JDBCStorageClientTest {
     String sql = sqlCaptor.getValue();
     Assert.assertEquals(expectedSql, sql);
   }
+
+  @Test
+  public void testGetAllChunked() throws Exception {
+    Map<String, Object> chunkedConfig = Maps.newHashMap(sqlConfig);
+    chunkedConfig.put("select-rows-chunk-size", "2");
+    client = new JDBCStorageClient(connPool, properties, chunkedConfig, ImmutableSet.of("conjunctions:key1"));
+
+    String keySpace = "cn";
+    String columnFamily = "conjunctions";
+    Map<String, Map<String, Object>> rows = client.getAll(keySpace, columnFamily,
+        Lists.immutableList("id1", "id2", "id3"));
+
+    // no rows exist, so each key maps to an empty row.
+    Assert.assertEquals(3, rows.size());
+    Assert.assertTrue(rows.get("id1").isEmpty());
+    Assert.assertTrue(rows.get("id3").isEmpty());
+
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, atLeastOnce()).prepareStatement(sqlCaptor.capture());
+    String sqlTemplate = (String) sqlConfig.get("block-select-rows");
+    Assert.assertEquals(Lists.immutableList(MessageFormat.format(sqlTemplate, "?, ?"),
+        MessageFormat.format(sqlTemplate, "?")), sqlCaptor.getAllValues());
+    verify(ps2).setString(1, client.rowHash(keySpace, columnFamily, "id1"));
+    verify(ps2).setString(2, client.rowHash(keySpace, columnFamily, "id2"));
+    verify(ps2).setString(1, client.rowHash(keySpace, columnFamily, "id3"));
+  }
+
+  @Test
+  public void testFindPrefetchesRows() throws Exception {
+    // the find returns 3 row ids, the bodies are then selected together.
+    when(rs2.next()).thenReturn(true, true, true, false, false);
+    when(rs2.getString(1)).thenReturn("rid1", "rid2", "rid3");
+
+    Map<String, Object> props = Maps.newLinkedHashMap();
+    props.put("key1", "val1");
+    Iterator<Map<String, Object>> rows = client.find("cn", "conjunctions", props);
+    int n = 0;
+    while (rows.hasNext()) {
+      Assert.assertNotNull(rows.next());
+      n++;
+    }
+    Assert.assertEquals(3, n);
+
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, atLeastOnce()).prepareStatement(sqlCaptor.capture());
+    List<String> statements = sqlCaptor.getAllValues();
+    Assert.assertEquals(2, statements.size());
+    Assert.assertEquals(MessageFormat.format((String) sqlConfig.get("block-select-rows"),
+        "?, ?, ?"), statements.get(1));
+    verify(ps2).setString(1, "rid1");
+    verify(ps2).setString(2, "rid2");
+    verify(ps2).setString(3, "rid3");
+  }
+
+  @Test
+  public void testInsertUsesUpsert() throws Exception {
+    String upsert = "insert into css_b (rid,b) values (?, ?) on duplicate key update b = values(b)";
+    Map<String, Object> upsertConfig = Maps.newHashMap(sqlConfig);
+    upsertConfig.put("block-upsert-row", upsert);
+    client = new JDBCStorageClient(connPool, properties, upsertConfig, ImmutableSet.of("conjunctions:key1"));
+
+    Map<String, Object> values = Maps.newHashMap();
+    values.put("notindexed", "value");
+    // the mock reports 0 rows changed, which an upsert may legitimately do.
+    client.insert("cn", "conjunctions", "id1", values, false);
+
+    verify(connPool).getStatement(upsert);
+    verify(connPool, never()).getStatement((String) sqlConfig.get("block-insert-row"));
+    verify(connPool, never()).getStatement((String) sqlConfig.get("block-update-row"));
+    verify(ps2).setString(1, client.rowHash("cn", "conjunctions", "id1"));
+    verify(ps2, times(1)).executeUpdate();
+  }
+
+  /**
+   * Have the mock return a row when it is selected.
+   */
+  private void storedRow(String key, Map<String, Object> row) throws Exception {
+    String rid = client.rowHash("cn", "conjunctions", key);
+    InputStream in = Types.storeMapToStream(rid, row, "conjunctions");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      out.write(buffer, 0, n);
+    }
+    when(rs2.next()).thenReturn(true, false);
+    when(rs2.getBytes(1)).thenReturn(out.toByteArray());
+  }
+
+  @Test
+  public void testInsertReadsStoredRow() throws Exception {
+    storedRow("id1", ImmutableMap.of("existing", (Object) "value"));
+    Map<String, Object> values = Maps.newHashMap();
+    values.put("notindexed", "value");
+    // the row is stored so is updated, and the update reports no rows.
+    try {
+      client.insert("cn", "conjunctions", "id1", values, true);
+      Assert.fail("Mock reports nothing saved");
+    } catch (StorageClientException e) {
+      // expected
+    }
+    // the row is read in the write, not taken from a possibly stale cache.
+    verify(connPool).getStatement((String) sqlConfig.get("block-select-row"));
+    verify(connPool).getStatement((String) sqlConfig.get("block-update-row"));
+    verify(connPool, never()).getStatement((String) sqlConfig.get("block-insert-row"));
+  }
+
+  @Test
+  public void testMissingRowIsInserted() throws Exception {
+    when(ps2.executeUpdate()).thenReturn(1);
+    client.insert("cn", "conjunctions", "id1", ImmutableMap.of("a", (Object) "1"), false);
+
+    // the read found no row, so it is inserted without trying an update.
+    verify(connPool).getStatement((String) sqlConfig.get("block-insert-row"));
+    verify(connPool, never()).getStatement((String) sqlConfig.get("block-update-row"));
+  }
+
+  @Test
+  public void testBatchWritesRowOnceRead() throws Exception {
+    storedRow("id1", ImmutableMap.of("existing", (Object) "value"));
+    when(ps2.executeUpdate()).thenReturn(1);
+    client.startBatch();
+    client.insert("cn", "conjunctions", "id1", ImmutableMap.of("a", (Object) "1"), false);
+    client.insert("cn", "conjunctions", "id1", ImmutableMap.of("b", (Object) "2"), false);
+    client.commitBatch();
+
+    // the second write merges into the row the batch wrote and holds.
+    verify(connPool, times(1)).getStatement((String) sqlConfig.get("block-select-row"));
+    verify(connPool, times(2)).getStatement((String) sqlConfig.get("block-update-row"));
+
+    // once committed the row can be changed by others, so is read again.
+    client.insert("cn", "conjunctions", "id1", ImmutableMap.of("c", (Object) "3"), false);
+    verify(connPool, times(2)).getStatement((String) sqlConfig.get("block-select-row"));
+  }
+
+  @Test
+  public void testUnchangedIndexIsNotRewritten() throws Exception {
+    Map<String, Object> upsertConfig = Maps.newHashMap(sqlConfig);
+    upsertConfig.put("block-upsert-row", "insert into css_b (rid,b) values (?, ?) on duplicate key update b = values(b)");
+    upsertConfig.put("use-batch-inserts", "1");
+    client = new JDBCStorageClient(connPool, properties, upsertConfig, ImmutableSet.of("conjunctions:key1", "conjunctions:key2"));
+    when(ps2.executeBatch()).thenReturn(new int[] { 1 });
+
+    storedRow("/a/b", ImmutableMap.of("key1", (Object) "val1"));
+    Map<String, Object> values = Maps.newHashMap();
+    values.put("key1", "val1");
+    values.put("key2", "val2");
+    client.insert("cn", "conjunctions", "/a/b", values, false);
+
+    // key1 is unchanged, key2 had no value so needs no remove, and the
+    // row exists so the parent hash is already indexed.
+    verify(connPool, never()).getStatement((String) sqlConfig.get("remove-string-column"));
+    verify(ps2).setString(1, "val2");
+    verify(ps2, never()).setString(1, "val1");
+    verify(ps2, times(1)).addBatch();
+  }
+
+  @Test
+  public void testReindex() throws Exception {
+    storedRow("/a/b", ImmutableMap.of("key1", (Object) "val1", "other", "x"));
+    when(ps2.executeUpdate()).thenReturn(1);
+    client.reindex("cn", "conjunctions", "/a/b");
+
+    // every index row is removed and rewritten from the stored row,
+    // including the parent hash.
+    verify(connPool).getStatement((String) sqlConfig.get("delete-string-row"));
+    verify(ps2).setString(1, "val1");
+    verify(ps2).setString(1, client.rowHash("cn", "conjunctions", "/a"));
+    verify(ps2, never()).setString(1, "x");
+  }
+
+  @Test
+  public void testBatchNeverWritesRowsHeldBackByOthers() throws Exception {
+    WriteBehindBuffer writeBehind = new WriteBehindBuffer(100, 60000L);
+    when(connPool.getWriteBehindBuffer()).thenReturn(writeBehind);
+    String rid = client.rowHash("cn", "conjunctions", "/a/b");
+
+    // a row held back by another thread is committed before the batch starts.
+    writeBehind.add(rid, "cn", "conjunctions", "/a/b", ImmutableMap.of("key1", (Object) "val1"),
+        true);
+    client.startBatch();
+    Assert.assertFalse(writeBehind.isPending(rid));
+
+    // one held back while the batch is open is left for its own thread, even
+    // by a remove of the same row, so an abort can't lose it.
+    writeBehind.add(rid, "cn", "conjunctions", "/a/b", ImmutableMap.of("key1", (Object) "val2"),
+        false);
+    client.remove("cn", "conjunctions", "/a/b");
+    client.flush();
+    client.abortBatch();
+    Assert.assertTrue(writeBehind.isPending(rid));
+  }
 }
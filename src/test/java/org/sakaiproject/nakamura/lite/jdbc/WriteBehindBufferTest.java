@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jdbc;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.storage.jdbc.WriteBehindBuffer;
+import org.sakaiproject.nakamura.lite.storage.jdbc.WriteBehindBuffer.PendingRow;
+import org.sakaiproject.nakamura.lite.storage.jdbc.WriteBehindBuffer.PendingWrite;
+import org.sakaiproject.nakamura.lite.storage.jdbc.WriteBehindBuffer.RowWriter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class WriteBehindBufferTest {
+
+    private List<List<PendingRow>> written = Collections
+            .synchronizedList(Lists.<List<PendingRow>> newArrayList());
+
+    private RowWriter writer = new RowWriter() {
+        public List<PendingRow> write(List<PendingRow> rows) {
+            written.add(rows);
+            return Collections.emptyList();
+        }
+    };
+
+    @Test
+    public void testWritesAreMergedAndFlushedTogether() throws StorageClientException {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(100, 0);
+        PendingWrite first = buffer.add("ra", "n", "cn", "a", ImmutableMap.of("x", (Object) "1",
+                "y", "1"), true);
+        buffer.add("rb", "n", "cn", "b", ImmutableMap.of("x", (Object) "2"), true);
+        PendingWrite last = buffer.add("ra", "n", "cn", "a", ImmutableMap.of("x", (Object) "3"),
+                false);
+        Assert.assertEquals(2, buffer.size());
+        Assert.assertTrue(buffer.isPending("ra"));
+        Assert.assertFalse(buffer.isPending("rc"));
+        Assert.assertFalse(first.isDone());
+
+        buffer.flush(writer);
+        Assert.assertEquals(1, written.size());
+        List<PendingRow> rows = written.get(0);
+        Assert.assertEquals(2, rows.size());
+        // rows in the order they were first written, values merged in order.
+        Assert.assertEquals("a", rows.get(0).getKey());
+        Assert.assertEquals("3", rows.get(0).getValues().get("x"));
+        Assert.assertEquals("1", rows.get(0).getValues().get("y"));
+        Assert.assertTrue(rows.get(0).isProbablyNew());
+        Assert.assertEquals("b", rows.get(1).getKey());
+        Assert.assertEquals(0, buffer.size());
+        Assert.assertFalse(buffer.isPending("ra"));
+        Assert.assertTrue(first.isDone());
+        Assert.assertTrue(last.isDone());
+
+        // already written, so nothing to write.
+        buffer.commit(last, writer);
+        buffer.flush(writer);
+        Assert.assertEquals(1, written.size());
+    }
+
+    @Test
+    public void testReadsSeeUnwrittenValues() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(100, 0);
+        Assert.assertTrue(buffer.getPending("ra").isEmpty());
+        Map<String, Object> stored = ImmutableMap.of("x", (Object) "0", "z", "0");
+        Assert.assertSame(stored, WriteBehindBuffer.apply(stored, buffer.getPending("ra")));
+
+        Map<String, Object> values = Maps.newHashMap();
+        values.put("x", "1");
+        values.put("z", new RemoveProperty());
+        buffer.add("ra", "n", "cn", "a", values, false);
+        // the buffer keeps its own copy.
+        values.put("x", "2");
+        Map<String, Object> row = WriteBehindBuffer.apply(stored, buffer.getPending("ra"));
+        Assert.assertEquals(1, row.size());
+        Assert.assertEquals("1", row.get("x"));
+    }
+
+    @Test
+    public void testFailuresAreReportedToTheWriter() throws StorageClientException {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(100, 0);
+        PendingWrite failing = buffer.add("ra", "n", "cn", "a", ImmutableMap.of("x",
+                (Object) "1"), true);
+        PendingWrite other = buffer.add("rb", "n", "cn", "b", ImmutableMap.of("x",
+                (Object) "1"), true);
+        RowWriter failFirst = new RowWriter() {
+            public List<PendingRow> write(List<PendingRow> rows) {
+                return rows.subList(0, 1);
+            }
+        };
+        buffer.flush(failFirst);
+        // the failed row is not kept to be retried behind the writer's back.
+        Assert.assertEquals(0, buffer.size());
+        Assert.assertFalse(buffer.isPending("ra"));
+        Assert.assertTrue(failing.isFailed());
+        Assert.assertFalse(other.isFailed());
+        buffer.commit(other, writer);
+        try {
+            buffer.commit(failing, writer);
+            Assert.fail("The writer of a row that failed should be told");
+        } catch (StorageClientException e) {
+            // expected
+        }
+        Assert.assertTrue(written.isEmpty());
+    }
+
+    @Test
+    public void testFullBufferIsFlushedWithoutWaiting() throws StorageClientException {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(2, 60000L);
+        buffer.add("ra", "n", "cn", "a", ImmutableMap.of("x", (Object) "1"), true);
+        PendingWrite write = buffer.add("rb", "n", "cn", "b", ImmutableMap.of("x",
+                (Object) "1"), true);
+        long start = System.currentTimeMillis();
+        buffer.commit(write, writer);
+        Assert.assertTrue(System.currentTimeMillis() - start < 30000L);
+        Assert.assertEquals(1, written.size());
+        Assert.assertEquals(2, written.get(0).size());
+    }
+
+    @Test
+    public void testWaitingWriteIsCommittedByAnotherThread() throws Exception {
+        final WriteBehindBuffer buffer = new WriteBehindBuffer(100, 60000L);
+        final PendingWrite write = buffer.add("ra", "n", "cn", "a", ImmutableMap.of("x",
+                (Object) "1"), true);
+        final List<Exception> failures = Collections.synchronizedList(Lists
+                .<Exception> newArrayList());
+        Thread waiting = new Thread() {
+            public void run() {
+                try {
+                    buffer.commit(write, writer);
+                } catch (StorageClientException e) {
+                    failures.add(e);
+                }
+            }
+        };
+        waiting.start();
+        PendingWrite own = buffer.add("rb", "n", "cn", "b", ImmutableMap.of("x", (Object) "1"),
+                true);
+        buffer.flush(writer);
+        buffer.commit(own, writer);
+        waiting.join(30000L);
+        Assert.assertFalse(waiting.isAlive());
+        Assert.assertTrue(failures.isEmpty());
+        // both writes went in the one transaction.
+        Assert.assertEquals(1, written.size());
+        Assert.assertEquals(2, written.get(0).size());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrentLRUMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(100);
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.put("a", "1"));
+        Assert.assertEquals("1", map.put("a", "2"));
+        Assert.assertEquals("2", map.get("a"));
+        Assert.assertTrue(map.containsKey("a"));
+        Assert.assertTrue(map.containsValue("2"));
+        Assert.assertEquals(1, map.size());
+        Assert.assertEquals(1, map.entrySet().size());
+        Assert.assertEquals("2", map.remove("a"));
+        Assert.assertNull(map.get("a"));
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testNullValue() {
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(100);
+        Assert.assertNull(map.put("a", null));
+        Assert.assertTrue(map.containsKey("a"));
+        Assert.assertTrue(map.containsValue(null));
+        Assert.assertNull(map.get("a"));
+        Assert.assertEquals(1, map.size());
+        Assert.assertNull(map.put("a", "1"));
+        Assert.assertFalse(map.containsValue(null));
+        Assert.assertEquals("1", map.get("a"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        // a single segment makes the eviction order exact.
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10, 1);
+        for (int i = 0; i < 10; i++) {
+            map.put("key" + i, "value" + i);
+        }
+        // touch key0 so that key1 becomes the oldest.
+        Assert.assertEquals("value0", map.get("key0"));
+        map.put("key10", "value10");
+        Assert.assertEquals(10, map.size());
+        Assert.assertTrue(map.containsKey("key0"));
+        Assert.assertFalse(map.containsKey("key1"));
+        Assert.assertTrue(map.containsKey("key10"));
+    }
+
+    @Test
+    public void testWeightBudget() {
+        ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(100, 10L, 1,
+                new Weigher<String>() {
+                    public int weigh(String value) {
+                        return value.length();
+                    }
+                });
+        map.put("a", "12345");
+        map.put("b", "12345");
+        Assert.assertEquals(2, map.size());
+        map.put("c", "1");
+        Assert.assertFalse(map.containsKey("a"));
+        Assert.assertTrue(map.containsKey("b"));
+        Assert.assertTrue(map.containsKey("c"));
+        // a value larger than the whole budget is never retained.
+        map.put("d", "12345678901");
+        Assert.assertFalse(map.containsKey("d"));
+    }
+
+    @Test
+    public void testCacheHolderWeight() {
+        ConcurrentLRUMap<String, CacheHolder> map = new ConcurrentLRUMap<String, CacheHolder>(
+                1000, 1500L, 1, new CacheHolderWeigher());
+        Assert.assertEquals(0L, map.getWeight());
+        Assert.assertEquals(1500L, map.getMaxWeight());
+        Map<String, Object> small = ImmutableMap.of("a", (Object) "b");
+        Map<String, Object> large = Maps.newHashMap();
+        for (int i = 0; i < 40; i++) {
+            large.put("property" + i, "value" + i);
+        }
+        map.put("small", new CacheHolder(small));
+        long smallWeight = map.getWeight();
+        Assert.assertTrue(smallWeight > 0);
+        map.put("large", new CacheHolder(large));
+        Assert.assertTrue(map.getWeight() > 10 * smallWeight);
+        Assert.assertTrue(map.getWeight() <= 1500L);
+        map.put("large2", new CacheHolder(large));
+        // two large rows don't fit in the budget, so the oldest entries go.
+        Assert.assertTrue(map.getWeight() <= 1500L);
+        Assert.assertFalse(map.containsKey("small"));
+        Assert.assertFalse(map.containsKey("large"));
+        Assert.assertTrue(map.containsKey("large2"));
+        map.remove("large2");
+        Assert.assertEquals(0L, map.getWeight());
+    }
+
+    @Test
+    public void testConcurrentBound() throws InterruptedException {
+        final ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(1000,
+                16);
+        final int nthreads = 8;
+        final CountDownLatch done = new CountDownLatch(nthreads);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < nthreads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10000; i++) {
+                            String key = thread + ":" + i;
+                            map.put(key, key);
+                            map.get(thread + ":" + (i / 2));
+                        }
+                    } catch (Throwable e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        Assert.assertEquals(0, failures.get());
+        // each segment is bounded, so the total may round up by one per
+        // segment.
+        Assert.assertTrue(map.size() <= 1000 + 16);
+        Assert.assertTrue(map.size() > 0);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.AllocationCounter;
+import org.sakaiproject.nakamura.lite.CheckRowHash;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DigestRowHasherTest {
+
+    @Test
+    public void testMatchesDigest() throws StorageClientException {
+        DigestRowHasher hasher = new DigestRowHasher("SHA1", 0);
+        DigestRowHasher caching = new DigestRowHasher("SHA1", 10);
+        for (int i = 0; i < 50; i++) {
+            String key = "/a/b/" + i;
+            String expected = CheckRowHash.rowHash("n", "cn", key, "SHA1");
+            Assert.assertEquals(expected, hasher.rowHash("n", "cn", key));
+            Assert.assertEquals(expected, caching.rowHash("n", "cn", key));
+            // the second time may come from the cache.
+            Assert.assertEquals(expected, caching.rowHash("n", "cn", key));
+        }
+        Assert.assertFalse(hasher.rowHash("n", "cn", "a").equals(hasher.rowHash("n", "au", "a")));
+    }
+
+    @Test
+    public void testCachedRowIdsAreReused() throws StorageClientException {
+        DigestRowHasher hasher = new DigestRowHasher("SHA1", 0);
+        DigestRowHasher caching = new DigestRowHasher("SHA1", 10);
+        String rid = caching.rowHash("n", "cn", "/a/b");
+        Assert.assertSame(rid, caching.rowHash("n", "cn", "/a/b"));
+        rid = hasher.rowHash("n", "cn", "/a/b");
+        Assert.assertNotSame(rid, hasher.rowHash("n", "cn", "/a/b"));
+    }
+
+    @Test
+    public void testCachedRowHashAllocatesLess() throws StorageClientException {
+        if (AllocationCounter.allocated() == 0) {
+            // this JVM can't measure allocation.
+            return;
+        }
+        DigestRowHasher hasher = new DigestRowHasher("SHA1", 0);
+        DigestRowHasher caching = new DigestRowHasher("SHA1", 200);
+        String[] keys = new String[100];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "/a/path/to/some/content/item" + i;
+        }
+        // hash everything once, so the cache is full and the digests exist.
+        for (String key : keys) {
+            CheckRowHash.rowHash("n", "cn", key, "SHA1");
+            hasher.rowHash("n", "cn", key);
+            caching.rowHash("n", "cn", key);
+        }
+        long perCall = AllocationCounter.allocated();
+        for (String key : keys) {
+            CheckRowHash.rowHash("n", "cn", key, "SHA1");
+        }
+        perCall = AllocationCounter.allocated() - perCall;
+        long perThread = AllocationCounter.allocated();
+        for (String key : keys) {
+            hasher.rowHash("n", "cn", key);
+        }
+        perThread = AllocationCounter.allocated() - perThread;
+        long cached = AllocationCounter.allocated();
+        for (String key : keys) {
+            caching.rowHash("n", "cn", key);
+        }
+        cached = AllocationCounter.allocated() - cached;
+        Assert.assertTrue("Per thread digest allocated " + perThread + " bytes, per call "
+                + perCall, perThread < perCall);
+        Assert.assertTrue("Cached row ids allocated " + cached + " bytes, per thread digest "
+                + perThread, cached < perThread);
+    }
+
+    @Test(expected = StorageClientException.class)
+    public void testUnknownAlgorithm() throws StorageClientException {
+        new DigestRowHasher("NOT-AN-ALGORITHM", 0);
+    }
+
+    @Test
+    public void testConcurrentHashing() throws InterruptedException, StorageClientException {
+        final DigestRowHasher hasher = new DigestRowHasher("SHA1", 100);
+        final int nthreads = 8;
+        final CountDownLatch done = new CountDownLatch(nthreads);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < nthreads; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            String key = "key" + (i % 300);
+                            if (!CheckRowHash.rowHash("n", "cn", key, "SHA1").equals(
+                                    hasher.rowHash("n", "cn", key))) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        Assert.assertEquals(0, failures.get());
+    }
+}
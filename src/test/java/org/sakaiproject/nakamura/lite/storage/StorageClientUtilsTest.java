@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.lite.storage;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
+import org.apache.commons.codec.binary.Base64;
 import org.junit.Assert;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.lite.RemoveProperty;
@@ -28,6 +29,7 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import java.io.UnsupportedEncodingException;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 public class StorageClientUtilsTest {
@@ -188,4 +190,16 @@ public class StorageClientUtilsTest {
         return b;
     }
 
+    @Test
+    public void testEncodeMatchesBase64() {
+        Random random = new Random(0);
+        for (int length = 0; length < 70; length++) {
+            byte[] b = new byte[length];
+            for (int i = 0; i < 20; i++) {
+                random.nextBytes(b);
+                Assert.assertEquals(Base64.encodeBase64URLSafeString(b), StorageClientUtils.encode(b));
+            }
+        }
+    }
+
 }
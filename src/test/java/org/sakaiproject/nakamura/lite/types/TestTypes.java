@@ -6,10 +6,17 @@ import com.google.common.collect.Maps;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.lite.AllocationCounter;
+import org.sakaiproject.nakamura.lite.content.InternalContent;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.util.Calendar;
 import java.util.Map;
 import java.util.TimeZone;
@@ -258,4 +265,290 @@ public class TestTypes {
 
     }
 
+    @Test
+    public void testReadV1Format() throws IOException {
+        // a row as written by the original format.
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeUTF("testkey");
+        dos.writeInt(2);
+        dos.writeUTF("_path");
+        dos.writeInt(0);
+        dos.writeUTF("/a/b");
+        dos.writeUTF("count");
+        dos.writeInt(2);
+        dos.writeInt(42);
+        dos.writeUTF("testcf");
+        dos.flush();
+
+        Map<String, Object> output = Maps.newHashMap();
+        Types.loadFromStream("testkey", output, new ByteArrayInputStream(baos.toByteArray()), "testcf");
+        Assert.assertEquals(2, output.size());
+        Assert.assertEquals("/a/b", output.get("_path"));
+        Assert.assertEquals(42, output.get("count"));
+    }
+
+    @Test
+    public void testV2FormatIsSmaller() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put(InternalContent.UUID_FIELD, "8a3c2d7e1f");
+        map.put(InternalContent.PATH_FIELD, "/a/b");
+        map.put(InternalContent.LASTMODIFIED_FIELD, 1234567890L);
+        map.put(InternalContent.LASTMODIFIED_BY_FIELD, "admin");
+        map.put("title", "A title");
+
+        InputStream in = Types.storeMapToStream("testkey", map, "testcf");
+        // v1 would take 2+7 for the key, 4 for the count, 2+len+4 per name,
+        // and 2+6 for the column family.
+        int v1Names = 0;
+        for (String k : map.keySet()) {
+            v1Names += 2 + k.length() + 4;
+        }
+        int v2Size = in.available();
+        Map<String, Object> output = Maps.newHashMap();
+        Types.loadFromStream("testkey", output, in, "testcf");
+        Assert.assertEquals(map, output);
+        Assert.assertTrue(v2Size < v1Names + 9 + 4 + 8);
+    }
+
+    @Test
+    public void testNamesAreShared() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put(new String("customProperty"), "a");
+        map.put(InternalContent.PATH_FIELD, "/a/b");
+        Map<String, Object> first = Maps.newHashMap();
+        Types.loadFromStream("testkey", first, Types.storeMapToStream("testkey", map, "testcf"), "testcf");
+        Map<String, Object> second = Maps.newHashMap();
+        Types.loadFromStream("testkey", second, Types.storeMapToStream("testkey", map, "testcf"), "testcf");
+        Assert.assertSame(getKey(first, "customProperty"), getKey(second, "customProperty"));
+        Assert.assertSame(InternalContent.PATH_FIELD, getKey(second, InternalContent.PATH_FIELD));
+    }
+
+    private String getKey(Map<String, Object> map, String name) {
+        for (String k : map.keySet()) {
+            if (k.equals(name)) {
+                return k;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testLaterFormatIsRejected() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeShort(0xFFFF);
+        dos.writeByte(99);
+        dos.writeByte(0);
+        dos.flush();
+        try {
+            Types.loadFromStream("testkey", Maps.<String, Object>newHashMap(),
+                    new ByteArrayInputStream(baos.toByteArray()), "testcf");
+            Assert.fail("Format 99 should not be readable");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBufferRoundTrip() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put(InternalContent.PATH_FIELD, "/a/b");
+        map.put("count", 42);
+        map.put("tags", new String[] { "x", "y" });
+        ByteBuffer b = Types.storeMapToBuffer("testkey", map, "testcf");
+        int size = b.remaining();
+
+        // the row in the middle of a larger array, as a slice.
+        byte[] padded = new byte[size + 10];
+        b.get(padded, 5, size);
+        ByteBuffer slice = ByteBuffer.wrap(padded, 5, size).slice();
+        Map<String, Object> output = Maps.newHashMap();
+        Types.loadFromBuffer("testkey", output, slice, "testcf");
+        Assert.assertEquals(3, output.size());
+        Assert.assertEquals("/a/b", output.get(InternalContent.PATH_FIELD));
+        Assert.assertEquals(42, output.get("count"));
+        Assert.assertArrayEquals(new String[] { "x", "y" }, (String[]) output.get("tags"));
+        Assert.assertEquals(0, slice.position());
+
+        // and positioned part way through an array.
+        ByteBuffer positioned = ByteBuffer.wrap(padded, 5, size);
+        output.clear();
+        Types.loadFromBuffer("testkey", output, positioned, "testcf");
+        Assert.assertEquals(3, output.size());
+        Assert.assertEquals(5, positioned.position());
+
+        // the stream form holds the same bytes.
+        InputStream in = Types.storeMapToStream("testkey", map, "testcf");
+        Assert.assertEquals(size, in.available());
+    }
+
+    @Test
+    public void testLazyRow() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put(InternalContent.PATH_FIELD, "/a/b");
+        map.put("count", 42);
+        map.put("tags", new String[] { "x", "y" });
+        map.put("amount", new BigDecimal("12.50"));
+        // long enough that its length takes more than one byte.
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            description.append("0123456789");
+        }
+        map.put("description", description.toString());
+        ByteBuffer b = Types.storeMapToBuffer("testkey", map, "testcf");
+        int size = b.remaining();
+
+        Map<String, Object> row = Types.loadRowFromBuffer("testkey", b, "testcf");
+        Assert.assertTrue(row instanceof LazyRow);
+        Assert.assertEquals(size, ((LazyRow) row).getEncodedSize());
+        Assert.assertEquals(5, row.size());
+        Assert.assertEquals(description.toString(), row.get("description"));
+        Assert.assertTrue(row.containsKey("count"));
+        Assert.assertFalse(row.containsKey("missing"));
+        Assert.assertNull(row.get("missing"));
+        Assert.assertEquals(map.keySet(), row.keySet());
+        Assert.assertEquals("/a/b", row.get(InternalContent.PATH_FIELD));
+        Assert.assertEquals(42, row.get("count"));
+        // decoded once, then the same value is returned.
+        Assert.assertSame(row.get("amount"), row.get("amount"));
+        Assert.assertArrayEquals(new String[] { "x", "y" }, (String[]) row.get("tags"));
+
+        Map<String, Object> eager = Maps.newHashMap();
+        Types.loadFromBuffer("testkey", eager, b, "testcf");
+        Assert.assertEquals(eager.keySet(), row.keySet());
+        Assert.assertEquals(eager.get("amount"), row.get("amount"));
+        Assert.assertEquals(0, b.position());
+        try {
+            row.put("count", 43);
+            Assert.fail("Rows should be read only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            Types.loadRowFromBuffer("otherkey", b, "testcf");
+            Assert.fail("Key should be checked");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLazyRowAllocatesLess() throws IOException {
+        if (AllocationCounter.allocated() == 0) {
+            // this JVM can't measure allocation.
+            return;
+        }
+        Map<String, Object> map = Maps.newHashMap();
+        map.put(InternalContent.PATH_FIELD, "/a/path/to/some/content/item");
+        map.put(InternalContent.MIMETYPE_FIELD, "text/html");
+        map.put(InternalContent.LASTMODIFIED_FIELD, 1300000500000L);
+        map.put("sling:resourceType", "sakai/pooled-content");
+        map.put("tags", new String[] { "one", "two", "three" });
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            description.append("A longer description of the content. ");
+        }
+        map.put("description", description.toString());
+        ByteBuffer b = Types.storeMapToBuffer("testkey", map, "testcf");
+
+        // decode both ways first, so that nothing is loaded while measuring.
+        Map<String, Object> eager = Maps.newHashMap();
+        Types.loadFromBuffer("testkey", eager, b, "testcf");
+        Types.loadRowFromBuffer("testkey", b, "testcf").get(InternalContent.PATH_FIELD);
+        long eagerBytes = AllocationCounter.allocated();
+        for (int i = 0; i < 100; i++) {
+            eager = Maps.newHashMap();
+            Types.loadFromBuffer("testkey", eager, b, "testcf");
+            eager.get(InternalContent.PATH_FIELD);
+        }
+        eagerBytes = AllocationCounter.allocated() - eagerBytes;
+        long lazyBytes = AllocationCounter.allocated();
+        for (int i = 0; i < 100; i++) {
+            Types.loadRowFromBuffer("testkey", b, "testcf").get(InternalContent.PATH_FIELD);
+        }
+        lazyBytes = AllocationCounter.allocated() - lazyBytes;
+        // only the value that is used is decoded.
+        Assert.assertTrue("Reading one value allocated " + lazyBytes
+                + " bytes, decoding the row " + eagerBytes, lazyBytes < eagerBytes);
+    }
+
+    @Test
+    public void testRowWithoutValueLengths() throws IOException {
+        // a v2 row written before values had lengths is decoded in full.
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeShort(0xFFFF);
+        dos.writeByte(2);
+        dos.writeByte(0);
+        Types.writeVarInt(dos, 7);
+        dos.write("testkey".getBytes("UTF-8"));
+        Types.writeVarInt(dos, 1);
+        Types.writeVarInt(dos, 0);
+        Types.writeVarInt(dos, 5);
+        dos.write("count".getBytes("UTF-8"));
+        Types.writeVarInt(dos, 2);
+        dos.writeInt(42);
+        Types.writeVarInt(dos, 6);
+        dos.write("testcf".getBytes("UTF-8"));
+        dos.flush();
+        Map<String, Object> row = Types.loadRowFromBuffer("testkey",
+                ByteBuffer.wrap(baos.toByteArray()), "testcf");
+        Assert.assertFalse(row instanceof LazyRow);
+        Assert.assertEquals(1, row.size());
+        Assert.assertEquals(42, row.get("count"));
+    }
+
+    @Test
+    public void testCompressedRow() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put(InternalContent.PATH_FIELD, "/a/b");
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            description.append("A repetitive description. ");
+        }
+        map.put("description", description.toString());
+        map.put("principals", new String[] { "everyone", "anonymous", "everyone", "anonymous" });
+        int size = Types.storeMapToBuffer("testkey", map, "testcf").remaining();
+        ByteBuffer compressed = Types.storeMapToBuffer("testkey", map, "testcf", 100);
+        Assert.assertTrue(compressed.remaining() < size / 4);
+
+        Map<String, Object> output = Maps.newHashMap();
+        Types.loadFromStream("testkey", output, Types.storeMapToStream("testkey", map, "testcf",
+                100), "testcf");
+        Assert.assertEquals(3, output.size());
+        Assert.assertEquals(description.toString(), output.get("description"));
+
+        output.clear();
+        Types.loadFromBuffer("testkey", output, compressed, "testcf");
+        Assert.assertEquals(description.toString(), output.get("description"));
+
+        Map<String, Object> row = Types.loadRowFromBuffer("testkey", compressed, "testcf");
+        Assert.assertTrue(row instanceof LazyRow);
+        Assert.assertEquals("/a/b", row.get(InternalContent.PATH_FIELD));
+        Assert.assertEquals(description.toString(), row.get("description"));
+        Assert.assertArrayEquals(new String[] { "everyone", "anonymous", "everyone", "anonymous" },
+                (String[]) row.get("principals"));
+
+        // rows under the threshold are not compressed.
+        Assert.assertEquals(size, Types.storeMapToBuffer("testkey", map, "testcf", size)
+                .remaining());
+    }
+
+    @Test
+    public void testVarInt() throws IOException {
+        int[] values = new int[] { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE };
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int v : values) {
+            Types.writeVarInt(dos, v);
+        }
+        dos.flush();
+        Assert.assertEquals(1 + 1 + 1 + 2 + 2 + 3 + 5, baos.size());
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        for (int v : values) {
+            Assert.assertEquals(v, Types.readVarInt(dis));
+        }
+    }
+
 }